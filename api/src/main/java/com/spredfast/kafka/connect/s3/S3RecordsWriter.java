@@ -1,5 +1,7 @@
 package com.spredfast.kafka.connect.s3;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.util.function.Function;
 import org.apache.kafka.clients.producer.ProducerRecord;
 
@@ -13,6 +15,21 @@ public interface S3RecordsWriter {
 
   byte[] write(ProducerRecord<byte[], byte[]> record);
 
+  /**
+   * Encode a record straight into the sink's buffer, rather than returning new bytes for it. The
+   * sink calls this for every record, so writers that care about allocation should override it. The
+   * default delegates to {@link #write(ProducerRecord)} so existing writers keep working.
+   *
+   * @param key may be null.
+   * @param value may be null.
+   * @param out where to write the encoded record. Owned by the sink and reused, so it should not be
+   *     kept around.
+   */
+  default void write(String topic, int partition, byte[] key, byte[] value, OutputStream out)
+      throws IOException {
+    out.write(write(new ProducerRecord<>(topic, partition, key, value)));
+  }
+
   /** Hook for writing any trailer bytes to the S3 file. */
   default byte[] finish(String topic, int partition) {
     return new byte[0];
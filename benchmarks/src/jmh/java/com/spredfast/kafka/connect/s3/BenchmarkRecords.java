@@ -0,0 +1,41 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+
+/** JSON-ish record values of about a given size, the same for every run. */
+final class BenchmarkRecords {
+
+  private static final char[] PADDING =
+      "abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNOPQRSTUVWXYZ0123456789".toCharArray();
+
+  private BenchmarkRecords() {}
+
+  static byte[][] values(int count, int size) {
+    Random random = new Random(1);
+    byte[][] values = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      StringBuilder value =
+          new StringBuilder(size + 16)
+              .append(
+                  String.format(
+                      "{\"id\":%d,\"user\":\"user-%d\",\"event\":\"page_view\",\"score\":%f,"
+                          + "\"pad\":\"",
+                      i, random.nextInt(10000), random.nextDouble()));
+      // random enough not to compress to nothing, repetitive enough to compress like real events
+      while (value.length() < size - 2) {
+        value.append(PADDING[random.nextInt(8) + (i % 8) * 6]);
+      }
+      values[i] = value.append("\"}").toString().getBytes(StandardCharsets.UTF_8);
+    }
+    return values;
+  }
+
+  static byte[][] keys(int count) {
+    byte[][] keys = new byte[count][];
+    for (int i = 0; i < count; i++) {
+      keys[i] = ("key-" + i).getBytes(StandardCharsets.UTF_8);
+    }
+    return keys;
+  }
+}
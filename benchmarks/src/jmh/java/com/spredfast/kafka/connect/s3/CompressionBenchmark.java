@@ -0,0 +1,126 @@
+package com.spredfast.kafka.connect.s3;
+
+import com.spredfast.kafka.connect.s3.sink.BlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.HeapBlockBuffer;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Throughput of a single {@link BlockGZIPFileWriter} with chunks compressed on the writing thread
+ * (threads = 1) or on a pool of the given size, for a few chunk sizes. Each operation writes 64MB
+ * of JSON-ish records, so MB/s = 64 * ops/s.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CompressionBenchmark {
+
+  private static final int BYTES_PER_OP = 64 << 20;
+
+  @Param({"1", "2", "4", "8"})
+  public int threads;
+
+  // compressed_block_size
+  @Param({"1048576", "4194304", "16777216"})
+  public long chunkBytes;
+
+  @Param({"100", "1000"})
+  public int recordBytes;
+
+  private byte[][] records;
+
+  private ExecutorService pool;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    records = BenchmarkRecords.values(1024, recordBytes);
+    pool = threads > 1 ? Executors.newFixedThreadPool(threads) : null;
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    if (pool != null) {
+      pool.shutdownNow();
+    }
+  }
+
+  @Benchmark
+  public long write() throws Exception {
+    DiscardingBuffer data = new DiscardingBuffer();
+    BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(
+            data,
+            new HeapBlockBuffer(),
+            0,
+            chunkBytes,
+            new byte[0],
+            BlockCodecs.GZIP,
+            pool,
+            threads);
+    long written = 0;
+    for (int i = 0; written < BYTES_PER_OP; i++) {
+      byte[] record = records[i % records.length];
+      writer.write(record, 1);
+      written += record.length;
+    }
+    writer.close();
+    return data.size();
+  }
+
+  /** Counts the compressed bytes and throws them away, so only compression is measured. */
+  private static class DiscardingBuffer implements BlockBuffer {
+    private long size = 0;
+
+    private final OutputStream out =
+        new OutputStream() {
+          @Override
+          public void write(int b) {
+            size++;
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) {
+            size += len;
+          }
+        };
+
+    @Override
+    public OutputStream outputStream() {
+      return out;
+    }
+
+    @Override
+    public long size() {
+      return size;
+    }
+
+    @Override
+    public InputStream inputStream() {
+      throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Optional<File> file() {
+      return Optional.empty();
+    }
+
+    @Override
+    public void delete() {}
+  }
+}
@@ -0,0 +1,82 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Encoding records with each format's streaming writer, which is what the sink does for every
+ * record before it is compressed. The encoded bytes are counted and thrown away.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class EncodingBenchmark {
+
+  private static final int RECORDS = 1024;
+
+  @Param({"text", "binary"})
+  public String format;
+
+  @Param({"100", "1000", "10000"})
+  public int recordBytes;
+
+  @Param({"true", "false"})
+  public boolean keys;
+
+  private byte[][] recordKeys;
+
+  private byte[][] values;
+
+  private S3RecordsWriter writer;
+
+  private final CountingStream out = new CountingStream();
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    values = BenchmarkRecords.values(RECORDS, recordBytes);
+    recordKeys = keys ? BenchmarkRecords.keys(RECORDS) : new byte[RECORDS][];
+    Map<String, String> props = new HashMap<>();
+    props.put("format", format);
+    if (keys) {
+      props.put("format.include.keys", "true");
+      props.put("format.key.delimiter", "\t");
+    }
+    writer = Configure.createFormat(props).newWriter();
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(RECORDS)
+  public long write() throws IOException {
+    for (int i = 0; i < RECORDS; i++) {
+      writer.write("topic", 0, recordKeys[i], values[i], out);
+    }
+    return out.size;
+  }
+
+  private static class CountingStream extends OutputStream {
+    long size = 0;
+
+    @Override
+    public void write(int b) {
+      size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      size += len;
+    }
+  }
+}
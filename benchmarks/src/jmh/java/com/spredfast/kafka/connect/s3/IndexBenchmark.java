@@ -0,0 +1,89 @@
+package com.spredfast.kafka.connect.s3;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.ObjectReader;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * What resuming in the middle of a file costs once its index has been fetched: decoding the JSON
+ * index object or the binary index footer, and finding the chunk holding an offset in it.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class IndexBenchmark {
+
+  private static final long RECORDS_PER_CHUNK = 2000;
+
+  @Param({"16", "1024", "16384"})
+  public int chunks;
+
+  private final ObjectReader jsonReader = new ObjectMapper().readerFor(ChunksIndex.class);
+
+  private byte[] json;
+
+  private byte[] footer;
+
+  private ChunksIndex index;
+
+  private long offset;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    List<ChunkDescriptor> descriptors = new ArrayList<>(chunks);
+    long byteOffset = 10;
+    for (int i = 0; i < chunks; i++) {
+      ChunkDescriptor chunk = new ChunkDescriptor();
+      chunk.first_record_offset = 123_456_789L + i * RECORDS_PER_CHUNK;
+      chunk.num_records = RECORDS_PER_CHUNK;
+      chunk.byte_offset = byteOffset;
+      chunk.byte_length = 200_000 + (i * 7919) % 5000;
+      chunk.byte_length_uncompressed = 1 << 20;
+      byteOffset += chunk.byte_length;
+      descriptors.add(chunk);
+    }
+    index = ChunksIndex.of(descriptors);
+    json = new ObjectMapper().writeValueAsBytes(index);
+    footer = IndexFooter.encode(descriptors);
+    // near the end, the worst case for a scan
+    offset = index.lastOffset() - RECORDS_PER_CHUNK / 2;
+  }
+
+  @Benchmark
+  public ChunksIndex decodeJson() throws IOException {
+    return jsonReader.readValue(json);
+  }
+
+  @Benchmark
+  public ChunksIndex decodeFooter() throws IOException {
+    return IndexFooter.decode(footer);
+  }
+
+  @Benchmark
+  public ChunkDescriptor chunkContaining() {
+    return index.chunkContaining(offset).get();
+  }
+
+  /** The linear scan chunkContaining used to do, for comparison. */
+  @Benchmark
+  public ChunkDescriptor chunkContainingScan() {
+    return index.chunks.stream()
+        .filter(chunk -> chunk.first_record_offset + chunk.num_records > offset)
+        .findFirst()
+        .get();
+  }
+}
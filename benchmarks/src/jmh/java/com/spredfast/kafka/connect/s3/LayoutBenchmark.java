@@ -0,0 +1,69 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.TopicPartition;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Building a key for every uploaded file and parsing every listed key, for the built in layouts and
+ * a template layout of the same shape as grouped_by_topic. The source parses each key of a listing
+ * at least twice, so parsing is the hot one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class LayoutBenchmark {
+
+  @Param({"grouped_by_date", "grouped_by_topic", "template", "template_hive"})
+  public String layout;
+
+  private Layout.Builder builder;
+
+  private Layout.Parser parser;
+
+  private BlockMetadata block;
+
+  private String key;
+
+  @Setup(Level.Trial)
+  public void setUp() {
+    Map<String, String> props = new HashMap<>();
+    switch (layout) {
+      case "template":
+        props.put("layout", "template");
+        props.put("layout.template", "{topic}/{yyyy-MM-dd}/{partition:05}-{offset:012}");
+        break;
+      case "template_hive":
+        props.put("layout", "template");
+        props.put("layout.template", "{topic}/dt={yyyy-MM-dd}/hr={HH}/{partition:05}-{offset:012}");
+        break;
+      default:
+        props.put("layout", layout);
+    }
+    Layout configured = Configure.createLayout(props);
+    builder = configured.getBuilder();
+    parser = configured.getParser();
+    block = new BlockMetadata(new TopicPartition("some-events-topic", 17), 1_234_567_890L);
+    key = "prefix/" + builder.buildBlockPath(block) + ".gz";
+  }
+
+  @Benchmark
+  public String build() {
+    return builder.buildBlockPath(block);
+  }
+
+  @Benchmark
+  public BlockMetadata parse() {
+    return parser.parseBlockPath(key);
+  }
+}
@@ -0,0 +1,181 @@
+package com.spredfast.kafka.connect.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.spredfast.kafka.connect.s3.sink.BlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.S3SinkTask;
+import com.spredfast.kafka.connect.s3.sink.S3Writer;
+import com.spredfast.kafka.connect.s3.sink.S3Writer.CursorMode;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+/**
+ * Cost of {@link S3SinkTask#put} per record, for batches of 500 records spread over a few
+ * partitions. Files roll every 16MB of records, so the cost includes closing them, but the task's
+ * {@link S3Writer} is a stub that uploads nowhere. Each iteration starts a fresh task.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class PutBenchmark {
+
+  private static final int BATCH_SIZE = 500;
+
+  @Param({"1", "8"})
+  public int partitions;
+
+  @Param({"text", "binary"})
+  public String format;
+
+  // the generic converter does the same as AlreadyBytesConverter, but isn't recognized as a
+  // passthrough, so comparing the two shows what skipping the converter saves
+  @Param({"bytes", "generic"})
+  public String converter;
+
+  @Param({"100", "1000"})
+  public int recordBytes;
+
+  @Param({"true", "false"})
+  public boolean keys;
+
+  private List<SinkRecord> batch;
+
+  private Path bufferDir;
+
+  private S3SinkTask task;
+
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    long timestamp = System.currentTimeMillis();
+    byte[][] values = BenchmarkRecords.values(BATCH_SIZE, recordBytes);
+    byte[][] keys = this.keys ? BenchmarkRecords.keys(BATCH_SIZE) : new byte[BATCH_SIZE][];
+    batch = new ArrayList<>(BATCH_SIZE);
+    // runs of records from each partition, the way a consumer poll returns them
+    int runLength = BATCH_SIZE / partitions;
+    for (int i = 0; i < BATCH_SIZE; i++) {
+      batch.add(
+          new SinkRecord(
+              "topic",
+              Math.min(i / runLength, partitions - 1),
+              Schema.BYTES_SCHEMA,
+              keys[i],
+              Schema.BYTES_SCHEMA,
+              values[i],
+              i,
+              timestamp,
+              TimestampType.CREATE_TIME));
+    }
+    bufferDir = Files.createTempDirectory("put-benchmark");
+  }
+
+  @Setup(Level.Iteration)
+  public void startTask() {
+    Map<String, String> props = new HashMap<>();
+    props.put("name", "put-benchmark");
+    props.put("s3.bucket", "bucket");
+    props.put("s3.region", "us-east-1");
+    props.put("s3.endpoint", "http://localhost:1");
+    props.put("local.buffer.dir", bufferDir.toString());
+    props.put("local.buffer.mode", "memory");
+    props.put("format", format);
+    if (keys) {
+      props.put("format.include.keys", "true");
+      props.put("format.key.delimiter", "\t");
+    }
+    props.put("rollover.uncompressed.bytes", Integer.toString(16 << 20));
+    String converterClass =
+        converter.equals("bytes")
+            ? AlreadyBytesConverter.class.getName()
+            : GenericBytesConverter.class.getName();
+    props.put("key.converter", converterClass);
+    props.put("value.converter", converterClass);
+    task = new StubUploadTask();
+    task.initialize(new NoAssignmentContext());
+    task.start(props);
+  }
+
+  @TearDown(Level.Iteration)
+  public void stopTask() {
+    task.stop();
+  }
+
+  @TearDown(Level.Trial)
+  public void tearDown() throws IOException {
+    try (Stream<Path> files = Files.walk(bufferDir)) {
+      files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+    }
+  }
+
+  @Benchmark
+  @OperationsPerInvocation(BATCH_SIZE)
+  public void put() {
+    task.put(batch);
+  }
+
+  private static class StubUploadTask extends S3SinkTask {
+    @Override
+    protected S3Writer newS3Writer(String bucket, String prefix, Layout layout, AmazonS3 s3Client) {
+      return new S3Writer(bucket, prefix, layout, s3Client, BlockCodecs.GZIP, CursorMode.NONE) {
+        @Override
+        public void putChunk(BlockBuffer data, BlockBuffer index, BlockMetadata metadata) {}
+      };
+    }
+  }
+
+  public static class GenericBytesConverter extends AlreadyBytesConverter {}
+
+  private static class NoAssignmentContext implements SinkTaskContext {
+    @Override
+    public Map<String, String> configs() {
+      return Collections.emptyMap();
+    }
+
+    @Override
+    public void offset(Map<TopicPartition, Long> offsets) {}
+
+    @Override
+    public void offset(TopicPartition tp, long offset) {}
+
+    @Override
+    public void timeout(long timeoutMs) {}
+
+    @Override
+    public Set<TopicPartition> assignment() {
+      return Collections.emptySet();
+    }
+
+    @Override
+    public void pause(TopicPartition... partitions) {}
+
+    @Override
+    public void resume(TopicPartition... partitions) {}
+
+    @Override
+    public void requestCommit() {}
+  }
+}
@@ -9,6 +9,10 @@ import org.apache.kafka.connect.storage.Converter;
 /** No conversion. Bytes from Kafka are preserved as is and we validate that only bytes go out. */
 public class AlreadyBytesConverter implements Converter {
 
+  // lives in connect-runtime, which isn't on our classpath
+  private static final String BYTE_ARRAY_CONVERTER =
+      "org.apache.kafka.connect.converters.ByteArrayConverter";
+
   @Override
   public void configure(Map<String, ?> configs, boolean isKey) {}
 
@@ -27,4 +31,46 @@ public class AlreadyBytesConverter implements Converter {
   public SchemaAndValue toConnectData(String topic, byte[] value) {
     return new SchemaAndValue(Schema.BYTES_SCHEMA, value);
   }
+
+  /**
+   * Whether the converter leaves bytes as they are, so tasks can skip calling it for byte[]
+   * records. True for this converter and Connect's ByteArrayConverter, but not subclasses, which
+   * may convert.
+   */
+  public static boolean isPassthrough(Converter converter) {
+    return passthroughSchema(converter) != null;
+  }
+
+  /**
+   * @return the schema a passthrough converter gives the bytes it reads, or null if the converter
+   *     isn't a passthrough.
+   */
+  public static Schema passthroughSchema(Converter converter) {
+    if (converter == null) {
+      return null;
+    }
+    if (converter.getClass() == AlreadyBytesConverter.class) {
+      return Schema.BYTES_SCHEMA;
+    }
+    if (converter.getClass().getName().equals(BYTE_ARRAY_CONVERTER)) {
+      return Schema.OPTIONAL_BYTES_SCHEMA;
+    }
+    return null;
+  }
+
+  /**
+   * Same result as {@link Converter#fromConnectData} of a passthrough converter, without calling it
+   * for the usual case of a byte[] (or null) with a bytes schema.
+   */
+  public static byte[] fromConnectData(
+      Converter converter, boolean passthrough, String topic, Schema schema, Object value) {
+    if (passthrough
+        && (value == null || value instanceof byte[])
+        && (schema == null
+            || schema == Schema.BYTES_SCHEMA
+            || schema == Schema.OPTIONAL_BYTES_SCHEMA)) {
+      return (byte[]) value;
+    }
+    return converter.fromConnectData(topic, schema, value);
+  }
 }
@@ -0,0 +1,144 @@
+package com.spredfast.kafka.connect.s3;
+
+import com.spredfast.kafka.connect.s3.json.ChunkCheckpoint;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Compact encoding of a {@link ChunksIndex}, a few bytes per chunk rather than the hundred or so
+ * the JSON takes.
+ *
+ * <p>A varint count is followed by five varints per chunk: where its first record and first byte
+ * are relative to the end of the previous chunk (zigzag encoded, and almost always 0), the number
+ * of records, the compressed length and the uncompressed length. Then the number of checkpoints in
+ * the chunk, and the record and byte of each relative to the one before, starting at the chunk's.
+ * Then 0 if the chunk has no timestamps, or 1 followed by its minimum timestamp relative to the
+ * previous chunk's (zigzag encoded) and the distance from it to the maximum.
+ */
+public final class BinaryChunksIndex {
+
+  private BinaryChunksIndex() {}
+
+  public static byte[] encode(List<ChunkDescriptor> chunks) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream(8 + chunks.size() * 12);
+    writeVarLong(out, chunks.size());
+    long nextOffset = 0;
+    long nextByte = 0;
+    long lastTimestamp = 0;
+    for (ChunkDescriptor chunk : chunks) {
+      writeVarLong(out, zigzag(chunk.first_record_offset - nextOffset));
+      writeVarLong(out, zigzag(chunk.byte_offset - nextByte));
+      writeVarLong(out, chunk.num_records);
+      writeVarLong(out, chunk.byte_length);
+      writeVarLong(out, chunk.byte_length_uncompressed);
+      List<ChunkCheckpoint> checkpoints =
+          chunk.checkpoints == null ? Collections.emptyList() : chunk.checkpoints;
+      writeVarLong(out, checkpoints.size());
+      long offset = chunk.first_record_offset;
+      long position = chunk.byte_offset;
+      for (ChunkCheckpoint checkpoint : checkpoints) {
+        writeVarLong(out, zigzag(checkpoint.record_offset - offset));
+        writeVarLong(out, zigzag(checkpoint.byte_offset - position));
+        offset = checkpoint.record_offset;
+        position = checkpoint.byte_offset;
+      }
+      if (chunk.min_timestamp == null) {
+        writeVarLong(out, 0);
+      } else {
+        writeVarLong(out, 1);
+        writeVarLong(out, zigzag(chunk.min_timestamp - lastTimestamp));
+        writeVarLong(out, chunk.max_timestamp - chunk.min_timestamp);
+        lastTimestamp = chunk.min_timestamp;
+      }
+      nextOffset = chunk.first_record_offset + chunk.num_records;
+      nextByte = chunk.byte_offset + chunk.byte_length;
+    }
+    return out.toByteArray();
+  }
+
+  /** Decode everything that remains in the buffer. */
+  public static ChunksIndex decode(ByteBuffer in) throws IOException {
+    try {
+      long count = readVarLong(in);
+      // every chunk takes at least 5 bytes, which bounds a corrupt count
+      if (count < 0 || count > in.remaining() / 5) {
+        throw new IOException("Corrupt binary index with " + count + " chunks");
+      }
+      List<ChunkDescriptor> chunks = new ArrayList<>((int) count);
+      long nextOffset = 0;
+      long nextByte = 0;
+      long lastTimestamp = 0;
+      for (long i = 0; i < count; i++) {
+        ChunkDescriptor chunk = new ChunkDescriptor();
+        chunk.first_record_offset = nextOffset + unzigzag(readVarLong(in));
+        chunk.byte_offset = nextByte + unzigzag(readVarLong(in));
+        chunk.num_records = readVarLong(in);
+        chunk.byte_length = readVarLong(in);
+        chunk.byte_length_uncompressed = readVarLong(in);
+        long checkpoints = readVarLong(in);
+        if (checkpoints < 0 || checkpoints > in.remaining() / 2) {
+          throw new IOException("Corrupt binary index with " + checkpoints + " checkpoints");
+        }
+        if (checkpoints > 0) {
+          chunk.checkpoints = new ArrayList<>((int) checkpoints);
+          long offset = chunk.first_record_offset;
+          long position = chunk.byte_offset;
+          for (long j = 0; j < checkpoints; j++) {
+            offset += unzigzag(readVarLong(in));
+            position += unzigzag(readVarLong(in));
+            chunk.checkpoints.add(ChunkCheckpoint.of(offset, position));
+          }
+        }
+        if (readVarLong(in) != 0) {
+          chunk.min_timestamp = lastTimestamp + unzigzag(readVarLong(in));
+          chunk.max_timestamp = chunk.min_timestamp + readVarLong(in);
+          lastTimestamp = chunk.min_timestamp;
+        }
+        nextOffset = chunk.first_record_offset + chunk.num_records;
+        nextByte = chunk.byte_offset + chunk.byte_length;
+        chunks.add(chunk);
+      }
+      if (in.hasRemaining()) {
+        throw new IOException(in.remaining() + " unexpected bytes after the binary index");
+      }
+      return ChunksIndex.of(chunks);
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated binary index", e);
+    }
+  }
+
+  private static long zigzag(long value) {
+    return (value << 1) ^ (value >> 63);
+  }
+
+  private static long unzigzag(long value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static void writeVarLong(ByteArrayOutputStream out, long value) {
+    while ((value & ~0x7FL) != 0) {
+      out.write((int) ((value & 0x7F) | 0x80));
+      value >>>= 7;
+    }
+    out.write((int) value);
+  }
+
+  private static long readVarLong(ByteBuffer in) throws IOException {
+    long value = 0;
+    for (int shift = 0; shift < 64; shift += 7) {
+      byte b = in.get();
+      value |= (long) (b & 0x7F) << shift;
+      if ((b & 0x80) == 0) {
+        return value;
+      }
+    }
+    throw new IOException("Malformed varint in binary index");
+  }
+}
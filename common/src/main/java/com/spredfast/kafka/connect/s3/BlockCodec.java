@@ -0,0 +1,75 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.stream.Collectors;
+
+/**
+ * Compression for the chunks of a block file.
+ *
+ * <p>Each chunk is compressed as a self-contained frame and the frames are concatenated, so a chunk
+ * can be decoded on its own starting at its byte_offset, and the whole object decodes as a single
+ * stream. The codec also decides the suffix of the data object, which is how readers know how to
+ * decode it.
+ */
+public interface BlockCodec {
+
+  /** The name used to configure the codec. Matched case insensitively. */
+  String name();
+
+  /** The suffix of data objects written with this codec, including the dot. */
+  String extension();
+
+  /**
+   * Start a new frame. Closing the returned stream ends the frame and closes out.
+   *
+   * @param out where the compressed bytes go.
+   */
+  OutputStream compress(OutputStream out) throws IOException;
+
+  /** Decode one or more concatenated frames. */
+  InputStream decompress(InputStream in) throws IOException;
+
+  /**
+   * Whether the codec can mark points inside a frame where decoding can start, with {@link
+   * #checkpoint(OutputStream)} and {@link #decompressFromCheckpoint(InputStream)}.
+   */
+  boolean supportsCheckpoints();
+
+  /**
+   * Flush a frame so that decoding can start at the position the output has reached, without the
+   * bytes before it.
+   *
+   * @param frame a stream returned by {@link #compress(OutputStream)}.
+   */
+  void checkpoint(OutputStream frame) throws IOException;
+
+  /** Decode from a checkpoint to the end of its frame, then any frames that follow it. */
+  InputStream decompressFromCheckpoint(InputStream in) throws IOException;
+
+  /** Regex group matching the extension of any of the built in codecs. */
+  String EXTENSION_PATTERN =
+      Arrays.stream(BlockCodecs.values())
+          .map(codec -> codec.extension().substring(1))
+          .collect(Collectors.joining("|", "\\.(?:", ")"));
+
+  static BlockCodec forName(String name) {
+    return Arrays.stream(BlockCodecs.values())
+        .filter(codec -> codec.name().equalsIgnoreCase(name))
+        .findFirst()
+        .orElseThrow(() -> new IllegalArgumentException("Unknown compression type: " + name));
+  }
+
+  /**
+   * @return the codec that wrote the data object with the given key, if it is a data object.
+   */
+  static Optional<BlockCodec> forKey(String key) {
+    return Arrays.stream(BlockCodecs.values())
+        .filter(codec -> key.endsWith(codec.extension()))
+        .map(BlockCodec.class::cast)
+        .findFirst();
+  }
+}
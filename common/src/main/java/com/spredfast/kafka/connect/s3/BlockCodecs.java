@@ -0,0 +1,122 @@
+package com.spredfast.kafka.connect.s3;
+
+import com.github.luben.zstd.ZstdInputStream;
+import com.github.luben.zstd.ZstdOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.GZIPInputStream;
+import net.jpountz.lz4.LZ4FrameInputStream;
+import net.jpountz.lz4.LZ4FrameOutputStream;
+import org.xerial.snappy.SnappyFramedInputStream;
+import org.xerial.snappy.SnappyFramedOutputStream;
+
+/**
+ * The built in codecs. The compression libraries other than gzip are the ones Kafka clients use, so
+ * they are already on the Connect worker's classpath.
+ */
+public enum BlockCodecs implements BlockCodec {
+  GZIP(".gz") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new GzipCheckpoints.Output(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      // reads all the members, not just the first one
+      return new GZIPInputStream(in);
+    }
+
+    @Override
+    public boolean supportsCheckpoints() {
+      return true;
+    }
+
+    @Override
+    public void checkpoint(OutputStream frame) throws IOException {
+      ((GzipCheckpoints.Output) frame).checkpoint();
+    }
+
+    @Override
+    public InputStream decompressFromCheckpoint(InputStream in) {
+      return new GzipCheckpoints.Input(in);
+    }
+  },
+
+  ZSTD(".zst") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new ZstdOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new ZstdInputStream(in);
+    }
+  },
+
+  LZ4(".lz4") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new LZ4FrameOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new LZ4FrameInputStream(in);
+    }
+  },
+
+  SNAPPY(".sz") {
+    @Override
+    public OutputStream compress(OutputStream out) throws IOException {
+      return new SnappyFramedOutputStream(out);
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) throws IOException {
+      return new SnappyFramedInputStream(in);
+    }
+  },
+
+  NONE(".bin") {
+    @Override
+    public OutputStream compress(OutputStream out) {
+      return out;
+    }
+
+    @Override
+    public InputStream decompress(InputStream in) {
+      return in;
+    }
+  };
+
+  private final String extension;
+
+  BlockCodecs(String extension) {
+    this.extension = extension;
+  }
+
+  @Override
+  public String extension() {
+    return extension;
+  }
+
+  // not defaults in BlockCodec, which would initialize it, and its values(), before these exist
+
+  @Override
+  public boolean supportsCheckpoints() {
+    return false;
+  }
+
+  @Override
+  public void checkpoint(OutputStream frame) throws IOException {
+    throw new UnsupportedOperationException(name() + " has no checkpoints");
+  }
+
+  @Override
+  public InputStream decompressFromCheckpoint(InputStream in) throws IOException {
+    throw new UnsupportedOperationException(name() + " has no checkpoints");
+  }
+}
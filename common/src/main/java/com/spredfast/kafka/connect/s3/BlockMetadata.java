@@ -5,10 +5,16 @@ import org.apache.kafka.common.TopicPartition;
 public final class BlockMetadata {
   private final TopicPartition topicPartition;
   private final long startOffset;
+  private final Long firstRecordTimestamp;
 
   public BlockMetadata(TopicPartition topicPartition, long startOffset) {
+    this(topicPartition, startOffset, null);
+  }
+
+  public BlockMetadata(TopicPartition topicPartition, long startOffset, Long firstRecordTimestamp) {
     this.topicPartition = topicPartition;
     this.startOffset = startOffset;
+    this.firstRecordTimestamp = firstRecordTimestamp;
   }
 
   public TopicPartition getTopicPartition() {
@@ -18,4 +24,12 @@ public final class BlockMetadata {
   public long getStartOffset() {
     return startOffset;
   }
+
+  /**
+   * @return the timestamp of the block's first record, or null if it had none or isn't known, as
+   *     when the metadata was parsed from a path.
+   */
+  public Long getFirstRecordTimestamp() {
+    return firstRecordTimestamp;
+  }
 }
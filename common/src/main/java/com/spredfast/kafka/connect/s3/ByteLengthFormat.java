@@ -1,5 +1,7 @@
 package com.spredfast.kafka.connect.s3;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.ByteBuffer;
 import java.util.Map;
 import java.util.Optional;
@@ -34,22 +36,49 @@ public class ByteLengthFormat implements S3RecordFormat, Configurable {
 
   @Override
   public S3RecordsWriter newWriter() {
-    return this::encode;
+    return new S3RecordsWriter() {
+      // scratch space for the lengths, so streaming a record doesn't allocate
+      private final byte[] length = new byte[LEN_SIZE];
+
+      @Override
+      public byte[] write(ProducerRecord<byte[], byte[]> record) {
+        return encode(record);
+      }
+
+      @Override
+      public void write(String topic, int partition, byte[] key, byte[] value, OutputStream out)
+          throws IOException {
+        if (includesKeys.isPresent()) {
+          writeWithLength(key, out);
+        }
+        writeWithLength(value, out);
+      }
+
+      private void writeWithLength(byte[] bytes, OutputStream out) throws IOException {
+        int len = bytes == null ? 0 : bytes.length;
+        length[0] = (byte) (len >>> 24);
+        length[1] = (byte) (len >>> 16);
+        length[2] = (byte) (len >>> 8);
+        length[3] = (byte) len;
+        out.write(length);
+        if (len > 0) {
+          out.write(bytes);
+        }
+      }
+    };
   }
 
   private byte[] encode(ProducerRecord<byte[], byte[]> r) {
     // write optionally the key, and the value, each preceded by their length
-    byte[] key = includesKeys.flatMap(t -> Optional.ofNullable(r.key())).orElse(NO_BYTES);
-    byte[] value = Optional.ofNullable(r.value()).orElse(NO_BYTES);
-    byte[] result =
-        new byte
-            [LEN_SIZE + value.length + (includesKeys.map(t -> key.length + LEN_SIZE).orElse(0))];
+    boolean withKey = includesKeys.isPresent();
+    byte[] key = withKey && r.key() != null ? r.key() : NO_BYTES;
+    byte[] value = r.value() != null ? r.value() : NO_BYTES;
+    byte[] result = new byte[LEN_SIZE + value.length + (withKey ? key.length + LEN_SIZE : 0)];
     ByteBuffer wrapped = ByteBuffer.wrap(result);
-    includesKeys.ifPresent(
-        t -> {
-          wrapped.putInt(key.length);
-          wrapped.put(key);
-        });
+    if (withKey) {
+      wrapped.putInt(key.length);
+      wrapped.put(key);
+    }
     wrapped.putInt(value.length);
     wrapped.put(value);
     return result;
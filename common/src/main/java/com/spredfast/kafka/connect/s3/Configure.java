@@ -159,11 +159,24 @@ public abstract class Configure {
         return new GroupedByDateLayout(dateSupplier);
       case "grouped_by_topic":
         return new GroupedByTopicLayout(dateSupplier);
+      case "template":
+        String template = props.get("layout.template");
+        if (template == null) {
+          throw new IllegalArgumentException("layout.template is required for the template layout");
+        }
+        return new TemplateLayout(template);
+      case "event_time":
+        return new EventTimeLayout(
+            EventTimeLayout.Granularity.forName(props.getOrDefault("layout.granularity", "day")));
       default:
         throw new IllegalArgumentException("Unknown layout type: " + type);
     }
   }
 
+  public static BlockCodec createCodec(Map<String, String> props) {
+    return BlockCodec.forName(props.getOrDefault("compression.type", "gzip"));
+  }
+
   public static Map<String, String> parseTags(String tagString) {
     return ofNullable(tagString)
         .map(
@@ -0,0 +1,144 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Groups blocks by topic, then by the UTC day or hour of their first record's timestamp, rather
+ * than by when they were uploaded. Late data lands under the bucket it belongs to, as long as the
+ * sink rolls files at bucket boundaries so that no file spans two of them.
+ *
+ * <p>Blocks whose first record has no timestamp go under the current bucket by the wall clock.
+ *
+ * <p>The keys of a partition don't sort in offset order, since a late file sorts before the files
+ * of later buckets that came before it, so the source can't read this layout.
+ */
+public class EventTimeLayout implements Layout {
+
+  public enum Granularity {
+    DAY("yyyy-MM-dd", 86_400_000L),
+    HOUR("yyyy-MM-dd/HH", 3_600_000L);
+
+    private final DateTimeFormatter format;
+    private final long millis;
+
+    Granularity(String pattern, long millis) {
+      this.format = DateTimeFormatter.ofPattern(pattern).withZone(ZoneOffset.UTC);
+      this.millis = millis;
+    }
+
+    public static Granularity forName(String name) {
+      try {
+        return valueOf(name.toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Unknown layout granularity: " + name);
+      }
+    }
+
+    /**
+     * The start of the bucket holding the timestamp. UTC days and hours start at epoch multiples.
+     */
+    public long bucketOf(long timestamp) {
+      return Math.floorDiv(timestamp, millis) * millis;
+    }
+
+    String format(long timestamp) {
+      return format.format(Instant.ofEpochMilli(timestamp));
+    }
+  }
+
+  private final Granularity granularity;
+
+  private final LongSupplier clock;
+
+  public EventTimeLayout(Granularity granularity) {
+    this(granularity, System::currentTimeMillis);
+  }
+
+  EventTimeLayout(Granularity granularity, LongSupplier clock) {
+    this.granularity = granularity;
+    this.clock = clock;
+  }
+
+  public Granularity getGranularity() {
+    return granularity;
+  }
+
+  public Layout.Builder getBuilder() {
+    return new Builder(granularity, clock);
+  }
+
+  public Layout.Parser getParser() {
+    return new Parser();
+  }
+
+  static class Builder implements Layout.Builder {
+
+    private final Granularity granularity;
+
+    private final LongSupplier clock;
+
+    Builder(Granularity granularity, LongSupplier clock) {
+      this.granularity = granularity;
+      this.clock = clock;
+    }
+
+    @Override
+    public String buildBlockPath(BlockMetadata blockMetadata) {
+      final TopicPartition tp = blockMetadata.getTopicPartition();
+      Long timestamp = blockMetadata.getFirstRecordTimestamp();
+      return String.format(
+          "%s/%s/%05d-%012d",
+          tp.topic(),
+          granularity.format(timestamp == null ? clock.getAsLong() : timestamp),
+          tp.partition(),
+          blockMetadata.getStartOffset());
+    }
+
+    @Override
+    public String buildIndexPath(TopicPartition topicPartition) {
+      return String.format(
+          "%s/last_chunk_index.%05d.txt", topicPartition.topic(), topicPartition.partition());
+    }
+
+    @Override
+    public String buildListingPrefix(TopicPartition topicPartition) {
+      return topicPartition.topic() + "/";
+    }
+  }
+
+  public static class Parser implements Layout.Parser {
+
+    private static final Pattern KEY_PATTERN =
+        Pattern.compile(
+            // match the / or the start of the key, so we shouldn't have to worry about the prefix
+            "(/|^)"
+                // assuming no / in topic names
+                + "(?<topic>[^/]+?)/"
+                + "\\d{4}-\\d{2}-\\d{2}/"
+                + "(\\d{2}/)?"
+                + "(?<partition>\\d{5})-"
+                + "(?<offset>\\d{12})"
+                + BlockCodec.EXTENSION_PATTERN
+                + "$");
+
+    @Override
+    public BlockMetadata parseBlockPath(String path) {
+      final Matcher matcher = KEY_PATTERN.matcher(path);
+      if (!matcher.find()) {
+        throw new IllegalArgumentException("Invalid block path: " + path);
+      }
+      final String topic = matcher.group("topic");
+      final int partition = Integer.parseInt(matcher.group("partition"));
+      final long startOffset = Long.parseLong(matcher.group("offset"));
+
+      return new BlockMetadata(new TopicPartition(topic, partition), startOffset);
+    }
+  }
+}
@@ -53,7 +53,9 @@ public class GroupedByDateLayout implements Layout {
                 // assuming no / in topic names
                 + "(?<topic>[^/]+?)-"
                 + "(?<partition>\\d{5})-"
-                + "(?<offset>\\d{12})\\.gz$");
+                + "(?<offset>\\d{12})"
+                + BlockCodec.EXTENSION_PATTERN
+                + "$");
 
     @Override
     public BlockMetadata parseBlockPath(String path) {
@@ -42,6 +42,11 @@ public class GroupedByTopicLayout implements Layout {
       return String.format(
           "%s/last_chunk_index.%05d.txt", topicPartition.topic(), topicPartition.partition());
     }
+
+    @Override
+    public String buildListingPrefix(TopicPartition topicPartition) {
+      return topicPartition.topic() + "/";
+    }
   }
 
   public static class Parser implements Layout.Parser {
@@ -54,7 +59,9 @@ public class GroupedByTopicLayout implements Layout {
                 + "(?<topic>[^/]+?)/"
                 + "(?<date>[^/]+?)/"
                 + "(?<partition>\\d{5})-"
-                + "(?<offset>\\d{12})\\.gz$");
+                + "(?<offset>\\d{12})"
+                + BlockCodec.EXTENSION_PATTERN
+                + "$");
 
     @Override
     public BlockMetadata parseBlockPath(String path) {
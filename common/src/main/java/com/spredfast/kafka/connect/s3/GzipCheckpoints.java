@@ -0,0 +1,123 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Checkpoints in gzip members. A deflate full flush byte aligns the output and resets the
+ * compression history, so a raw inflater can start from there. The member's CRC covers all of it,
+ * so a member read from a checkpoint is not verified.
+ */
+final class GzipCheckpoints {
+
+  private static final int BUFFER = 8192;
+
+  // CRC-32 and length after each deflate stream
+  private static final int TRAILER = 8;
+
+  private GzipCheckpoints() {}
+
+  static final class Output extends GZIPOutputStream {
+    Output(OutputStream out) throws IOException {
+      super(out);
+    }
+
+    void checkpoint() throws IOException {
+      if (def.finished()) {
+        return;
+      }
+      int len;
+      while ((len = def.deflate(buf, 0, buf.length, Deflater.FULL_FLUSH)) > 0) {
+        out.write(buf, 0, len);
+        if (len < buf.length) {
+          break;
+        }
+      }
+    }
+  }
+
+  /** The rest of the member after the checkpoint, then the members after it. */
+  static final class Input extends InputStream {
+    private final PushbackInputStream in;
+    private InputStream current;
+    private boolean inMember = true;
+
+    Input(InputStream in) {
+      this.in = new PushbackInputStream(in, BUFFER);
+      this.current = new RestOfMember(this.in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      byte[] b = new byte[1];
+      return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      while (current != null) {
+        int read = current.read(b, off, len);
+        if (read != -1) {
+          return read;
+        }
+        current = inMember ? followingMembers() : null;
+      }
+      return -1;
+    }
+
+    private InputStream followingMembers() throws IOException {
+      inMember = false;
+      for (int i = 0; i < TRAILER; i++) {
+        if (in.read() == -1) {
+          return null;
+        }
+      }
+      int next = in.read();
+      if (next == -1) {
+        return null;
+      }
+      in.unread(next);
+      return new GZIPInputStream(in, BUFFER);
+    }
+
+    @Override
+    public void close() throws IOException {
+      in.close();
+    }
+  }
+
+  /** Inflates raw deflate data, handing back whatever it read past the end of it. */
+  private static final class RestOfMember extends InflaterInputStream {
+    private final PushbackInputStream source;
+    private boolean ended = false;
+
+    RestOfMember(PushbackInputStream source) {
+      super(source, new Inflater(true), BUFFER);
+      this.source = source;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int length) throws IOException {
+      if (ended) {
+        return -1;
+      }
+      int read = super.read(b, off, length);
+      if (read == -1) {
+        ended = true;
+        int remaining = inf.getRemaining();
+        if (remaining > 0) {
+          source.unread(buf, len - remaining, remaining);
+        }
+        inf.end();
+      }
+      return read;
+    }
+  }
+}
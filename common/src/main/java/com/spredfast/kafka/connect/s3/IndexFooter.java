@@ -0,0 +1,187 @@
+package com.spredfast.kafka.connect.s3;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * The chunk index appended to a block file, so that the data and its index are a single object.
+ *
+ * <p>The footer is the index followed by a fixed size trailer: the length of the index, a format
+ * version and a magic number. A reader that knows the size of the object can fetch the tail of it
+ * with one ranged GET and find the index there. The footer doesn't look like a gzip member, so gzip
+ * readers stop at it, but the uploader also records its length in the object's user metadata so
+ * that readers of the whole object can leave it out before decompressing with other codecs.
+ *
+ * <p>The index is a {@link BinaryChunksIndex}.
+ */
+public final class IndexFooter {
+
+  /** User metadata holding the length of the footer, trailer included. */
+  public static final String METADATA_KEY = "index-footer-length";
+
+  public static final int TRAILER_SIZE = 16;
+
+  private static final long MAGIC = 0x4b43533349445846L; // KCS3IDXF
+
+  private static final int VERSION = 1;
+
+  /** How much of the tail to fetch at first. Enough for the index of a thousand chunks or so. */
+  private static final int TAIL_BYTES = 16384;
+
+  private IndexFooter() {}
+
+  public static byte[] encode(List<ChunkDescriptor> chunks) {
+    byte[] index = BinaryChunksIndex.encode(chunks);
+    return ByteBuffer.allocate(index.length + TRAILER_SIZE)
+        .put(index)
+        .putInt(index.length)
+        .putInt(VERSION)
+        .putLong(MAGIC)
+        .array();
+  }
+
+  /**
+   * @param tail the last bytes of an object.
+   * @return the length of the footer the tail ends with, or -1 if it doesn't end with one.
+   */
+  public static int length(byte[] tail) {
+    if (tail.length < TRAILER_SIZE) {
+      return -1;
+    }
+    ByteBuffer trailer = ByteBuffer.wrap(tail, tail.length - TRAILER_SIZE, TRAILER_SIZE);
+    int indexLength = trailer.getInt();
+    int version = trailer.getInt();
+    if (trailer.getLong() != MAGIC || version != VERSION || indexLength < 1) {
+      return -1;
+    }
+    return indexLength + TRAILER_SIZE;
+  }
+
+  /** Decode the footer that the tail ends with, which must hold all of it. */
+  public static ChunksIndex decode(byte[] tail) throws IOException {
+    int length = length(tail);
+    if (length < 0 || length > tail.length) {
+      throw new IOException("No complete index footer in " + tail.length + " bytes");
+    }
+    return BinaryChunksIndex.decode(
+        ByteBuffer.wrap(tail, tail.length - length, length - TRAILER_SIZE));
+  }
+
+  /**
+   * Read the footer of an object with one ranged GET of its tail, or two if the index is larger
+   * than expected.
+   *
+   * @return empty if the object has no footer, e.g. because its index is a separate object.
+   */
+  public static Optional<ChunksIndex> read(AmazonS3 s3, String bucket, String key, long size)
+      throws IOException {
+    if (size < TRAILER_SIZE) {
+      return Optional.empty();
+    }
+    byte[] tail = get(s3, bucket, key, Math.max(0, size - TAIL_BYTES), size);
+    int length = length(tail);
+    if (length < 0) {
+      return Optional.empty();
+    }
+    if (length > tail.length) {
+      tail = get(s3, bucket, key, size - length, size);
+    }
+    return Optional.of(decode(tail));
+  }
+
+  private static byte[] get(AmazonS3 s3, String bucket, String key, long start, long end)
+      throws IOException {
+    GetObjectRequest request = new GetObjectRequest(bucket, key).withRange(start, end - 1);
+    try (S3Object object = s3.getObject(request);
+        InputStream content = object.getObjectContent()) {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) (end - start));
+      byte[] buffer = new byte[8192];
+      for (int read = content.read(buffer); read != -1; read = content.read(buffer)) {
+        bytes.write(buffer, 0, read);
+      }
+      byte[] all = bytes.toByteArray();
+      // in case the range was ignored, only the end is of interest
+      if (all.length > end - start) {
+        byte[] tail = new byte[(int) (end - start)];
+        System.arraycopy(all, all.length - tail.length, tail, 0, tail.length);
+        return tail;
+      }
+      return all;
+    }
+  }
+
+  /**
+   * The content of a whole object without its footer, if it has one. Not for ranged GETs, since
+   * their content length isn't the object's.
+   */
+  public static InputStream dataOf(S3Object object) {
+    ObjectMetadata metadata = object.getObjectMetadata();
+    String footer = metadata == null ? null : metadata.getUserMetaDataOf(METADATA_KEY);
+    if (footer == null) {
+      return object.getObjectContent();
+    }
+    return new LimitedInputStream(
+        object.getObjectContent(), metadata.getContentLength() - Long.parseLong(footer));
+  }
+
+  private static class LimitedInputStream extends FilterInputStream {
+    private long remaining;
+
+    LimitedInputStream(InputStream in, long limit) {
+      super(in);
+      this.remaining = limit;
+    }
+
+    @Override
+    public int read() throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int b = in.read();
+      if (b != -1) {
+        remaining--;
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      if (remaining <= 0) {
+        return -1;
+      }
+      int read = in.read(b, off, (int) Math.min(len, remaining));
+      if (read != -1) {
+        remaining -= read;
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      long skipped = in.skip(Math.min(n, remaining));
+      remaining -= skipped;
+      return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+      return (int) Math.min(in.available(), remaining);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
+}
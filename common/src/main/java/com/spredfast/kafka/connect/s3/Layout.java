@@ -13,6 +13,14 @@ public interface Layout {
     String buildBlockPath(BlockMetadata blockMetadata);
 
     String buildIndexPath(TopicPartition topicPartition);
+
+    /**
+     * A prefix that every block of the partition is under, to narrow down listing them. The default
+     * lists everything.
+     */
+    default String buildListingPrefix(TopicPartition topicPartition) {
+      return "";
+    }
   }
 
   interface Parser {
@@ -0,0 +1,388 @@
+package com.spredfast.kafka.connect.s3;
+
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.LongSupplier;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Keys built from a template such as {@code
+ * {topic}/dt={yyyy-MM-dd}/hr={HH}/{partition:05}-{offset:012}}. {topic}, {partition} and {offset}
+ * are required, numbers may be zero padded to a width, and any other field is a fixed width UTC
+ * date pattern for the upload time, like the other layouts.
+ *
+ * <p>The template is compiled once. Building a key only appends to a StringBuilder, with the dates
+ * formatted at most once a second, and parsing matches the compiled fields from the end of the key
+ * back, so neither uses String.format or a regex.
+ */
+public class TemplateLayout implements Layout {
+
+  private final Field[] fields;
+
+  private final LongSupplier clock;
+
+  public TemplateLayout(String template) {
+    this(template, System::currentTimeMillis);
+  }
+
+  TemplateLayout(String template, LongSupplier clock) {
+    this.fields = compile(template);
+    this.clock = clock;
+  }
+
+  public Layout.Builder getBuilder() {
+    return new Builder(fields, clock);
+  }
+
+  public Layout.Parser getParser() {
+    return new Parser(fields);
+  }
+
+  private enum Kind {
+    LITERAL,
+    TOPIC,
+    PARTITION,
+    OFFSET,
+    DATE
+  }
+
+  private static final class Field {
+    final Kind kind;
+    // the text of a literal, or what a date looks like
+    final String text;
+    // zero padded width of a number, or the length of a date. 0 for variable
+    final int width;
+    final DateTimeFormatter date;
+
+    Field(Kind kind, String text, int width, DateTimeFormatter date) {
+      this.kind = kind;
+      this.text = text;
+      this.width = width;
+      this.date = date;
+    }
+  }
+
+  private static Field[] compile(String template) {
+    List<Field> fields = new ArrayList<>();
+    int pos = 0;
+    while (pos < template.length()) {
+      int open = template.indexOf('{', pos);
+      if (open != pos) {
+        int end = open < 0 ? template.length() : open;
+        fields.add(new Field(Kind.LITERAL, template.substring(pos, end), 0, null));
+        pos = end;
+        continue;
+      }
+      int close = template.indexOf('}', open);
+      if (close < 0) {
+        throw new IllegalArgumentException("Unclosed { in layout template: " + template);
+      }
+      fields.add(field(template.substring(open + 1, close), template));
+      pos = close + 1;
+    }
+
+    for (Kind required : Arrays.asList(Kind.TOPIC, Kind.PARTITION, Kind.OFFSET)) {
+      if (fields.stream().filter(field -> field.kind == required).count() != 1) {
+        throw new IllegalArgumentException(
+            "Layout template needs one {"
+                + required.name().toLowerCase(Locale.ROOT)
+                + "}: "
+                + template);
+      }
+    }
+    for (int i = 1; i < fields.size(); i++) {
+      // parsing goes backwards, so where a variable field starts is found by the field before it
+      if (fields.get(i).width == 0
+          && fields.get(i).kind != Kind.LITERAL
+          && fields.get(i - 1).kind != Kind.LITERAL) {
+        throw new IllegalArgumentException(
+            "Variable width fields must follow text in layout template: " + template);
+      }
+    }
+    return fields.toArray(new Field[0]);
+  }
+
+  private static Field field(String spec, String template) {
+    int colon = spec.indexOf(':');
+    String name = colon < 0 ? spec : spec.substring(0, colon);
+    int width = 0;
+    if (colon >= 0) {
+      try {
+        width = Integer.parseInt(spec.substring(colon + 1));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Bad width in layout template: " + template, e);
+      }
+    }
+    switch (name) {
+      case "topic":
+        return new Field(Kind.TOPIC, null, 0, null);
+      case "partition":
+        return new Field(Kind.PARTITION, null, width, null);
+      case "offset":
+        return new Field(Kind.OFFSET, null, width, null);
+      default:
+        if (colon >= 0 || spec.matches(".*[SnNAVzZOXx].*")) {
+          throw new IllegalArgumentException(
+              "Unsupported date pattern {" + spec + "} in layout template: " + template);
+        }
+        DateTimeFormatter date = DateTimeFormatter.ofPattern(spec).withZone(ZoneOffset.UTC);
+        String sample = date.format(Instant.EPOCH);
+        if (date.format(Instant.parse("2999-12-31T23:59:59Z")).length() != sample.length()) {
+          throw new IllegalArgumentException(
+              "Date pattern {" + spec + "} isn't fixed width in layout template: " + template);
+        }
+        return new Field(Kind.DATE, sample, sample.length(), date);
+    }
+  }
+
+  static class Builder implements Layout.Builder {
+
+    private final Field[] fields;
+
+    private final LongSupplier clock;
+
+    private final int length;
+
+    // the dates of the second they were formatted for, in field order
+    private volatile Dates dates;
+
+    Builder(Field[] fields, LongSupplier clock) {
+      this.fields = fields;
+      this.clock = clock;
+      int length = 0;
+      for (Field field : fields) {
+        length += field.kind == Kind.LITERAL ? field.text.length() : Math.max(field.width, 12);
+      }
+      this.length = length;
+    }
+
+    @Override
+    public String buildBlockPath(BlockMetadata blockMetadata) {
+      final TopicPartition tp = blockMetadata.getTopicPartition();
+      String[] formatted = dates().values;
+      StringBuilder key = new StringBuilder(length + tp.topic().length());
+      int date = 0;
+      for (Field field : fields) {
+        switch (field.kind) {
+          case LITERAL:
+            key.append(field.text);
+            break;
+          case TOPIC:
+            key.append(tp.topic());
+            break;
+          case PARTITION:
+            appendPadded(key, tp.partition(), field.width);
+            break;
+          case OFFSET:
+            appendPadded(key, blockMetadata.getStartOffset(), field.width);
+            break;
+          case DATE:
+            key.append(formatted[date++]);
+            break;
+        }
+      }
+      return key.toString();
+    }
+
+    private Dates dates() {
+      long second = Math.floorDiv(clock.getAsLong(), 1000L);
+      Dates current = dates;
+      if (current == null || current.second != second) {
+        current = new Dates(second, fields);
+        dates = current;
+      }
+      return current;
+    }
+
+    private static void appendPadded(StringBuilder key, long value, int width) {
+      for (int digits = digits(value); digits < width; digits++) {
+        key.append('0');
+      }
+      key.append(value);
+    }
+
+    private static int digits(long value) {
+      int digits = 1;
+      for (long rest = value / 10; rest > 0; rest /= 10) {
+        digits++;
+      }
+      return digits;
+    }
+
+    /** Next to the topic's blocks if the template starts with a topic directory. */
+    @Override
+    public String buildIndexPath(TopicPartition topicPartition) {
+      if (fields[0].kind == Kind.TOPIC
+          && fields.length > 1
+          && fields[1].kind == Kind.LITERAL
+          && fields[1].text.startsWith("/")) {
+        return topicPartition.topic()
+            + "/last_chunk_index."
+            + padded(topicPartition.partition(), 5)
+            + ".txt";
+      }
+      return "last_chunk_index."
+          + topicPartition.topic()
+          + "-"
+          + padded(topicPartition.partition(), 5)
+          + ".txt";
+    }
+
+    private static String padded(long value, int width) {
+      StringBuilder padded = new StringBuilder(width);
+      appendPadded(padded, value, width);
+      return padded.toString();
+    }
+
+    /** The leading text and topic of the template, up to the first other field. */
+    @Override
+    public String buildListingPrefix(TopicPartition topicPartition) {
+      StringBuilder prefix = new StringBuilder();
+      for (Field field : fields) {
+        if (field.kind == Kind.LITERAL) {
+          prefix.append(field.text);
+        } else if (field.kind == Kind.TOPIC) {
+          prefix.append(topicPartition.topic());
+        } else {
+          break;
+        }
+      }
+      return prefix.toString();
+    }
+  }
+
+  private static final class Dates {
+    final long second;
+    final String[] values;
+
+    Dates(long second, Field[] fields) {
+      this.second = second;
+      Instant instant = Instant.ofEpochSecond(second);
+      this.values =
+          Arrays.stream(fields)
+              .filter(field -> field.kind == Kind.DATE)
+              .map(field -> field.date.format(instant))
+              .toArray(String[]::new);
+    }
+  }
+
+  static class Parser implements Layout.Parser {
+
+    private final Field[] fields;
+
+    Parser(Field[] fields) {
+      this.fields = fields;
+    }
+
+    /** Matches the fields from the end of the path back, so any prefix before them is allowed. */
+    @Override
+    public BlockMetadata parseBlockPath(String path) {
+      int end = extensionStart(path);
+      String topic = null;
+      long partition = -1;
+      long offset = -1;
+      for (int i = fields.length - 1; i >= 0; i--) {
+        Field field = fields[i];
+        int start;
+        switch (field.kind) {
+          case LITERAL:
+            start = end - field.text.length();
+            if (start < 0 || !path.startsWith(field.text, start)) {
+              throw invalid(path);
+            }
+            break;
+          case TOPIC:
+            start = topicStart(path, end, i);
+            topic = path.substring(start, end);
+            break;
+          case DATE:
+            start = end - field.width;
+            if (start < 0 || !looksLike(path, start, field.text)) {
+              throw invalid(path);
+            }
+            break;
+          default:
+            // a number right after another field can only be as wide as its padding
+            boolean fixed = i > 0 && fields[i - 1].kind != Kind.LITERAL;
+            start = numberStart(path, end, field.width, fixed);
+            long value = Long.parseLong(path.substring(start, end));
+            if (field.kind == Kind.PARTITION) {
+              partition = value;
+            } else {
+              offset = value;
+            }
+        }
+        end = start;
+      }
+      // the template matches the end of the path, after a directory or its start
+      if ((end > 0 && path.charAt(end - 1) != '/')
+          || topic.isEmpty()
+          || partition > Integer.MAX_VALUE) {
+        throw invalid(path);
+      }
+      return new BlockMetadata(new TopicPartition(topic, (int) partition), offset);
+    }
+
+    private static int extensionStart(String path) {
+      for (BlockCodecs codec : BlockCodecs.values()) {
+        if (path.endsWith(codec.extension())) {
+          return path.length() - codec.extension().length();
+        }
+      }
+      throw invalid(path);
+    }
+
+    /** A topic runs back to the text before it, and never across a directory. */
+    private int topicStart(String path, int end, int index) {
+      int directory = path.lastIndexOf('/', end - 1) + 1;
+      if (index == 0) {
+        return directory;
+      }
+      String before = fields[index - 1].text;
+      int start = path.lastIndexOf(before, end - before.length());
+      if (start < 0 || start + before.length() < directory) {
+        throw invalid(path);
+      }
+      return start + before.length();
+    }
+
+    /** Numbers are zero padded to their width, but may have more digits. */
+    private static int numberStart(String path, int end, int width, boolean fixed) {
+      int start = end;
+      while (start > 0 && isDigit(path.charAt(start - 1)) && !(fixed && end - start == width)) {
+        start--;
+      }
+      if (start == end || end - start < width) {
+        throw invalid(path);
+      }
+      return start;
+    }
+
+    /** Digits where the sample date has digits, letters for letters, and the rest the same. */
+    private static boolean looksLike(String path, int start, String sample) {
+      for (int i = 0; i < sample.length(); i++) {
+        char expected = sample.charAt(i);
+        char actual = path.charAt(start + i);
+        if (isDigit(expected)
+            ? !isDigit(actual)
+            : Character.isLetter(expected) ? !Character.isLetter(actual) : expected != actual) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private static boolean isDigit(char c) {
+      return c >= '0' && c <= '9';
+    }
+
+    private static IllegalArgumentException invalid(String path) {
+      return new IllegalArgumentException("Invalid block path: " + path);
+    }
+  }
+}
@@ -1,12 +1,10 @@
 package com.spredfast.kafka.connect.s3;
 
-import static java.util.stream.Collectors.toList;
-
+import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.charset.Charset;
-import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Stream;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.Configurable;
 
@@ -48,28 +46,48 @@ public class TrailingDelimiterFormat implements S3RecordFormat, Configurable {
   }
 
   private byte[] encode(ProducerRecord<byte[], byte[]> record) {
-    List<byte[]> bytes =
-        Stream.of(
-                Optional.ofNullable(record.key()).filter(r -> keyDelimiter.isPresent()),
-                keyDelimiter,
-                Optional.ofNullable(record.value()),
-                Optional.of(valueDelimiter))
-            .map(o -> o.orElse(NO_BYTES))
-            .filter(arr -> arr.length > 0)
-            .collect(toList());
-    int size = bytes.stream().map(arr -> arr.length).reduce(0, (a, b) -> a + b);
-    byte[] result = new byte[size];
-    for (int i = 0, written = 0; i < bytes.size(); i++) {
-      byte[] src = bytes.get(i);
-      System.arraycopy(src, 0, result, written, src.length);
-      written += src.length;
-    }
+    byte[] key = keyDelimiter.isPresent() && record.key() != null ? record.key() : NO_BYTES;
+    byte[] keyDelim = keyDelimiter.orElse(NO_BYTES);
+    byte[] value = record.value() != null ? record.value() : NO_BYTES;
+    byte[] result = new byte[key.length + keyDelim.length + value.length + valueDelimiter.length];
+    int written = 0;
+    System.arraycopy(key, 0, result, written, key.length);
+    written += key.length;
+    System.arraycopy(keyDelim, 0, result, written, keyDelim.length);
+    written += keyDelim.length;
+    System.arraycopy(value, 0, result, written, value.length);
+    written += value.length;
+    System.arraycopy(valueDelimiter, 0, result, written, valueDelimiter.length);
     return result;
   }
 
+  private void encode(byte[] key, byte[] value, OutputStream out) throws IOException {
+    if (keyDelimiter.isPresent()) {
+      if (key != null) {
+        out.write(key);
+      }
+      out.write(keyDelimiter.get());
+    }
+    if (value != null) {
+      out.write(value);
+    }
+    out.write(valueDelimiter);
+  }
+
   @Override
   public S3RecordsWriter newWriter() {
-    return this::encode;
+    return new S3RecordsWriter() {
+      @Override
+      public byte[] write(ProducerRecord<byte[], byte[]> record) {
+        return encode(record);
+      }
+
+      @Override
+      public void write(String topic, int partition, byte[] key, byte[] value, OutputStream out)
+          throws IOException {
+        encode(key, value, out);
+      }
+    };
   }
 
   @Override
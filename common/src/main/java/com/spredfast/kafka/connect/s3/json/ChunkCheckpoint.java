@@ -0,0 +1,21 @@
+package com.spredfast.kafka.connect.s3.json;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+
+/** A point inside a chunk where decompression can start over, right before a record. */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class ChunkCheckpoint {
+
+  @JsonProperty public long record_offset;
+
+  /** Position in the file, like the chunk's byte_offset. */
+  @JsonProperty public long byte_offset;
+
+  public static ChunkCheckpoint of(long recordOffset, long byteOffset) {
+    ChunkCheckpoint checkpoint = new ChunkCheckpoint();
+    checkpoint.record_offset = recordOffset;
+    checkpoint.byte_offset = byteOffset;
+    return checkpoint;
+  }
+}
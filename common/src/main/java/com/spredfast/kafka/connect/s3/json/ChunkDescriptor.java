@@ -1,7 +1,11 @@
 package com.spredfast.kafka.connect.s3.json;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
+import java.util.List;
 
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class ChunkDescriptor {
 
   @JsonProperty public long byte_length_uncompressed;
@@ -13,4 +17,34 @@ public class ChunkDescriptor {
   @JsonProperty public long byte_offset;
 
   @JsonProperty public long first_record_offset;
+
+  /** Range of the timestamps of the chunk's records. Null if none of them had one. */
+  @JsonProperty
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Long min_timestamp;
+
+  @JsonProperty
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Long max_timestamp;
+
+  /** In record order. Null if the codec or the writer didn't make any. */
+  @JsonProperty
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public List<ChunkCheckpoint> checkpoints;
+
+  /**
+   * @return the last checkpoint at or before the offset, or null if there is none.
+   */
+  public ChunkCheckpoint checkpointBefore(long offset) {
+    ChunkCheckpoint before = null;
+    if (checkpoints != null) {
+      for (ChunkCheckpoint checkpoint : checkpoints) {
+        if (checkpoint.record_offset > offset) {
+          break;
+        }
+        before = checkpoint;
+      }
+    }
+    return before;
+  }
 }
@@ -1,13 +1,25 @@
 package com.spredfast.kafka.connect.s3.json;
 
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonInclude;
 import com.fasterxml.jackson.annotation.JsonProperty;
 import java.util.List;
 import java.util.Optional;
 
+@JsonIgnoreProperties(ignoreUnknown = true)
 public class ChunksIndex {
 
   @JsonProperty public List<ChunkDescriptor> chunks;
 
+  /** Range of the record timestamps in the whole file. Null if no record had one. */
+  @JsonProperty
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Long min_timestamp;
+
+  @JsonProperty
+  @JsonInclude(JsonInclude.Include.NON_NULL)
+  public Long max_timestamp;
+
   /**
    * @return the size of the file (compressed) in bytes.
    */
@@ -26,12 +38,44 @@ public class ChunksIndex {
   public static ChunksIndex of(List<ChunkDescriptor> chunks) {
     ChunksIndex index = new ChunksIndex();
     index.chunks = chunks;
+    for (ChunkDescriptor chunk : chunks) {
+      if (chunk.min_timestamp != null) {
+        index.min_timestamp =
+            index.min_timestamp == null
+                ? chunk.min_timestamp
+                : Math.min(index.min_timestamp, chunk.min_timestamp);
+        index.max_timestamp =
+            index.max_timestamp == null
+                ? chunk.max_timestamp
+                : Math.max(index.max_timestamp, chunk.max_timestamp);
+      }
+    }
     return index;
   }
 
+  /** Binary search for the first chunk that ends after the offset. */
   public Optional<ChunkDescriptor> chunkContaining(long offset) {
+    int low = 0;
+    int high = chunks.size();
+    while (low < high) {
+      int mid = (low + high) >>> 1;
+      ChunkDescriptor chunk = chunks.get(mid);
+      if (chunk.first_record_offset + chunk.num_records > offset) {
+        high = mid;
+      } else {
+        low = mid + 1;
+      }
+    }
+    return low < chunks.size() ? Optional.of(chunks.get(low)) : Optional.empty();
+  }
+
+  /**
+   * The first chunk that may hold a record at or after the timestamp. Timestamps needn't grow with
+   * offsets, so this is a scan. Chunks without timestamps can't be ruled out.
+   */
+  public Optional<ChunkDescriptor> firstChunkSince(long timestamp) {
     return chunks.stream()
-        .filter(chunk -> chunk.first_record_offset + chunk.num_records > offset)
+        .filter(chunk -> chunk.max_timestamp == null || chunk.max_timestamp >= timestamp)
         .findFirst();
   }
 }
@@ -0,0 +1,49 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.apache.kafka.connect.data.Schema;
+import org.apache.kafka.connect.data.SchemaBuilder;
+import org.apache.kafka.connect.errors.DataException;
+import org.apache.kafka.connect.storage.StringConverter;
+import org.junit.Test;
+
+public class AlreadyBytesConverterTest {
+
+  private final AlreadyBytesConverter converter = new AlreadyBytesConverter();
+
+  @Test
+  public void testPassthroughDetection() {
+    assertTrue(AlreadyBytesConverter.isPassthrough(converter));
+    assertEquals(Schema.BYTES_SCHEMA, AlreadyBytesConverter.passthroughSchema(converter));
+    assertFalse(AlreadyBytesConverter.isPassthrough(new StringConverter()));
+    assertFalse(AlreadyBytesConverter.isPassthrough(new AlreadyBytesConverter() {}));
+    assertFalse(AlreadyBytesConverter.isPassthrough(null));
+  }
+
+  @Test
+  public void testFastPathMatchesConverter() {
+    byte[] bytes = "value".getBytes();
+    assertSame(
+        bytes,
+        AlreadyBytesConverter.fromConnectData(
+            converter, true, "topic", Schema.BYTES_SCHEMA, bytes));
+    assertSame(bytes, AlreadyBytesConverter.fromConnectData(converter, true, "topic", null, bytes));
+    assertNull(
+        AlreadyBytesConverter.fromConnectData(
+            converter, true, "topic", Schema.OPTIONAL_BYTES_SCHEMA, null));
+
+    // anything else still goes through the converter, errors included
+    try {
+      AlreadyBytesConverter.fromConnectData(
+          converter, true, "topic", SchemaBuilder.bytes().name("decimal").build(), bytes);
+      fail("Expected the converter to reject a named schema");
+    } catch (DataException expected) {
+    }
+  }
+}
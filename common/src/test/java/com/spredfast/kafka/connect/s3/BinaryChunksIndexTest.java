@@ -0,0 +1,75 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class BinaryChunksIndexTest {
+
+  @Test
+  public void roundTripsTheSameIndexAsJson() throws IOException {
+    List<ChunkDescriptor> chunks =
+        Arrays.asList(
+            chunk(1_000_000_000L, 10, 35, 400),
+            chunk(1_000_000_010L, 1, 435, 20),
+            // a gap in both offsets and bytes, as after compacted records or a skipped frame
+            chunk(1_000_000_050L, 300_000, 500, 1L << 33));
+    chunks.get(0).min_timestamp = 1_500_000_000_000L;
+    chunks.get(0).max_timestamp = 1_500_000_000_100L;
+    // out of order, earlier than the chunk before
+    chunks.get(2).min_timestamp = 1_499_999_999_000L;
+    chunks.get(2).max_timestamp = 1_500_000_000_500L;
+    byte[] binary = BinaryChunksIndex.encode(chunks);
+    ObjectMapper mapper = new ObjectMapper();
+
+    ChunksIndex decoded = BinaryChunksIndex.decode(ByteBuffer.wrap(binary));
+
+    assertEquals(
+        mapper.writeValueAsString(ChunksIndex.of(chunks)), mapper.writeValueAsString(decoded));
+    assertEquals(50, binary.length);
+  }
+
+  @Test
+  public void truncatedIndexesAreRejected() {
+    byte[] binary = BinaryChunksIndex.encode(Arrays.asList(chunk(0, 10, 0, 100)));
+    try {
+      BinaryChunksIndex.decode(ByteBuffer.wrap(binary, 0, binary.length - 1));
+      fail();
+    } catch (IOException expected) {
+    }
+  }
+
+  @Test
+  public void chunkContainingSearchesEveryBoundary() {
+    ChunksIndex index =
+        ChunksIndex.of(Arrays.asList(chunk(10, 5, 0, 1), chunk(15, 1, 1, 1), chunk(20, 10, 2, 1)));
+
+    assertSame(index.chunks.get(0), index.chunkContaining(0).get());
+    assertSame(index.chunks.get(0), index.chunkContaining(14).get());
+    assertSame(index.chunks.get(1), index.chunkContaining(15).get());
+    // offsets in a gap belong to the next chunk
+    assertSame(index.chunks.get(2), index.chunkContaining(17).get());
+    assertSame(index.chunks.get(2), index.chunkContaining(29).get());
+    assertFalse(index.chunkContaining(30).isPresent());
+  }
+
+  private static ChunkDescriptor chunk(long offset, long records, long byteOffset, long length) {
+    ChunkDescriptor chunk = new ChunkDescriptor();
+    chunk.first_record_offset = offset;
+    chunk.num_records = records;
+    chunk.byte_offset = byteOffset;
+    chunk.byte_length = length;
+    chunk.byte_length_uncompressed = length * 4;
+    return chunk;
+  }
+}
@@ -0,0 +1,36 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+public class EventTimeLayoutTest {
+
+  private static final TopicPartition TP = new TopicPartition("some-topic", 3);
+
+  // 2016-01-01T14:05:00Z
+  private static final long TIMESTAMP = 1451657100000L;
+
+  @Test
+  public void bucketsByTheFirstRecordTimestamp() {
+    Layout layout = new EventTimeLayout(EventTimeLayout.Granularity.HOUR, () -> 0L);
+
+    String path = layout.getBuilder().buildBlockPath(new BlockMetadata(TP, 42, TIMESTAMP));
+
+    assertEquals("some-topic/2016-01-01/14/00003-000000000042", path);
+    BlockMetadata parsed = layout.getParser().parseBlockPath("prefix/" + path + ".gz");
+    assertEquals(TP, parsed.getTopicPartition());
+    assertEquals(42, parsed.getStartOffset());
+  }
+
+  @Test
+  public void fallsBackToTheWallClock() {
+    Layout layout = new EventTimeLayout(EventTimeLayout.Granularity.DAY, () -> TIMESTAMP);
+
+    String path = layout.getBuilder().buildBlockPath(new BlockMetadata(TP, 42));
+
+    assertEquals("some-topic/2016-01-01/00003-000000000042", path);
+    assertEquals(TP, layout.getParser().parseBlockPath(path + ".zst").getTopicPartition());
+  }
+}
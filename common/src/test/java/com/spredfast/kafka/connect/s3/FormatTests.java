@@ -1,12 +1,14 @@
 package com.spredfast.kafka.connect.s3;
 
 import static java.util.stream.Collectors.toMap;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
 import java.util.stream.Collectors;
@@ -59,7 +61,15 @@ public class FormatTests {
     ByteArrayOutputStream boas = new ByteArrayOutputStream();
     boas.write(writer.init("topic", 0, startOffset));
 
-    records.map(writer::write).forEach(b -> boas.write(b, 0, b.length));
+    ByteArrayOutputStream streamed = new ByteArrayOutputStream();
+    for (ProducerRecord<byte[], byte[]> record : records.collect(Collectors.toList())) {
+      boas.write(writer.write(record));
+      writer.write(record.topic(), record.partition(), record.key(), record.value(), streamed);
+    }
+    // writing straight into a buffer must produce the same bytes as encoding each record
+    assertArrayEquals(
+        Arrays.copyOfRange(boas.toByteArray(), boas.size() - streamed.size(), boas.size()),
+        streamed.toByteArray());
     boas.write(writer.finish("topic", 0));
 
     ByteArrayInputStream in = new ByteArrayInputStream(boas.toByteArray());
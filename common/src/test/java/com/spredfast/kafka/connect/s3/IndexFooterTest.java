@@ -0,0 +1,108 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.S3Object;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Test;
+
+public class IndexFooterTest {
+
+  @Test
+  public void roundTripsThroughTheTailOfAnObject() throws IOException {
+    byte[] object = objectWithFooter(5000);
+    AmazonS3 s3 = givenAnObject(object);
+
+    ChunksIndex index = IndexFooter.read(s3, "bucket", "key", object.length).get();
+
+    assertEquals(5000, index.chunks.size());
+    assertEquals(500, index.chunks.get(1).first_record_offset);
+    assertEquals(200, index.chunks.get(1).byte_offset);
+    assertEquals(5000 * 500 - 1, index.lastOffset());
+    assertEquals(5000 * 200, index.totalSize());
+    // an index of 5000 chunks doesn't fit the first guess, so the rest is fetched
+    verify(s3, times(2)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void objectsWithoutAFooterHaveNoIndex() throws IOException {
+    byte[] object = new byte[100];
+    AmazonS3 s3 = givenAnObject(object);
+
+    assertEquals(-1, IndexFooter.length(object));
+    assertFalse(IndexFooter.read(s3, "bucket", "key", object.length).isPresent());
+  }
+
+  @Test
+  public void dataOfLeavesTheFooterOut() throws IOException {
+    byte[] object = objectWithFooter(3);
+    S3Object s3Object = new S3Object();
+    s3Object.setObjectContent(new ByteArrayInputStream(object));
+    ObjectMetadata metadata = new ObjectMetadata();
+    metadata.setContentLength(object.length);
+    metadata.addUserMetadata(
+        IndexFooter.METADATA_KEY, Integer.toString(IndexFooter.length(object)));
+    s3Object.setObjectMetadata(metadata);
+
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    try (InputStream in = IndexFooter.dataOf(s3Object)) {
+      byte[] buffer = new byte[7];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        data.write(buffer, 0, read);
+      }
+    }
+    assertArrayEquals(Arrays.copyOf(object, 3 * 200), data.toByteArray());
+  }
+
+  /** Chunks of 500 records in 200 bytes each, followed by their footer. */
+  private static byte[] objectWithFooter(int chunkCount) throws IOException {
+    List<ChunkDescriptor> chunks = new ArrayList<>();
+    for (int i = 0; i < chunkCount; i++) {
+      ChunkDescriptor chunk = new ChunkDescriptor();
+      chunk.first_record_offset = i * 500L;
+      chunk.num_records = 500;
+      chunk.byte_offset = i * 200L;
+      chunk.byte_length = 200;
+      chunk.byte_length_uncompressed = 1000;
+      chunks.add(chunk);
+    }
+    byte[] footer = IndexFooter.encode(chunks);
+    byte[] object = new byte[chunkCount * 200 + footer.length];
+    Arrays.fill(object, 0, chunkCount * 200, (byte) 'x');
+    System.arraycopy(footer, 0, object, chunkCount * 200, footer.length);
+    return object;
+  }
+
+  private static AmazonS3 givenAnObject(byte[] object) {
+    AmazonS3 s3 = mock(AmazonS3.class);
+    when(s3.getObject(any(GetObjectRequest.class)))
+        .thenAnswer(
+            invocation -> {
+              long[] range = ((GetObjectRequest) invocation.getArgument(0)).getRange();
+              S3Object s3Object = new S3Object();
+              s3Object.setObjectContent(
+                  new ByteArrayInputStream(
+                      object, (int) range[0], (int) (range[1] - range[0] + 1)));
+              return s3Object;
+            });
+    return s3;
+  }
+}
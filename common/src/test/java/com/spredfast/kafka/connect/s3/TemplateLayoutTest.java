@@ -0,0 +1,95 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+public class TemplateLayoutTest {
+
+  private static final TopicPartition TP = new TopicPartition("some-topic", 3);
+
+  // 2016-01-01T14:05:00Z
+  private static final long NOW = 1451657100000L;
+
+  private static final String HIVE = "{topic}/dt={yyyy-MM-dd}/hr={HH}/{partition:05}-{offset:012}";
+
+  @Test
+  public void buildsAndParsesHiveStyleKeys() {
+    Layout layout = new TemplateLayout(HIVE, () -> NOW);
+
+    String path = layout.getBuilder().buildBlockPath(new BlockMetadata(TP, 42));
+
+    assertEquals("some-topic/dt=2016-01-01/hr=14/00003-000000000042", path);
+    BlockMetadata parsed = layout.getParser().parseBlockPath("prefix/" + path + ".gz");
+    assertEquals(TP, parsed.getTopicPartition());
+    assertEquals(42, parsed.getStartOffset());
+    assertEquals("some-topic/dt=", layout.getBuilder().buildListingPrefix(TP));
+    assertEquals("some-topic/last_chunk_index.00003.txt", layout.getBuilder().buildIndexPath(TP));
+  }
+
+  @Test
+  public void matchesTheBuiltInLayouts() {
+    Layout template =
+        new TemplateLayout("{topic}/{yyyy-MM-dd}/{partition:05}-{offset:012}", () -> NOW);
+    Layout builtIn = new GroupedByTopicLayout(() -> "2016-01-01");
+    BlockMetadata block = new BlockMetadata(TP, 1234567);
+
+    String path = template.getBuilder().buildBlockPath(block);
+
+    assertEquals(builtIn.getBuilder().buildBlockPath(block), path);
+    assertEquals(
+        builtIn.getParser().parseBlockPath(path + ".zst").getStartOffset(),
+        template.getParser().parseBlockPath(path + ".zst").getStartOffset());
+  }
+
+  @Test
+  public void numbersMayOutgrowTheirPadding() {
+    Layout layout = new TemplateLayout("{topic}-{partition}-{offset:3}", () -> NOW);
+
+    String path = layout.getBuilder().buildBlockPath(new BlockMetadata(TP, 123456));
+
+    assertEquals("some-topic-3-123456", path);
+    BlockMetadata parsed = layout.getParser().parseBlockPath(path + ".bin");
+    assertEquals(TP, parsed.getTopicPartition());
+    assertEquals(123456, parsed.getStartOffset());
+  }
+
+  @Test
+  public void rejectsKeysThatDontMatch() {
+    Layout.Parser parser = new TemplateLayout(HIVE, () -> NOW).getParser();
+    for (String path :
+        new String[] {
+          "some-topic/dt=2016-01-01/hr=14/00003-000000000042.index.json",
+          "some-topic/dt=2016-01-01/hr=14/last_chunk_index.00003.txt",
+          "some-topic/dt=2016-01-01/h=14/00003-000000000042.gz",
+          "some-topic/dt=2016-01-0x/hr=14/00003-000000000042.gz",
+          "some-topic/dt=2016-01-01/hr=14/0003-000000000042.gz",
+          "/dt=2016-01-01/hr=14/00003-000000000042.gz",
+        }) {
+      try {
+        parser.parseBlockPath(path);
+        fail(path);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+
+  @Test
+  public void rejectsTemplatesThatCantBeParsed() {
+    for (String template :
+        new String[] {
+          "{topic}/{partition}",
+          "{topic}/{partition}{offset}",
+          "{topic}/{yyyy-MMM-d}/{partition}-{offset}",
+          "{topic}/{partition}-{offset",
+        }) {
+      try {
+        new TemplateLayout(template);
+        fail(template);
+      } catch (IllegalArgumentException expected) {
+      }
+    }
+  }
+}
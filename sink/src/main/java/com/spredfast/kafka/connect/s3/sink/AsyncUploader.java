@@ -0,0 +1,313 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the S3 uploads of finished partition files on a small pool of background threads, so that
+ * the task thread never blocks on the network in put() or preCommit().
+ *
+ * <p>At most maxInFlight uploads can be queued or running at once. Submitting beyond that blocks
+ * the task thread until a slot frees up, which bounds the number of local files waiting for upload.
+ *
+ * <p>The uploads of a partition run one at a time, in the order they were submitted, and none runs
+ * after one before it failed. So the files, index and cursor of a partition in S3 never skip over
+ * one that isn't there, and a partition is never committed past a file that is not in S3 yet.
+ * Uploads of different partitions run in parallel. Not thread safe: all methods must be called from
+ * the task thread.
+ */
+public class AsyncUploader {
+
+  private static final Logger log = LoggerFactory.getLogger(AsyncUploader.class);
+
+  private final ExecutorService executor;
+
+  private final Semaphore inFlight;
+
+  private final Map<TopicPartition, Deque<PendingUpload>> pending = new HashMap<>();
+
+  // the last upload of each partition that hasn't finished, even if it has been forgotten, which
+  // the next upload of the partition waits for
+  private final Map<TopicPartition, CompletableFuture<Void>> lastUploads =
+      new ConcurrentHashMap<>();
+
+  public interface Upload {
+    void run() throws IOException;
+  }
+
+  private static class PendingUpload {
+    private final Future<?> future;
+    private final long nextOffset;
+
+    private PendingUpload(Future<?> future, long nextOffset) {
+      this.future = future;
+      this.nextOffset = nextOffset;
+    }
+  }
+
+  public AsyncUploader(String name, int threads, int maxInFlight) {
+    if (threads < 1 || maxInFlight < 1) {
+      throw new IllegalArgumentException(
+          "Upload threads and max in flight uploads must be positive. threads="
+              + threads
+              + " maxInFlight="
+              + maxInFlight);
+    }
+    AtomicInteger threadCount = new AtomicInteger();
+    this.executor =
+        Executors.newFixedThreadPool(
+            threads,
+            r -> {
+              Thread thread = new Thread(r, name + "-s3-upload-" + threadCount.incrementAndGet());
+              thread.setDaemon(true);
+              return thread;
+            });
+    this.inFlight = new Semaphore(maxInFlight);
+  }
+
+  /**
+   * Queue an upload for the given partition. Blocks while the maximum number of uploads are already
+   * in flight.
+   *
+   * @param nextOffset the offset that is safe to commit for the partition once this upload (and all
+   *     uploads submitted before it) have completed.
+   */
+  public void submit(TopicPartition tp, long nextOffset, Upload upload) {
+    submit(tp, nextOffset, upload, () -> {});
+  }
+
+  /**
+   * Queue an upload for the given partition, to start once the partition's previous upload is done.
+   * If that one failed, this one fails without running.
+   *
+   * @param cleanup run once the upload is done, whether it ran or not, e.g. to delete its files.
+   */
+  public void submit(TopicPartition tp, long nextOffset, Upload upload, Runnable cleanup) {
+    Deque<PendingUpload> uploads = pending.computeIfAbsent(tp, t -> new ArrayDeque<>());
+    // once a failure is reported the uploads before it are forgotten, and only waited for
+    boolean failWithPrevious = !uploads.isEmpty();
+    CompletableFuture<Void> previous =
+        lastUploads.getOrDefault(tp, CompletableFuture.completedFuture(null));
+    acquire();
+    CompletableFuture<Void> future;
+    try {
+      future =
+          previous.handleAsync(
+              (ignored, failure) -> {
+                try {
+                  if (failure != null && failWithPrevious) {
+                    throw new IOException(
+                        "Not uploaded because an earlier upload of " + tp + " failed",
+                        failure instanceof CompletionException ? failure.getCause() : failure);
+                  }
+                  upload.run();
+                  return null;
+                } catch (IOException e) {
+                  throw new CompletionException(e);
+                } finally {
+                  try {
+                    cleanup.run();
+                  } finally {
+                    inFlight.release();
+                  }
+                }
+              },
+              executor);
+    } catch (RuntimeException e) {
+      inFlight.release();
+      throw e;
+    }
+    lastUploads.put(tp, future);
+    future.whenComplete((ignored, failure) -> lastUploads.remove(tp, future));
+    uploads.add(new PendingUpload(future, nextOffset));
+  }
+
+  /**
+   * Run some work on the upload threads without tying it to any offsets, e.g. one part of a file
+   * that is still being written. It counts against the in flight limit like any other upload, until
+   * it is done or cancelled.
+   */
+  public <T> Future<T> execute(Callable<T> work) {
+    acquire();
+    return executeAcquired(work);
+  }
+
+  /**
+   * Like {@link #execute(Callable)}, but waits no more than timeoutMs for the in flight uploads to
+   * make room for the work.
+   *
+   * @throws TimeoutException if there was no room in time.
+   */
+  public <T> Future<T> execute(Callable<T> work, long timeoutMs) throws TimeoutException {
+    try {
+      if (!inFlight.tryAcquire(Math.max(0, timeoutMs), TimeUnit.MILLISECONDS)) {
+        throw new TimeoutException("No room for more work on the upload threads");
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectException("Interrupted while waiting to upload", e);
+    }
+    return executeAcquired(work);
+  }
+
+  private <T> Future<T> executeAcquired(Callable<T> work) {
+    AtomicBoolean started = new AtomicBoolean();
+    AtomicBoolean released = new AtomicBoolean();
+    Runnable release =
+        () -> {
+          if (released.compareAndSet(false, true)) {
+            inFlight.release();
+          }
+        };
+    FutureTask<T> task =
+        new FutureTask<T>(
+            () -> {
+              started.set(true);
+              try {
+                return work.call();
+              } finally {
+                release.run();
+              }
+            }) {
+          @Override
+          protected void done() {
+            // cancelled while queued, it never runs to release its slot
+            if (isCancelled() && !started.get()) {
+              release.run();
+            }
+          }
+        };
+    try {
+      executor.execute(task);
+    } catch (RuntimeException e) {
+      release.run();
+      throw e;
+    }
+    return task;
+  }
+
+  private void acquire() {
+    try {
+      inFlight.acquire();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectException("Interrupted while waiting to upload", e);
+    }
+  }
+
+  /**
+   * @return the offsets that became safe to commit since the last call, for partitions whose
+   *     uploads completed in order.
+   * @throws RetriableException if any upload failed. All pending uploads are forgotten in that
+   *     case, since Connect rewinds the consumer to the last committed offsets and the data will be
+   *     consumed and uploaded again.
+   */
+  public Map<TopicPartition, OffsetAndMetadata> completedOffsets() {
+    Map<TopicPartition, OffsetAndMetadata> offsets = new HashMap<>();
+    for (Iterator<Map.Entry<TopicPartition, Deque<PendingUpload>>> it =
+            pending.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<TopicPartition, Deque<PendingUpload>> entry = it.next();
+      Deque<PendingUpload> uploads = entry.getValue();
+      while (!uploads.isEmpty() && uploads.peek().future.isDone()) {
+        PendingUpload upload = uploads.poll();
+        try {
+          upload.future.get();
+        } catch (ExecutionException e) {
+          pending.clear();
+          throw new RetriableException(
+              "Failed to upload to S3 for " + entry.getKey(), e.getCause());
+        } catch (InterruptedException e) {
+          // cannot happen, the future is done
+          Thread.currentThread().interrupt();
+          throw new ConnectException(e);
+        }
+        offsets.put(entry.getKey(), new OffsetAndMetadata(upload.nextOffset));
+      }
+      if (uploads.isEmpty()) {
+        it.remove();
+      }
+    }
+    return offsets;
+  }
+
+  /**
+   * Wait for the uploads of the given partitions to finish and forget about them. Their offsets
+   * will not be committed; whoever consumes the partitions next will upload the same data again.
+   */
+  public void awaitAndForget(Collection<TopicPartition> tps, long timeoutMs) {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    for (TopicPartition tp : tps) {
+      Deque<PendingUpload> uploads = pending.remove(tp);
+      if (uploads == null) {
+        continue;
+      }
+      for (PendingUpload upload : uploads) {
+        try {
+          upload.future.get(
+              Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS);
+        } catch (ExecutionException e) {
+          log.warn("Upload for {} failed while closing the partition", tp, e.getCause());
+        } catch (TimeoutException e) {
+          log.warn("Timed out waiting for upload of {} while closing the partition", tp);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          return;
+        }
+      }
+    }
+  }
+
+  /** Let in-flight uploads finish (up to the timeout) and release the upload threads. */
+  public void close(long timeoutMs) {
+    pending.clear();
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    try {
+      // uploads waiting for an earlier one of their partition aren't on the executor yet
+      CompletableFuture.allOf(lastUploads.values().toArray(new CompletableFuture<?>[0]))
+          .get(timeoutMs, TimeUnit.MILLISECONDS);
+    } catch (ExecutionException | TimeoutException e) {
+      // failures can't be committed past anyway, and a timeout is caught below
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+      return;
+    }
+    executor.shutdown();
+    try {
+      if (!executor.awaitTermination(
+          Math.max(0, deadline - System.currentTimeMillis()), TimeUnit.MILLISECONDS)) {
+        log.warn("Timed out waiting for in-flight S3 uploads to finish");
+        executor.shutdownNow();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      executor.shutdownNow();
+    }
+  }
+}
@@ -0,0 +1,35 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+
+/**
+ * Holds the bytes of a file written by {@link BlockGZIPFileWriter} until they are uploaded to S3.
+ *
+ * <p>Bytes are appended through {@link #outputStream()} by the task thread. Once that stream is
+ * closed, the contents may be read back with {@link #inputStream()} from any thread.
+ */
+public interface BlockBuffer {
+
+  /** The stream to append bytes to. Always returns the same stream. */
+  OutputStream outputStream() throws IOException;
+
+  /**
+   * @return the number of bytes written so far.
+   */
+  long size();
+
+  /** Read back everything that was written. */
+  InputStream inputStream() throws IOException;
+
+  /**
+   * @return the local file holding the bytes, if they are on disk.
+   */
+  Optional<File> file();
+
+  /** Release the bytes. Safe to call more than once. */
+  void delete();
+}
@@ -3,17 +3,25 @@ package com.spredfast.kafka.connect.s3.sink;
 import static java.util.stream.Collectors.toList;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.BlockCodec;
+import com.spredfast.kafka.connect.s3.BlockCodecs;
+import com.spredfast.kafka.connect.s3.IndexFooter;
+import com.spredfast.kafka.connect.s3.json.ChunkCheckpoint;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
 import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.ByteArrayOutputStream;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.nio.file.Files;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.zip.GZIPOutputStream;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 
 /**
  * BlockGZIPFileWriter accumulates newline delimited UTF-8 records and writes them to an output file
@@ -32,14 +40,55 @@ import java.util.zip.GZIPOutputStream;
  *
  * <p>Note that thanks to GZIP spec, the overall file is perfectly valid and will decompress as if
  * it was a single stream with any regular GZIP decoding library or program.
+ *
+ * <p>Despite the name, chunks may be compressed with any {@link BlockCodec}. GZIP is the default.
+ *
+ * <p>The data and index are written to {@link BlockBuffer}s, which are temp files in the given
+ * directory by default but may also be kept in memory.
+ *
+ * <p>Given a compression pool, whole chunks are buffered uncompressed and then deflated on the pool
+ * while the next chunk fills up, so that a single writer can use more than one core. The output is
+ * the same, but up to maxPendingChunks + 1 chunks of raw data are held in memory and the compressed
+ * size only includes chunks that have made it to the data buffer.
+ *
+ * <p>With a checkpoint interval and a codec that {@link BlockCodec#supportsCheckpoints() supports
+ * them}, each chunk also records checkpoints every so many records or bytes, where a reader can
+ * start decoding without the part of the chunk before it.
  */
 public class BlockGZIPFileWriter implements Closeable {
 
-  private final File dataFile;
-  private final File indexFile;
-  private GZIPOutputStream gzipStream;
+  private final BlockBuffer dataBuffer;
+  private final BlockBuffer indexBuffer;
+  private final BlockCodec codec;
+  // the stream compressing the current chunk
+  private OutputStream chunkStream;
+  // codecs close the stream they write to when a chunk ends, but the file goes on
+  private OutputStream frameTarget;
   private CountingOutputStream fileStream;
   private final ObjectMapper objectMapper = new ObjectMapper();
+  private boolean closed = false;
+  private ChunkListener chunkListener;
+  private boolean indexFooter = false;
+  // 0 for no checkpoints
+  private long checkpointRecords = 0;
+  private long checkpointBytes = 0;
+
+  // null when compressing on the calling thread
+  private final ExecutorService compressionPool;
+  private final int maxPendingChunks;
+  private RawChunk rawChunk;
+  private final Deque<Future<CompressedChunk>> compressing = new ArrayDeque<>();
+  // chunks before this one have been written to the data buffer in full
+  private int finishedChunks = 0;
+
+  // running totals, so checking them after every record is cheap
+  private long totalRawBytes = 0;
+  private long totalRecords = 0;
+
+  /** Notified whenever a chunk is complete and before the next one starts. */
+  public interface ChunkListener {
+    void chunkFinished() throws IOException;
+  }
 
   private class Chunk {
     public long rawBytes = 0;
@@ -47,6 +96,18 @@ public class BlockGZIPFileWriter implements Closeable {
     public long compressedByteLength = 0;
     public long firstOffset = 0;
     public long numRecords = 0;
+    public List<ChunkCheckpoint> checkpoints = new ArrayList<>();
+    // empty until a record with a timestamp is written
+    public long minTimestamp = Long.MAX_VALUE;
+    public long maxTimestamp = Long.MIN_VALUE;
+    // where the last checkpoint is, or the start of the chunk
+    public long lastCheckpointRecords = 0;
+    public long lastCheckpointRawBytes = 0;
+
+    boolean checkpointDue() {
+      return (checkpointRecords > 0 && numRecords - lastCheckpointRecords >= checkpointRecords)
+          || (checkpointBytes > 0 && rawBytes - lastCheckpointRawBytes >= checkpointBytes);
+    }
 
     ChunkDescriptor toJson() {
       ChunkDescriptor chunkObj = new ChunkDescriptor();
@@ -55,6 +116,11 @@ public class BlockGZIPFileWriter implements Closeable {
       chunkObj.byte_offset = byteOffset;
       chunkObj.byte_length = compressedByteLength;
       chunkObj.byte_length_uncompressed = rawBytes;
+      chunkObj.checkpoints = checkpoints.isEmpty() ? null : checkpoints;
+      if (minTimestamp <= maxTimestamp) {
+        chunkObj.min_timestamp = minTimestamp;
+        chunkObj.max_timestamp = maxTimestamp;
+      }
       return chunkObj;
     }
   }
@@ -89,6 +155,44 @@ public class BlockGZIPFileWriter implements Closeable {
     }
   }
 
+  /** Raw chunk bytes, handed to the compression pool without copying them. */
+  private class RawChunk extends ByteArrayOutputStream {
+    // where the checkpoints go, as the raw position and the offset of the record there
+    private final List<long[]> checkpoints = new ArrayList<>();
+
+    RawChunk(int size) {
+      super(size);
+    }
+
+    void checkpoint(long recordOffset) {
+      checkpoints.add(new long[] {count, recordOffset});
+    }
+
+    CompressedChunk compress() throws IOException {
+      CompressedChunk compressed = new CompressedChunk(Math.max(512, count / 4));
+      try (OutputStream frame = codec.compress(compressed)) {
+        int written = 0;
+        for (long[] checkpoint : checkpoints) {
+          frame.write(buf, written, (int) checkpoint[0] - written);
+          written = (int) checkpoint[0];
+          codec.checkpoint(frame);
+          // relative to the chunk until it has a place in the file
+          compressed.checkpoints.add(ChunkCheckpoint.of(checkpoint[1], compressed.size()));
+        }
+        frame.write(buf, written, count - written);
+      }
+      return compressed;
+    }
+  }
+
+  private static class CompressedChunk extends ByteArrayOutputStream {
+    final List<ChunkCheckpoint> checkpoints = new ArrayList<>();
+
+    CompressedChunk(int size) {
+      super(size);
+    }
+  }
+
   private ArrayList<Chunk> chunks = new ArrayList<>();
 
   // Default each chunk is 64MB of uncompressed data
@@ -114,47 +218,136 @@ public class BlockGZIPFileWriter implements Closeable {
 
   public BlockGZIPFileWriter(File directory, long startOffset, long chunkThreshold, byte[] header)
       throws IOException {
+    this(
+        new FileBlockBuffer(directory, "data"),
+        new FileBlockBuffer(directory, "index"),
+        startOffset,
+        chunkThreshold,
+        header);
+  }
+
+  public BlockGZIPFileWriter(
+      BlockBuffer dataBuffer,
+      BlockBuffer indexBuffer,
+      long startOffset,
+      long chunkThreshold,
+      byte[] header)
+      throws IOException {
+    this(dataBuffer, indexBuffer, startOffset, chunkThreshold, header, BlockCodecs.GZIP, null, 0);
+  }
+
+  /**
+   * @param codec how to compress each chunk.
+   * @param compressionPool where to compress chunks, or null to compress as records are written.
+   * @param maxPendingChunks how many finished chunks may wait for compression before writes block.
+   */
+  public BlockGZIPFileWriter(
+      BlockBuffer dataBuffer,
+      BlockBuffer indexBuffer,
+      long startOffset,
+      long chunkThreshold,
+      byte[] header,
+      BlockCodec codec,
+      ExecutorService compressionPool,
+      int maxPendingChunks)
+      throws IOException {
+    this.dataBuffer = dataBuffer;
+    this.codec = codec;
+    this.indexBuffer = indexBuffer;
     this.startOffset = startOffset;
     this.chunkThreshold = chunkThreshold;
+    this.compressionPool = compressionPool;
+    this.maxPendingChunks = Math.max(1, maxPendingChunks);
 
     // Initialize first chunk
     Chunk ch = new Chunk();
     ch.firstOffset = startOffset;
     chunks.add(ch);
 
-    dataFile = Files.createTempFile(directory.toPath(), "data", null).toFile();
-    indexFile = Files.createTempFile(directory.toPath(), "index", null).toFile();
-
-    FileOutputStream fos = new FileOutputStream(dataFile);
-
     // Open file for writing and setup
-    this.fileStream = new CountingOutputStream(fos);
-    initChunkWriter();
+    this.fileStream = new CountingOutputStream(dataBuffer.outputStream());
+    this.frameTarget =
+        new FilterOutputStream(fileStream) {
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+          }
+
+          @Override
+          public void close() throws IOException {
+            flush();
+          }
+        };
     if (header.length > 0) {
-      // if there is a header, write it as its own gzip chunk
+      // if there is a header, write it as its own chunk
       // so we know how many bytes to skip
-      gzipStream.write(header);
-      gzipStream.finish();
-      gzipStream = new GZIPOutputStream(fileStream);
-      // may have written header bytes
+      try (OutputStream headerStream = codec.compress(frameTarget)) {
+        headerStream.write(header);
+      }
       ch.byteOffset = fileStream.getNumBytesWritten();
     }
+    if (compressionPool == null) {
+      initChunkWriter();
+    } else {
+      rawChunk = newRawChunk();
+    }
+  }
+
+  private RawChunk newRawChunk() {
+    return new RawChunk((int) Math.min(chunkThreshold, 1 << 20));
   }
 
   private void initChunkWriter() throws IOException {
-    gzipStream = new GZIPOutputStream(fileStream);
+    chunkStream = codec.compress(frameTarget);
   }
 
   private Chunk currentChunk() {
     return chunks.get(chunks.size() - 1);
   }
 
+  /**
+   * @return the data file, or null if the data is held in memory.
+   */
   public File getDataFile() {
-    return dataFile;
+    return dataBuffer.file().orElse(null);
   }
 
+  /**
+   * @return the index file, or null if the index is held in memory.
+   */
   public File getIndexFile() {
-    return indexFile;
+    return indexBuffer.file().orElse(null);
+  }
+
+  public BlockBuffer getDataBuffer() {
+    return dataBuffer;
+  }
+
+  public BlockBuffer getIndexBuffer() {
+    return indexBuffer;
+  }
+
+  public void setChunkListener(ChunkListener chunkListener) {
+    this.chunkListener = chunkListener;
+  }
+
+  /** Also append the index to the data as an {@link IndexFooter} when the writer is closed. */
+  public void setIndexFooter(boolean indexFooter) {
+    this.indexFooter = indexFooter;
+  }
+
+  /**
+   * Record a checkpoint in each chunk every so many records or uncompressed bytes, whichever comes
+   * first. Ignored unless the codec supports checkpoints.
+   *
+   * @param records records between checkpoints, or 0 for no limit.
+   * @param bytes uncompressed bytes between checkpoints, or 0 for no limit.
+   */
+  public void setCheckpointInterval(long records, long bytes) {
+    if (codec.supportsCheckpoints()) {
+      this.checkpointRecords = records;
+      this.checkpointBytes = bytes;
+    }
   }
 
   public long getStartOffset() {
@@ -165,92 +358,203 @@ public class BlockGZIPFileWriter implements Closeable {
    * @param bytes the bytes to write.
    */
   public void write(byte[] bytes, int recordCount) throws IOException {
+    write(bytes, 0, bytes.length, recordCount);
+  }
+
+  /**
+   * Write part of an array, so callers can reuse a buffer for encoding records.
+   *
+   * @param bytes the bytes to write, from offset up to offset + length.
+   */
+  public void write(byte[] bytes, int offset, int length, int recordCount) throws IOException {
+    write(bytes, offset, length, recordCount, null);
+  }
+
+  /**
+   * @param timestamp of the records, for the range in the index, or null if they have none.
+   */
+  public void write(byte[] bytes, int offset, int length, int recordCount, Long timestamp)
+      throws IOException {
     Chunk ch = currentChunk();
 
-    if ((ch.rawBytes + bytes.length) > chunkThreshold) {
-      finishChunk();
-      initChunkWriter();
+    if ((ch.rawBytes + length) > chunkThreshold) {
+      if (compressionPool != null) {
+        submitChunk();
+      } else {
+        finishChunk();
+        if (chunkListener != null) {
+          chunkListener.chunkFinished();
+        }
+        initChunkWriter();
+      }
 
       Chunk newCh = new Chunk();
       newCh.firstOffset = ch.firstOffset + ch.numRecords;
       newCh.byteOffset = ch.byteOffset + ch.compressedByteLength;
       chunks.add(newCh);
       ch = newCh;
+    } else if (ch.rawBytes > 0 && ch.checkpointDue()) {
+      checkpoint(ch);
     }
 
-    gzipStream.write(bytes);
+    if (compressionPool != null) {
+      rawChunk.write(bytes, offset, length);
+      // keep the compressed size current for anyone deciding when to roll the file
+      drainChunks(maxPendingChunks);
+    } else {
+      chunkStream.write(bytes, offset, length);
+    }
 
-    ch.rawBytes += bytes.length;
+    ch.rawBytes += length;
     ch.numRecords += recordCount;
+    if (timestamp != null) {
+      ch.minTimestamp = Math.min(ch.minTimestamp, timestamp);
+      ch.maxTimestamp = Math.max(ch.maxTimestamp, timestamp);
+    }
+    totalRawBytes += length;
+    totalRecords += recordCount;
   }
 
-  public void delete() {
-    deleteIfExists(getDataFile());
-    deleteIfExists(getIndexFile());
+  private void checkpoint(Chunk ch) throws IOException {
+    long recordOffset = ch.firstOffset + ch.numRecords;
+    if (compressionPool != null) {
+      rawChunk.checkpoint(recordOffset);
+    } else {
+      codec.checkpoint(chunkStream);
+      ch.checkpoints.add(ChunkCheckpoint.of(recordOffset, fileStream.getNumBytesWritten()));
+    }
+    ch.lastCheckpointRecords = ch.numRecords;
+    ch.lastCheckpointRawBytes = ch.rawBytes;
+  }
+
+  private void submitChunk() throws IOException {
+    RawChunk raw = rawChunk;
+    rawChunk = newRawChunk();
+    compressing.add(compressionPool.submit(raw::compress));
+    drainChunks(maxPendingChunks);
   }
 
-  private void deleteIfExists(File file) {
-    if (file.exists() && !file.isDirectory()) {
-      //noinspection ResultOfMethodCallIgnored
-      file.delete();
+  /**
+   * Write compressed chunks to the data buffer in order, waiting for compression if more than
+   * maxPending are left.
+   */
+  private void drainChunks(int maxPending) throws IOException {
+    while (!compressing.isEmpty()
+        && (compressing.size() > maxPending || compressing.peek().isDone())) {
+      CompressedChunk compressed;
+      try {
+        compressed = compressing.peek().get();
+      } catch (ExecutionException e) {
+        throw new IOException("Failed to compress chunk", e.getCause());
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted waiting for chunk compression", e);
+      }
+      compressing.poll();
+
+      Chunk ch = chunks.get(finishedChunks++);
+      ch.byteOffset = fileStream.getNumBytesWritten();
+      compressed.writeTo(fileStream);
+      ch.compressedByteLength = compressed.size();
+      for (ChunkCheckpoint checkpoint : compressed.checkpoints) {
+        ch.checkpoints.add(
+            ChunkCheckpoint.of(checkpoint.record_offset, ch.byteOffset + checkpoint.byte_offset));
+      }
+      if (chunkListener != null && finishedChunks < chunks.size()) {
+        chunkListener.chunkFinished();
+      }
     }
   }
 
+  public void delete() {
+    compressing.forEach(chunk -> chunk.cancel(false));
+    compressing.clear();
+    dataBuffer.delete();
+    indexBuffer.delete();
+  }
+
   private void finishChunk() throws IOException {
     Chunk ch = currentChunk();
 
-    // Complete GZIP block without closing stream
-    gzipStream.finish();
+    // Complete the chunk's frame without closing the file
+    chunkStream.close();
 
     // We can no find out how long this chunk was compressed
     long bytesWritten = fileStream.getNumBytesWritten();
     ch.compressedByteLength = bytesWritten - ch.byteOffset;
+    finishedChunks++;
   }
 
   public void close() throws IOException {
-    // Flush last chunk, updating index
-    finishChunk();
-    gzipStream.close();
+    if (closed) {
+      return;
+    }
+    closed = true;
+    if (compressionPool != null) {
+      // Flush all the chunks that are left, updating index
+      submitChunk();
+      drainChunks(0);
+      writeFooter();
+      fileStream.close();
+      rawChunk = null;
+    } else {
+      // Flush last chunk, updating index
+      finishChunk();
+      writeFooter();
+      fileStream.close();
+    }
     // Now close the writer (and the whole stream stack)
     writeIndex();
   }
 
+  private void writeFooter() throws IOException {
+    if (indexFooter) {
+      fileStream.write(IndexFooter.encode(chunks.stream().map(Chunk::toJson).collect(toList())));
+    }
+  }
+
   private void writeIndex() throws IOException {
-    if (!indexFile.getParentFile().exists() && !indexFile.getParentFile().mkdirs()) {
+    File indexFile = getIndexFile();
+    if (indexFile != null
+        && !indexFile.getParentFile().exists()
+        && !indexFile.getParentFile().mkdirs()) {
       throw new IOException("Cannot create index " + indexFile);
     }
 
+    // closes the index stream when done
     objectMapper
         .writer()
         .writeValue(
-            indexFile, ChunksIndex.of(chunks.stream().map(Chunk::toJson).collect(toList())));
+            indexBuffer.outputStream(),
+            ChunksIndex.of(chunks.stream().map(Chunk::toJson).collect(toList())));
   }
 
-  public int getTotalUncompressedSize() {
-    int totalBytes = 0;
-    for (Chunk ch : chunks) {
-      totalBytes += ch.rawBytes;
-    }
-    return totalBytes;
+  public long getTotalUncompressedSize() {
+    return totalRawBytes;
   }
 
-  public int getTotalCompressedSize() {
-    int totalBytes = 0;
-    for (Chunk ch : chunks) {
-      totalBytes += ch.compressedByteLength;
-    }
-    return totalBytes;
+  /**
+   * Bytes of data written so far, header included. Grows as the open chunk is compressed, so it
+   * lags what has been written only by what the codec is still holding on to, or by the chunks
+   * waiting for parallel compression. Exact once the writer is closed.
+   */
+  public long getTotalCompressedSize() {
+    return fileStream.getNumBytesWritten();
+  }
+
+  /**
+   * The chunks that have been written to the data buffer in full, so the data up to the end of the
+   * last one is a valid file on its own. All of them once the writer is closed.
+   */
+  public List<ChunkDescriptor> getFinishedChunks() {
+    return chunks.subList(0, finishedChunks).stream().map(Chunk::toJson).collect(toList());
   }
 
   public int getNumChunks() {
     return chunks.size();
   }
 
-  public int getNumRecords() {
-    int totalRecords = 0;
-    for (Chunk ch : chunks) {
-      totalRecords += ch.numRecords;
-    }
+  public long getNumRecords() {
     return totalRecords;
   }
 }
@@ -0,0 +1,156 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.fasterxml.jackson.annotation.JsonProperty;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sidecar of a data file in the local buffer directory, describing the chunks that are complete in
+ * it. It is rewritten whenever a chunk is finished, so if the task dies the data up to the last
+ * finished chunk can still be uploaded by the next task to own the partition, rather than consumed
+ * and compressed all over again.
+ */
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class BufferManifest {
+
+  private static final Logger log = LoggerFactory.getLogger(BufferManifest.class);
+
+  private static final String SUFFIX = ".manifest";
+
+  private static final ObjectMapper objectMapper = new ObjectMapper();
+
+  @JsonProperty public String topic;
+
+  @JsonProperty public int partition;
+
+  @JsonProperty public long start_offset;
+
+  /** Name of the codec the chunks are compressed with. */
+  @JsonProperty public String codec;
+
+  /** Name of the data file, which is in the same directory. */
+  @JsonProperty public String data_file;
+
+  @JsonProperty public List<ChunkDescriptor> chunks;
+
+  private File directory;
+
+  public static BufferManifest of(
+      TopicPartition tp,
+      long startOffset,
+      String codec,
+      File dataFile,
+      List<ChunkDescriptor> chunks) {
+    BufferManifest manifest = new BufferManifest();
+    manifest.topic = tp.topic();
+    manifest.partition = tp.partition();
+    manifest.start_offset = startOffset;
+    manifest.codec = codec;
+    manifest.data_file = dataFile.getName();
+    manifest.chunks = chunks;
+    manifest.directory = dataFile.getParentFile();
+    return manifest;
+  }
+
+  /** Every manifest in the directory. Ones that can't be read are deleted along with their data. */
+  public static List<BufferManifest> findAll(File directory) {
+    List<BufferManifest> manifests = new ArrayList<>();
+    File[] files = directory.listFiles((dir, name) -> name.endsWith(SUFFIX));
+    if (files == null) {
+      return manifests;
+    }
+    for (File file : files) {
+      try {
+        BufferManifest manifest = objectMapper.readValue(file, BufferManifest.class);
+        manifest.directory = directory;
+        manifests.add(manifest);
+      } catch (IOException e) {
+        log.warn("Deleting unreadable buffer manifest {}", file, e);
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+      }
+    }
+    return manifests;
+  }
+
+  public TopicPartition topicPartition() {
+    return new TopicPartition(topic, partition);
+  }
+
+  public File dataFile() {
+    return new File(directory, data_file);
+  }
+
+  public File manifestFile() {
+    return manifestFile(dataFile());
+  }
+
+  public static File manifestFile(File dataFile) {
+    return new File(dataFile.getParentFile(), dataFile.getName() + SUFFIX);
+  }
+
+  /** The offset after the last record in the finished chunks. */
+  public long nextOffset() {
+    return ChunksIndex.of(chunks).lastOffset() + 1;
+  }
+
+  /** Replace the manifest on disk. Readers only ever see the old or the new one in full. */
+  public void write() throws IOException {
+    File target = manifestFile();
+    File temp = new File(directory, target.getName() + ".tmp");
+    try (OutputStream out = Files.newOutputStream(temp.toPath())) {
+      objectMapper.writeValue(out, this);
+    }
+    Files.move(
+        temp.toPath(),
+        target.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Cut anything after the last finished chunk off the data file, e.g. a chunk that was being
+   * written when the task died.
+   *
+   * @return false if the data can't be recovered, because the file is missing or too short.
+   */
+  public boolean truncateData() throws IOException {
+    File data = dataFile();
+    long length = ChunksIndex.of(chunks).totalSize();
+    if (chunks.isEmpty() || !data.isFile() || data.length() < length) {
+      return false;
+    }
+    try (RandomAccessFile file = new RandomAccessFile(data, "rw")) {
+      file.setLength(length);
+    }
+    return true;
+  }
+
+  /** The index for the finished chunks. */
+  public BlockBuffer index() throws IOException {
+    HeapBlockBuffer index = new HeapBlockBuffer();
+    objectMapper.writeValue(index.outputStream(), ChunksIndex.of(chunks));
+    return index;
+  }
+
+  /** Delete the manifest and its data. */
+  public void delete() {
+    //noinspection ResultOfMethodCallIgnored
+    manifestFile().delete();
+    //noinspection ResultOfMethodCallIgnored
+    dataFile().delete();
+  }
+}
@@ -0,0 +1,61 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+/**
+ * Fixed size, off-heap segments shared by all the {@link MemoryBlockBuffer}s of a task. Segments
+ * are recycled rather than freed, and no more than maxBytes worth will ever be allocated. Thread
+ * safe, since buffers are released by the upload threads.
+ */
+public class BufferPool {
+
+  private final int segmentSize;
+  private final long maxBytes;
+  private final Deque<ByteBuffer> free = new ArrayDeque<>();
+  private long allocated = 0;
+  private long inUse = 0;
+
+  public BufferPool(long maxBytes, int segmentSize) {
+    if (segmentSize <= 0 || maxBytes < segmentSize) {
+      throw new IllegalArgumentException(
+          "Memory budget " + maxBytes + " can't hold a single segment of " + segmentSize);
+    }
+    this.maxBytes = maxBytes;
+    this.segmentSize = segmentSize;
+  }
+
+  /**
+   * @return an empty segment, or null if the memory budget is used up.
+   */
+  public synchronized ByteBuffer tryAcquire() {
+    ByteBuffer segment = free.poll();
+    if (segment == null) {
+      if (allocated + segmentSize > maxBytes) {
+        return null;
+      }
+      segment = ByteBuffer.allocateDirect(segmentSize);
+      allocated += segmentSize;
+    }
+    inUse += segmentSize;
+    return segment;
+  }
+
+  public synchronized void release(ByteBuffer segment) {
+    segment.clear();
+    free.push(segment);
+    inUse -= segmentSize;
+  }
+
+  /**
+   * @return bytes currently handed out to buffers.
+   */
+  public synchronized long getBytesInUse() {
+    return inUse;
+  }
+
+  public long getMaxBytes() {
+    return maxBytes;
+  }
+}
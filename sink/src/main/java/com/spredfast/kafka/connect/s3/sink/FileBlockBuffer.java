@@ -0,0 +1,57 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Optional;
+
+/** Buffers bytes in a temp file in the local buffer directory. */
+public class FileBlockBuffer implements BlockBuffer {
+
+  private final File file;
+  private OutputStream outputStream;
+
+  public FileBlockBuffer(File directory, String prefix) throws IOException {
+    this(Files.createTempFile(directory.toPath(), prefix, null).toFile());
+  }
+
+  /** Wraps an existing file. */
+  public FileBlockBuffer(File file) {
+    this.file = file;
+  }
+
+  @Override
+  public OutputStream outputStream() throws IOException {
+    if (outputStream == null) {
+      outputStream = new FileOutputStream(file);
+    }
+    return outputStream;
+  }
+
+  @Override
+  public long size() {
+    return file.length();
+  }
+
+  @Override
+  public InputStream inputStream() throws IOException {
+    return new FileInputStream(file);
+  }
+
+  @Override
+  public Optional<File> file() {
+    return Optional.of(file);
+  }
+
+  @Override
+  public void delete() {
+    if (file.exists() && !file.isDirectory()) {
+      //noinspection ResultOfMethodCallIgnored
+      file.delete();
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Optional;
+
+/**
+ * Buffers bytes on the heap. Only meant for small things like indexes, which would waste most of a
+ * {@link BufferPool} segment.
+ */
+public class HeapBlockBuffer implements BlockBuffer {
+
+  private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+  @Override
+  public OutputStream outputStream() {
+    return bytes;
+  }
+
+  @Override
+  public long size() {
+    return bytes.size();
+  }
+
+  @Override
+  public InputStream inputStream() {
+    return new ByteArrayInputStream(bytes.toByteArray());
+  }
+
+  @Override
+  public Optional<File> file() {
+    return Optional.empty();
+  }
+
+  @Override
+  public void delete() {
+    bytes.reset();
+  }
+}
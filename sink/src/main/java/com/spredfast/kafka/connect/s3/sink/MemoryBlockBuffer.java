@@ -0,0 +1,189 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * Buffers bytes in segments borrowed from a {@link BufferPool}, so they can be uploaded straight
+ * from memory without a round trip through the local disk.
+ *
+ * <p>If the pool runs out, everything written so far is spilled to a temp file in the spill
+ * directory, the segments are given back, and the rest of the bytes are appended to that file.
+ */
+public class MemoryBlockBuffer implements BlockBuffer {
+
+  private final BufferPool pool;
+  private final File spillDirectory;
+  private final String prefix;
+  private final List<ByteBuffer> segments = new ArrayList<>();
+  private final OutputStream outputStream = new SegmentOutputStream();
+  private long size = 0;
+  private File spillFile;
+  private FileOutputStream spillStream;
+
+  public MemoryBlockBuffer(BufferPool pool, File spillDirectory, String prefix) {
+    this.pool = pool;
+    this.spillDirectory = spillDirectory;
+    this.prefix = prefix;
+  }
+
+  @Override
+  public OutputStream outputStream() {
+    return outputStream;
+  }
+
+  @Override
+  public long size() {
+    return size;
+  }
+
+  public boolean isSpilled() {
+    return spillFile != null;
+  }
+
+  @Override
+  public synchronized InputStream inputStream() throws IOException {
+    if (spillFile != null) {
+      return new FileInputStream(spillFile);
+    }
+    List<ByteBuffer> views = new ArrayList<>(segments.size());
+    for (ByteBuffer segment : segments) {
+      ByteBuffer view = segment.duplicate();
+      view.flip();
+      views.add(view);
+    }
+    return new SegmentInputStream(views.iterator());
+  }
+
+  @Override
+  public Optional<File> file() {
+    return Optional.ofNullable(spillFile);
+  }
+
+  @Override
+  public synchronized void delete() {
+    segments.forEach(pool::release);
+    segments.clear();
+    if (spillStream != null) {
+      try {
+        spillStream.close();
+      } catch (IOException ignored) {
+        // we're throwing it away anyway
+      }
+      spillStream = null;
+    }
+    if (spillFile != null && spillFile.exists()) {
+      //noinspection ResultOfMethodCallIgnored
+      spillFile.delete();
+    }
+  }
+
+  private synchronized void spill() throws IOException {
+    spillFile = Files.createTempFile(spillDirectory.toPath(), prefix, null).toFile();
+    spillStream = new FileOutputStream(spillFile);
+    FileChannel channel = spillStream.getChannel();
+    for (ByteBuffer segment : segments) {
+      segment.flip();
+      while (segment.hasRemaining()) {
+        channel.write(segment);
+      }
+      pool.release(segment);
+    }
+    segments.clear();
+  }
+
+  private class SegmentOutputStream extends OutputStream {
+    private ByteBuffer current;
+
+    @Override
+    public void write(int b) throws IOException {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+      size += len;
+      while (len > 0) {
+        if (spillStream != null) {
+          spillStream.write(b, off, len);
+          return;
+        }
+        if (current == null || !current.hasRemaining()) {
+          current = pool.tryAcquire();
+          if (current == null) {
+            spill();
+            continue;
+          }
+          synchronized (MemoryBlockBuffer.this) {
+            segments.add(current);
+          }
+        }
+        int n = Math.min(len, current.remaining());
+        current.put(b, off, n);
+        off += n;
+        len -= n;
+      }
+    }
+
+    @Override
+    public void close() throws IOException {
+      current = null;
+      if (spillStream != null) {
+        spillStream.close();
+      }
+    }
+  }
+
+  private static class SegmentInputStream extends InputStream {
+    private final Iterator<ByteBuffer> remaining;
+    private ByteBuffer current;
+
+    private SegmentInputStream(Iterator<ByteBuffer> segments) {
+      this.remaining = segments;
+    }
+
+    private boolean advance() {
+      while (current == null || !current.hasRemaining()) {
+        if (!remaining.hasNext()) {
+          return false;
+        }
+        current = remaining.next();
+      }
+      return true;
+    }
+
+    @Override
+    public int read() {
+      return advance() ? current.get() & 0xff : -1;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) {
+      if (len == 0) {
+        return 0;
+      }
+      if (!advance()) {
+        return -1;
+      }
+      int n = Math.min(len, current.remaining());
+      current.get(b, off, n);
+      return n;
+    }
+
+    @Override
+    public int available() {
+      return current == null ? 0 : current.remaining();
+    }
+  }
+}
@@ -0,0 +1,59 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * A growable buffer that records are encoded into before they are written to a {@link
+ * BlockGZIPFileWriter}. Unlike {@link java.io.ByteArrayOutputStream} it isn't synchronized and
+ * exposes its array, so one buffer can be reused for every record without copying.
+ *
+ * <p>Not thread safe.
+ */
+class RecordBuffer extends OutputStream {
+
+  private static final int INITIAL_CAPACITY = 1024;
+  // a buffer that grew past this for one huge record is dropped on reset rather than kept around
+  private static final int MAX_RETAINED_CAPACITY = 1 << 20;
+
+  private byte[] buf = new byte[INITIAL_CAPACITY];
+  private int count = 0;
+
+  @Override
+  public void write(int b) {
+    ensureCapacity(count + 1);
+    buf[count++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) {
+    ensureCapacity(count + len);
+    System.arraycopy(b, off, buf, count, len);
+    count += len;
+  }
+
+  /** The backing array. Only the first {@link #size()} bytes are valid. */
+  byte[] array() {
+    return buf;
+  }
+
+  int size() {
+    return count;
+  }
+
+  void reset() {
+    count = 0;
+    if (buf.length > MAX_RETAINED_CAPACITY) {
+      buf = new byte[INITIAL_CAPACITY];
+    }
+  }
+
+  private void ensureCapacity(int capacity) {
+    if (capacity < 0) {
+      throw new OutOfMemoryError("Record is too large to buffer");
+    }
+    if (capacity > buf.length) {
+      buf = Arrays.copyOf(buf, Math.max(capacity, Math.min(buf.length * 2, Integer.MAX_VALUE - 8)));
+    }
+  }
+}
@@ -0,0 +1,190 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import com.spredfast.kafka.connect.s3.Configure;
+import com.spredfast.kafka.connect.s3.EventTimeLayout;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.Configurable;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/** The built in {@link RolloverPolicy policies}. */
+public final class RolloverPolicies {
+
+  private RolloverPolicies() {}
+
+  /**
+   * Build the connector's policy: the file rolls as soon as any configured policy says so, or on
+   * every commit if none is configured.
+   */
+  public static RolloverPolicy fromConfig(Map<String, String> props) {
+    List<RolloverPolicy> policies = new ArrayList<>();
+    long fileBytes = longProp(props, "compressed_file_size");
+    if (fileBytes != -1) {
+      policies.add(compressedBytes(fileBytes));
+    }
+    long uncompressedBytes = longProp(props, "rollover.uncompressed.bytes");
+    if (uncompressedBytes != -1) {
+      policies.add(uncompressedBytes(uncompressedBytes));
+    }
+    long records = longProp(props, "rollover.records");
+    if (records != -1) {
+      policies.add(records(records));
+    }
+    long flushIntervalMs = longProp(props, "flush.interval.ms");
+    if (flushIntervalMs != -1) {
+      long gracePeriodMs =
+          props.containsKey("flush.grace.period.ms")
+              ? longProp(props, "flush.grace.period.ms")
+              : flushIntervalMs / 2;
+      policies.add(timestampInterval(flushIntervalMs, gracePeriodMs));
+    }
+    long ageMs = longProp(props, "rollover.age.ms");
+    if (ageMs != -1) {
+      policies.add(age(ageMs));
+    }
+    long idleMs = longProp(props, "rollover.idle.ms");
+    if (idleMs != -1) {
+      policies.add(idle(idleMs));
+    }
+    if ("event_time".equals(props.get("layout"))) {
+      // the layout puts files under the bucket of their first record
+      policies.add(
+          eventTimeBuckets(
+              EventTimeLayout.Granularity.forName(
+                  props.getOrDefault("layout.granularity", "day"))));
+    }
+    String className = props.get("rollover.policy");
+    if (className != null) {
+      policies.add(custom(className, props));
+    }
+    return policies.isEmpty() ? everyCommit() : RolloverPolicy.anyOf(policies);
+  }
+
+  private static long longProp(Map<String, String> props, String key) {
+    String value = props.get(key);
+    try {
+      return value == null ? -1 : Long.parseLong(value.trim());
+    } catch (NumberFormatException e) {
+      throw new ConnectException(key + " must be a number, got " + value, e);
+    }
+  }
+
+  private static RolloverPolicy custom(String className, Map<String, String> props) {
+    try {
+      RolloverPolicy policy =
+          (RolloverPolicy) Class.forName(className).getDeclaredConstructor().newInstance();
+      if (policy instanceof Configurable) {
+        ((Configurable) policy).configure(Configure.subKeys("rollover.policy", props));
+      }
+      return policy;
+    } catch (Exception e) {
+      throw new ConnectException("Failed to create rollover policy: " + className, e);
+    }
+  }
+
+  /**
+   * Roll on every commit, leaving it to Connect's offset.flush.interval.ms. The default when no
+   * other policy is configured.
+   */
+  public static RolloverPolicy everyCommit() {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollOnCommit(OpenFile file, long nowMs) {
+        return true;
+      }
+    };
+  }
+
+  /** Roll once the compressed file is larger than maxBytes. */
+  public static RolloverPolicy compressedBytes(long maxBytes) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollAfter(OpenFile file) {
+        return file.compressedBytes() > maxBytes;
+      }
+    };
+  }
+
+  /** Roll once there are more than maxBytes of records in the file. */
+  public static RolloverPolicy uncompressedBytes(long maxBytes) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollAfter(OpenFile file) {
+        return file.uncompressedBytes() > maxBytes;
+      }
+    };
+  }
+
+  /** Roll once the file has maxRecords records. */
+  public static RolloverPolicy records(long maxRecords) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollAfter(OpenFile file) {
+        return file.records() >= maxRecords;
+      }
+    };
+  }
+
+  /**
+   * Keep the timestamps in a file within intervalMs of the first one. A file is also rolled on
+   * commit once no record arriving now could still belong in it: intervalMs + gracePeriodMs after
+   * its first record was produced, and as long as nothing has been received for gracePeriodMs, so
+   * lagging partitions are still rolled by their timestamps.
+   */
+  public static RolloverPolicy timestampInterval(long intervalMs, long gracePeriodMs) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollBefore(OpenFile file, SinkRecord next) {
+        return next.timestamp() - file.firstRecordTimestamp() >= intervalMs;
+      }
+
+      @Override
+      public boolean shouldRollOnCommit(OpenFile file, long nowMs) {
+        return nowMs - file.firstRecordTimestamp() >= intervalMs + gracePeriodMs
+            && nowMs - file.lastWriteMs() > gracePeriodMs;
+      }
+    };
+  }
+
+  /**
+   * Roll before a record whose timestamp is in a different bucket than the file's first record, so
+   * that no file spans two buckets of an {@link EventTimeLayout}. Records without a timestamp go in
+   * whatever file is open, and a file whose first record has none is bucketed by when it was
+   * opened.
+   */
+  public static RolloverPolicy eventTimeBuckets(EventTimeLayout.Granularity granularity) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollBefore(OpenFile file, SinkRecord next) {
+        if (next.timestamp() == null) {
+          return false;
+        }
+        long first = file.firstRecordTimestamp();
+        return granularity.bucketOf(next.timestamp())
+            != granularity.bucketOf(first == -1 ? file.openedAtMs() : first);
+      }
+    };
+  }
+
+  /** Roll once the file has been open for maxAgeMs, by the wall clock. */
+  public static RolloverPolicy age(long maxAgeMs) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollOnCommit(OpenFile file, long nowMs) {
+        return nowMs - file.openedAtMs() >= maxAgeMs;
+      }
+    };
+  }
+
+  /** Roll once nothing has been written to the file for idleMs. */
+  public static RolloverPolicy idle(long idleMs) {
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollOnCommit(OpenFile file, long nowMs) {
+        return nowMs - file.lastWriteMs() >= idleMs;
+      }
+    };
+  }
+}
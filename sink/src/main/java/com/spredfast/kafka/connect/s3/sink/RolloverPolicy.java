@@ -0,0 +1,91 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.kafka.connect.sink.SinkRecord;
+
+/**
+ * Decides when a partition's open file is done and should be uploaded. Checked before and after
+ * every record and on every commit, so implementations should only look at the running totals of
+ * {@link OpenFile}.
+ *
+ * <p>Custom policies can be set with rollover.policy. They need a no-arg constructor, and are
+ * configured with the rollover.policy.* properties if they implement {@link
+ * org.apache.kafka.common.Configurable}.
+ *
+ * @see RolloverPolicies for the built in policies.
+ */
+public interface RolloverPolicy {
+
+  /** What a policy can know about the open file. */
+  interface OpenFile {
+    long compressedBytes();
+
+    long uncompressedBytes();
+
+    long records();
+
+    /** Timestamp of the first record in the file, or -1 if it has none. */
+    long firstRecordTimestamp();
+
+    /** Wall clock time the file was opened. */
+    long openedAtMs();
+
+    /** Wall clock time the last record was written. */
+    long lastWriteMs();
+  }
+
+  /** Roll the file before writing this record to it? Never called for an empty file. */
+  default boolean shouldRollBefore(OpenFile file, SinkRecord next) {
+    return false;
+  }
+
+  /** Roll the file now that a record has been written to it? */
+  default boolean shouldRollAfter(OpenFile file) {
+    return false;
+  }
+
+  /** Roll the file before offsets are committed? */
+  default boolean shouldRollOnCommit(OpenFile file, long nowMs) {
+    return false;
+  }
+
+  /** A policy that rolls as soon as any of the given policies would. */
+  static RolloverPolicy anyOf(List<RolloverPolicy> policies) {
+    RolloverPolicy[] all = new ArrayList<>(policies).toArray(new RolloverPolicy[0]);
+    if (all.length == 1) {
+      return all[0];
+    }
+    return new RolloverPolicy() {
+      @Override
+      public boolean shouldRollBefore(OpenFile file, SinkRecord next) {
+        for (RolloverPolicy policy : all) {
+          if (policy.shouldRollBefore(file, next)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public boolean shouldRollAfter(OpenFile file) {
+        for (RolloverPolicy policy : all) {
+          if (policy.shouldRollAfter(file)) {
+            return true;
+          }
+        }
+        return false;
+      }
+
+      @Override
+      public boolean shouldRollOnCommit(OpenFile file, long nowMs) {
+        for (RolloverPolicy policy : all) {
+          if (policy.shouldRollOnCommit(file, nowMs)) {
+            return true;
+          }
+        }
+        return false;
+      }
+    };
+  }
+}
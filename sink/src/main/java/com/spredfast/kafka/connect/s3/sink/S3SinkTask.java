@@ -1,11 +1,11 @@
 package com.spredfast.kafka.connect.s3.sink;
 
 import static java.util.Optional.ofNullable;
-import static java.util.stream.Collectors.groupingBy;
 import static java.util.stream.Collectors.toList;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.spredfast.kafka.connect.s3.AlreadyBytesConverter;
+import com.spredfast.kafka.connect.s3.BlockCodec;
 import com.spredfast.kafka.connect.s3.BlockMetadata;
 import com.spredfast.kafka.connect.s3.Configure;
 import com.spredfast.kafka.connect.s3.Constants;
@@ -16,14 +16,26 @@ import com.spredfast.kafka.connect.s3.S3RecordFormat;
 import com.spredfast.kafka.connect.s3.S3RecordsWriter;
 import java.io.File;
 import java.io.IOException;
-import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
-import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.errors.IllegalWorkerStateException;
@@ -42,24 +54,91 @@ public class S3SinkTask extends SinkTask {
 
   private final Map<TopicPartition, PartitionWriter> partitions = new LinkedHashMap<>();
 
-  private Map<TopicPartition, OffsetAndMetadata> offsetsToCommit = new HashMap<>();
+  // so put() doesn't need a new TopicPartition for every run of records
+  private final Map<String, TopicPartition[]> topicPartitions = new HashMap<>();
 
   private long GZIPChunkThreshold = 67108864;
 
-  private long GZIPFileThreshold = -1;
+  private RolloverPolicy rolloverPolicy;
 
-  private long flushIntervalMs = -1;
+  private S3Writer s3;
 
-  private long gracePeriodMs = -1;
+  private AsyncUploader uploader;
 
-  private S3Writer s3;
+  private long uploadCloseTimeoutMs = 30_000;
+
+  // -1 for no limit on the bytes buffered by the task
+  private long bufferBudget = -1;
+
+  // compressed bytes of finished files that haven't been uploaded yet, by partition
+  private final Map<TopicPartition, Long> uploadingBytes = new ConcurrentHashMap<>();
+
+  // open files plus uploadingBytes, as of the last budget check
+  private volatile long bufferedBytes = 0;
+
+  // partitions paused because uploads couldn't keep up with the budget
+  private final Set<TopicPartition> paused = new HashSet<>();
+
+  // null when buffering on local disk
+  private BufferPool bufferPool;
+
+  private boolean streamingUpload = false;
+
+  // append the chunk index to the data instead of uploading it as an object of its own
+  private boolean indexFooter = false;
+
+  // records and uncompressed bytes between checkpoints in each chunk, 0 for no limit
+  private long checkpointRecords = 0;
+
+  private long checkpointBytes = 0;
+
+  // keep a manifest next to every data file, so it can be uploaded after a crash
+  private boolean durableBuffers = false;
+
+  // data files of writers that are open or uploading in this worker, which aren't orphans
+  private static final Set<File> liveBuffers = ConcurrentHashMap.newKeySet();
+
+  // files left behind by a previous task, oldest first. Kept until the partition's first record
+  // shows where consumption resumed
+  private final Map<TopicPartition, List<BufferManifest>> orphans = new HashMap<>();
+
+  // check where the S3 cursor of newly assigned partitions is, to skip what is already uploaded
+  private boolean seekToCursor = true;
+
+  private long cursorFetchTimeoutMs = 30_000;
+
+  private S3Writer.CursorMode cursorMode;
+
+  // next offsets according to the S3 cursors of newly assigned partitions. Kept until the
+  // partition's first record shows where consumption resumed
+  private final Map<TopicPartition, Long> cursors = new HashMap<>();
+
+  // records below these offsets are in S3 already, or in orphaned files that are being uploaded
+  private final Map<TopicPartition, Long> skipUntil = new HashMap<>();
+
+  private long streamingPartBytes = 5242880;
+
+  private int compressionParallelism = 1;
+
+  // null when compressing on the task thread
+  private ExecutorService compressionPool;
 
   private Optional<Converter> keyConverter;
 
   private Converter valueConverter;
 
+  // when the converters just pass bytes through, records are written without calling them
+  private boolean keyPassthrough;
+
+  private boolean valuePassthrough;
+
   private S3RecordFormat recordFormat;
 
+  // records are encoded into this, rather than into a new array each
+  private final RecordBuffer recordBuffer = new RecordBuffer();
+
+  private BlockCodec codec;
+
   private Metrics metrics;
 
   private Map<String, String> tags;
@@ -77,25 +156,101 @@ public class S3SinkTask extends SinkTask {
         .map(Long::parseLong)
         .ifPresent(chunkThreshold -> this.GZIPChunkThreshold = chunkThreshold);
 
-    configGet("compressed_file_size")
-        .map(Long::parseLong)
-        .ifPresent(gzipThreshold -> this.GZIPFileThreshold = gzipThreshold);
+    rolloverPolicy = RolloverPolicies.fromConfig(config);
+
+    String bufferMode = configGet("local.buffer.mode").orElse("disk");
+    switch (bufferMode) {
+      case "disk":
+        break;
+      case "memory":
+        bufferPool =
+            new BufferPool(
+                configGet("local.buffer.memory.bytes").map(Long::parseLong).orElse(134217728L),
+                configGet("local.buffer.memory.segment.bytes")
+                    .map(Integer::parseInt)
+                    .orElse(262144));
+        break;
+      default:
+        throw new ConnectException("Unknown local.buffer.mode: " + bufferMode);
+    }
 
-    configGet("flush.interval.ms")
+    streamingUpload = configGet("s3.streaming.upload").map(Boolean::parseBoolean).orElse(false);
+    configGet("s3.streaming.part.bytes")
         .map(Long::parseLong)
-        .ifPresent(flushIntervalMs -> this.flushIntervalMs = flushIntervalMs);
+        .ifPresent(partBytes -> this.streamingPartBytes = partBytes);
+    if (streamingPartBytes < 5242880) {
+      throw new ConnectException(
+          "s3.streaming.part.bytes must be at least 5242880, the smallest part S3 accepts");
+    }
 
-    configGet("flush.grace.period.ms")
+    durableBuffers = configGet("local.buffer.durable").map(Boolean::parseBoolean).orElse(false);
+    seekToCursor = configGet("s3.cursor.seek").map(Boolean::parseBoolean).orElse(true);
+    configGet("s3.cursor.fetch.timeout.ms")
         .map(Long::parseLong)
-        .ifPresentOrElse(
-            gracePeriodMs -> this.gracePeriodMs = gracePeriodMs,
-            () -> gracePeriodMs = flushIntervalMs > 0 ? flushIntervalMs / 2 : -1);
+        .ifPresent(timeout -> this.cursorFetchTimeoutMs = timeout);
+
+    String cursor = configGet("s3.cursor.mode").orElse("file");
+    switch (cursor) {
+      case "file":
+        cursorMode = S3Writer.CursorMode.FILE;
+        break;
+      case "commit":
+        cursorMode = S3Writer.CursorMode.COMMIT;
+        break;
+      case "none":
+        cursorMode = S3Writer.CursorMode.NONE;
+        break;
+      default:
+        throw new ConnectException("Unknown s3.cursor.mode: " + cursor);
+    }
+
+    indexFooter = configGet("s3.index.footer").map(Boolean::parseBoolean).orElse(false);
+    if (indexFooter && streamingUpload) {
+      // the footer length has to be in the object metadata, which a multipart upload sets first
+      throw new ConnectException("s3.index.footer can't be used with s3.streaming.upload");
+    }
+
+    if (durableBuffers && (bufferPool != null || streamingUpload)) {
+      throw new ConnectException(
+          "local.buffer.durable requires local.buffer.mode=disk and no s3.streaming.upload");
+    }
+
+    compressionParallelism = configGet("compression.parallelism").map(Integer::parseInt).orElse(1);
+    if (compressionParallelism < 1) {
+      throw new ConnectException("compression.parallelism must be at least 1");
+    }
+    if (compressionParallelism > 1) {
+      AtomicInteger threadCount = new AtomicInteger();
+      compressionPool =
+          Executors.newFixedThreadPool(
+              compressionParallelism,
+              r -> {
+                Thread thread =
+                    new Thread(r, name() + "-compression-" + threadCount.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+              });
+    }
 
     recordFormat = Configure.createFormat(props);
+    try {
+      codec = Configure.createCodec(props);
+    } catch (IllegalArgumentException e) {
+      throw new ConnectException(e.getMessage(), e);
+    }
+
+    checkpointRecords = configGet("block.checkpoint.records").map(Long::parseLong).orElse(0L);
+    checkpointBytes = configGet("block.checkpoint.bytes").map(Long::parseLong).orElse(0L);
+    if ((checkpointRecords > 0 || checkpointBytes > 0) && !codec.supportsCheckpoints()) {
+      throw new ConnectException(
+          "block.checkpoint.* can't be used with compression.type " + codec.name());
+    }
 
     keyConverter = ofNullable(Configure.buildConverter(config, "key.converter", true, null));
     valueConverter =
         Configure.buildConverter(config, "value.converter", false, AlreadyBytesConverter.class);
+    keyPassthrough = keyConverter.map(AlreadyBytesConverter::isPassthrough).orElse(false);
+    valuePassthrough = AlreadyBytesConverter.isPassthrough(valueConverter);
 
     String bucket =
         configGet("s3.bucket")
@@ -106,16 +261,38 @@ public class S3SinkTask extends SinkTask {
 
     Layout layout = Configure.createLayout(props);
 
-    s3 = new S3Writer(bucket, prefix, layout.getBuilder(), s3Client);
+    s3 = newS3Writer(bucket, prefix, layout, s3Client);
+    s3.setIndexFooter(indexFooter);
+
+    int uploadThreads = configGet("s3.upload.threads").map(Integer::parseInt).orElse(4);
+    uploader =
+        new AsyncUploader(
+            name(),
+            uploadThreads,
+            configGet("s3.upload.max.in.flight").map(Integer::parseInt).orElse(uploadThreads * 2));
+    configGet("s3.upload.close.timeout.ms")
+        .map(Long::parseLong)
+        .ifPresent(timeout -> this.uploadCloseTimeoutMs = timeout);
+
+    bufferBudget = configGet("local.buffer.max.bytes").map(Long::parseLong).orElse(-1L);
 
     metrics = Configure.metrics(props);
     tags = Configure.parseTags(props.get("metrics.tags"));
     tags.put("connector_name", name());
+    if (bufferPool != null) {
+      metrics.gauge("localBuffer.memoryBytes", tags, bufferPool::getBytesInUse);
+    }
+    metrics.gauge("localBuffer.bytes", tags, () -> bufferedBytes);
 
     // Recover initial assignments
     open(context.assignment());
   }
 
+  /** The writer that uploads finished files. Benchmarks override this to upload nowhere. */
+  protected S3Writer newS3Writer(String bucket, String prefix, Layout layout, AmazonS3 s3Client) {
+    return new S3Writer(bucket, prefix, layout, s3Client, codec, cursorMode);
+  }
+
   private Optional<String> configGet(String key) {
     return ofNullable(config.get(key));
   }
@@ -123,63 +300,306 @@ public class S3SinkTask extends SinkTask {
   @Override
   public void stop() throws ConnectException {
     // ensure we delete our temp files
-    for (PartitionWriter writer : partitions.values()) {
+    for (PartitionWriter writer : new ArrayList<>(partitions.values())) {
       log.debug("{} Stopping - Deleting temp file {}", name(), writer.getDataFile());
       writer.delete();
     }
+    if (uploader != null) {
+      uploader.close(uploadCloseTimeoutMs);
+    }
+    if (compressionPool != null) {
+      compressionPool.shutdownNow();
+    }
   }
 
   @Override
   public Map<TopicPartition, OffsetAndMetadata> preCommit(
       Map<TopicPartition, OffsetAndMetadata> currentOffsets) {
 
-    // here we flush in the following cases:
-    // * when no thresholds are defined (in this case flush interval is controlled by Kafka Connect
-    // settings)
-    // * when no new records were received for a long period of time
+    // roll whatever the policy says is done. With no policy configured that is every file, and
+    // Connect's commit interval decides how long files are
+    long now = System.currentTimeMillis();
     partitions.values().stream()
-        .filter(PartitionWriter::shouldFlush)
+        .filter(writer -> writer.shouldRollOnCommit(now))
         .collect(toList())
         .forEach(PartitionWriter::done);
 
-    log.debug("{} performing preCommit with offsets: {}", name(), offsetsToCommit);
-    Map<TopicPartition, OffsetAndMetadata> result = offsetsToCommit;
-    offsetsToCommit = new HashMap<>();
+    // only offsets of files that are already in S3 are safe to commit. The rest will be committed
+    // by a later preCommit once their uploads complete.
+    Map<TopicPartition, OffsetAndMetadata> result;
+    try {
+      result = uploader.completedOffsets();
+    } catch (RetriableException e) {
+      // Connect rewinds every partition to its last committed offset when preCommit fails, so
+      // anything buffered past that point will be consumed again and must be dropped.
+      log.warn("{} upload failed, discarding buffered records", name(), e);
+      new ArrayList<>(partitions.values()).forEach(PartitionWriter::delete);
+      throw e;
+    }
+
+    if (cursorMode == S3Writer.CursorMode.COMMIT && !result.isEmpty()) {
+      // one cursor per partition that finished files since the last commit, off this thread. The
+      // cursor only speeds up recovery, so failures are logged and retried rather than surfaced
+      uploader.execute(
+          () -> {
+            s3.flushCursors();
+            return null;
+          });
+    }
+
+    log.debug("{} performing preCommit with offsets: {}", name(), result);
     return result;
   }
 
   @Override
   public void put(Collection<SinkRecord> records) throws ConnectException {
-    records.stream()
-        .collect(groupingBy(record -> new TopicPartition(record.topic(), record.kafkaPartition())))
-        .forEach(
-            (tp, rs) -> {
-              long lastOffset = rs.get(rs.size() - 1).kafkaOffset();
-
-              log.trace(
-                  "{} received {} records for {} to archive. Last offset {}",
-                  name(),
-                  rs.size(),
-                  tp,
-                  lastOffset);
-
-              for (SinkRecord r : rs) {
-                PartitionWriter writer = partitions.computeIfAbsent(tp, t -> initWriter(t, r));
-
-                // checking if timestamps based flushing should be done
-                if (writer.shouldFlushBefore(r)) {
-                  writer.done();
-                  writer = partitions.computeIfAbsent(tp, t -> initWriter(t, r));
-                }
-
-                writer.writeRecord(r);
-
-                // checking if file size based flushing should be done
-                if (writer.shouldFlushAfter()) {
-                  writer.done();
-                }
-              }
-            });
+    List<SinkRecord> batch =
+        records instanceof List ? (List<SinkRecord>) records : new ArrayList<>(records);
+    // Connect hands over records in runs from the same partition, in offset order, so each run is
+    // written with a single writer lookup
+    int runStart = 0;
+    while (runStart < batch.size()) {
+      SinkRecord first = batch.get(runStart);
+      int runEnd = runStart + 1;
+      while (runEnd < batch.size() && samePartition(first, batch.get(runEnd))) {
+        runEnd++;
+      }
+
+      TopicPartition tp = topicPartition(first.topic(), first.kafkaPartition());
+      int next = runStart;
+      if (!cursors.isEmpty() || !orphans.isEmpty() || !skipUntil.isEmpty()) {
+        next = skipRecovered(tp, batch, runStart, runEnd);
+      }
+      if (log.isTraceEnabled()) {
+        log.trace(
+            "{} received {} records for {} to archive. Last offset {}",
+            name(),
+            runEnd - runStart,
+            tp,
+            batch.get(runEnd - 1).kafkaOffset());
+      }
+
+      while (next < runEnd) {
+        PartitionWriter writer = partitions.get(tp);
+        if (writer == null) {
+          writer = initWriter(tp, batch.get(next));
+          partitions.put(tp, writer);
+        }
+        next = writer.writeRecords(batch, next, runEnd);
+      }
+      runStart = runEnd;
+    }
+
+    // Connect keeps calling put() while partitions are paused, so this is also where they resume
+    enforceBufferBudget();
+  }
+
+  /**
+   * Keep the bytes buffered by the task under local.buffer.max.bytes. Over the budget, the largest
+   * open files are rolled first, until at most half the budget is in open files, so their uploads
+   * can free the space. If the task is still over the budget with little left open, uploads aren't
+   * keeping up, so the partitions holding the most bytes are paused until the task is back under
+   * half the budget.
+   */
+  private void enforceBufferBudget() {
+    if (bufferBudget < 0) {
+      return;
+    }
+    Map<TopicPartition, Long> held = new HashMap<>(uploadingBytes);
+    long open = 0;
+    for (PartitionWriter writer : partitions.values()) {
+      long bytes = writer.compressedBytes();
+      open += bytes;
+      held.merge(writer.tp, bytes, Long::sum);
+    }
+    long total = held.values().stream().mapToLong(Long::longValue).sum();
+    bufferedBytes = total;
+
+    if (total > bufferBudget) {
+      if (open > bufferBudget / 2) {
+        List<PartitionWriter> largestFirst = new ArrayList<>(partitions.values());
+        largestFirst.sort(Comparator.comparingLong(PartitionWriter::compressedBytes).reversed());
+        for (PartitionWriter writer : largestFirst) {
+          if (open <= bufferBudget / 2) {
+            break;
+          }
+          long bytes = writer.compressedBytes();
+          log.debug(
+              "{} rolling {} ({} bytes) to stay within the buffer budget",
+              name(),
+              writer.tp,
+              bytes);
+          writer.done();
+          open -= bytes;
+        }
+      } else {
+        pauseLargest(held, total);
+      }
+    } else if (total <= bufferBudget / 2 && !paused.isEmpty()) {
+      paused.retainAll(context.assignment());
+      log.info("{} resuming {} partitions", name(), paused.size());
+      context.resume(paused.toArray(new TopicPartition[0]));
+      paused.clear();
+    }
+  }
+
+  /**
+   * Pause the partitions holding the most bytes, largest first, until the ones paused hold enough
+   * to bring the task back under half the budget. A partition holding nothing isn't what the
+   * uploads are behind on, so it keeps going.
+   */
+  private void pauseLargest(Map<TopicPartition, Long> held, long total) {
+    long excess = total - bufferBudget / 2;
+    for (TopicPartition tp : paused) {
+      excess -= held.getOrDefault(tp, 0L);
+    }
+    Set<TopicPartition> assigned = context.assignment();
+    List<Map.Entry<TopicPartition, Long>> largestFirst =
+        held.entrySet().stream()
+            .filter(e -> e.getValue() > 0 && !paused.contains(e.getKey()))
+            .filter(e -> assigned.contains(e.getKey()))
+            .sorted(Map.Entry.<TopicPartition, Long>comparingByValue().reversed())
+            .collect(toList());
+    List<TopicPartition> pausing = new ArrayList<>();
+    for (Map.Entry<TopicPartition, Long> entry : largestFirst) {
+      if (excess <= 0) {
+        break;
+      }
+      pausing.add(entry.getKey());
+      excess -= entry.getValue();
+    }
+    if (pausing.isEmpty()) {
+      return;
+    }
+    paused.addAll(pausing);
+    log.info("{} pausing {} until {} buffered bytes are uploaded", name(), pausing, total);
+    context.pause(pausing.toArray(new TopicPartition[0]));
+    metrics.meter(1, "localBuffer.pause", tags);
+  }
+
+  private void addUploadingBytes(TopicPartition tp, long bytes) {
+    uploadingBytes.compute(
+        tp,
+        (t, held) -> {
+          long sum = (held == null ? 0 : held) + bytes;
+          return sum == 0 ? null : sum;
+        });
+  }
+
+  /**
+   * Skip the records of a newly assigned partition that are in S3 already, because the task died
+   * between an upload and the offset commit. Then upload its orphaned files that continue from
+   * there, and skip the records in them too.
+   *
+   * @return the index of the first record that isn't in S3 or a recovered file.
+   */
+  private int skipRecovered(TopicPartition tp, List<SinkRecord> batch, int from, int to) {
+    Long cursor = cursors.remove(tp);
+    List<BufferManifest> manifests = orphans.remove(tp);
+    if (cursor != null || manifests != null) {
+      long position = batch.get(from).kafkaOffset();
+      if (cursor != null && cursor > position) {
+        log.info(
+            "{} {} is in S3 up to offset {}, skipping ahead from {}",
+            name(),
+            tp,
+            cursor - 1,
+            position);
+        metrics.meter(1, "open.cursorSeek", tags);
+        position = cursor;
+      }
+      if (manifests != null) {
+        position = uploadOrphans(tp, manifests, position);
+      }
+      skipUntil.put(tp, position);
+    }
+    Long upTo = skipUntil.get(tp);
+    if (upTo == null) {
+      return from;
+    }
+    int next = from;
+    while (next < to && batch.get(next).kafkaOffset() < upTo) {
+      next++;
+    }
+    if (next < to) {
+      skipUntil.remove(tp);
+    } else {
+      // don't fetch the rest of what is skipped
+      context.offset(tp, upTo);
+    }
+    return next;
+  }
+
+  /**
+   * Upload the orphans that form an unbroken run from the position consumption resumed at. Any
+   * others are either already committed or can't be trusted to line up, so they are deleted and
+   * their records consumed again.
+   *
+   * @return the offset after the recovered records.
+   */
+  private long uploadOrphans(TopicPartition tp, List<BufferManifest> manifests, long position) {
+    long next = position;
+    for (BufferManifest manifest : manifests) {
+      if (manifest.start_offset != next) {
+        log.info(
+            "{} deleting orphaned buffer of {} starting at offset {}, resuming from {}",
+            name(),
+            tp,
+            manifest.start_offset,
+            next);
+        manifest.delete();
+        continue;
+      }
+      File data = manifest.dataFile();
+      long bytes = data.length();
+      // the manifest doesn't know the first record, but a file only spans one event time bucket
+      BlockMetadata blockMetadata =
+          new BlockMetadata(
+              tp,
+              manifest.start_offset,
+              manifest.chunks.isEmpty() ? null : manifest.chunks.get(0).min_timestamp);
+      log.info(
+          "{} uploading orphaned buffer of {} for offsets {} to {}",
+          name(),
+          tp,
+          manifest.start_offset,
+          manifest.nextOffset() - 1);
+      liveBuffers.add(data);
+      addUploadingBytes(tp, bytes);
+      uploader.submit(
+          tp,
+          manifest.nextOffset(),
+          () -> {
+            try (Metrics.StopTimer ignored = metrics.time("s3Put", tags)) {
+              s3.putChunk(new FileBlockBuffer(data), manifest.index(), blockMetadata);
+            }
+          },
+          () -> {
+            manifest.delete();
+            liveBuffers.remove(data);
+            addUploadingBytes(tp, -bytes);
+          });
+      metrics.meter(1, "localBuffer.recovered", tags);
+      next = manifest.nextOffset();
+    }
+    return next;
+  }
+
+  private static boolean samePartition(SinkRecord a, SinkRecord b) {
+    return a.kafkaPartition().equals(b.kafkaPartition()) && a.topic().equals(b.topic());
+  }
+
+  private TopicPartition topicPartition(String topic, int partition) {
+    TopicPartition[] cached = topicPartitions.get(topic);
+    if (cached == null || cached.length <= partition) {
+      cached =
+          cached == null ? new TopicPartition[partition + 1] : Arrays.copyOf(cached, partition + 1);
+      topicPartitions.put(topic, cached);
+    }
+    if (cached[partition] == null) {
+      cached[partition] = new TopicPartition(topic, partition);
+    }
+    return cached[partition];
   }
 
   private String name() {
@@ -189,6 +609,15 @@ public class S3SinkTask extends SinkTask {
 
   @Override
   public void close(Collection<TopicPartition> partitions) {
+    paused.removeAll(partitions);
+    // orphans are left for whoever gets the partition next on this worker
+    orphans.keySet().removeAll(partitions);
+    cursors.keySet().removeAll(partitions);
+    skipUntil.keySet().removeAll(partitions);
+    // files that are still uploading can't be committed any more, but let them land in S3 so
+    // the next owner of the partition doesn't have to wait on them
+    uploader.awaitAndForget(partitions, uploadCloseTimeoutMs);
+
     // have already flushed, so just ensure the temp files are deleted (in case flush threw an
     // exception)
     partitions.stream()
@@ -199,8 +628,114 @@ public class S3SinkTask extends SinkTask {
 
   @Override
   public void open(Collection<TopicPartition> partitions) {
-    // nothing to do. we will create files when we are given the first record for a partition
+    // we will create files when we are given the first record for a partition
     // offsets are managed by Connect
+    if (seekToCursor) {
+      fetchCursors(partitions);
+    }
+    if (durableBuffers) {
+      findOrphans(partitions);
+    }
+  }
+
+  /**
+   * Read the S3 cursors of the newly assigned partitions, all at once on the upload threads.
+   * Without cursors, a single listing finds where all of them are. A partition whose cursor can't
+   * be read by s3.cursor.fetch.timeout.ms, including waiting for room on the upload threads, just
+   * doesn't skip anything.
+   */
+  private void fetchCursors(Collection<TopicPartition> assigned) {
+    if (assigned.isEmpty()) {
+      return;
+    }
+    long start = System.nanoTime();
+    long deadline = System.currentTimeMillis() + cursorFetchTimeoutMs;
+    if (cursorMode == S3Writer.CursorMode.NONE) {
+      List<TopicPartition> tps = new ArrayList<>(assigned);
+      try {
+        awaitCursor(
+                tps,
+                uploader.execute(() -> s3.fetchOffsetsByListing(tps), untilDeadline(deadline)),
+                deadline)
+            .ifPresent(cursors::putAll);
+      } catch (TimeoutException e) {
+        log.warn("{} timed out waiting to read the S3 cursors of {}", name(), tps);
+      }
+    } else {
+      Map<TopicPartition, Future<Long>> fetches = new HashMap<>();
+      try {
+        for (TopicPartition tp : assigned) {
+          fetches.put(tp, uploader.execute(() -> s3.fetchOffset(tp), untilDeadline(deadline)));
+        }
+      } catch (TimeoutException e) {
+        log.warn(
+            "{} timed out waiting to read the S3 cursors of {} partitions",
+            name(),
+            assigned.size() - fetches.size());
+      }
+      fetches.forEach(
+          (tp, fetch) ->
+              awaitCursor(tp, fetch, deadline).ifPresent(offset -> cursors.put(tp, offset)));
+    }
+    long elapsed = System.nanoTime() - start;
+    metrics.hist(elapsed, "open.fetchCursors.time", tags);
+    log.info(
+        "{} read the S3 cursors of {} partitions in {}ms",
+        name(),
+        assigned.size(),
+        TimeUnit.NANOSECONDS.toMillis(elapsed));
+  }
+
+  private static long untilDeadline(long deadline) {
+    return Math.max(0, deadline - System.currentTimeMillis());
+  }
+
+  /**
+   * @return the result of a cursor fetch, or nothing if it failed or missed the deadline.
+   */
+  private <T> Optional<T> awaitCursor(Object of, Future<T> fetch, long deadline) {
+    try {
+      return Optional.of(fetch.get(untilDeadline(deadline), TimeUnit.MILLISECONDS));
+    } catch (ExecutionException e) {
+      log.warn("{} could not read the S3 cursor of {}", name(), of, e.getCause());
+    } catch (TimeoutException e) {
+      fetch.cancel(true);
+      log.warn("{} timed out reading the S3 cursor of {}", name(), of);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new ConnectException("Interrupted reading S3 cursors", e);
+    }
+    return Optional.empty();
+  }
+
+  /** Find the files of the newly assigned partitions that a task before this one left behind. */
+  private void findOrphans(Collection<TopicPartition> assigned) {
+    for (BufferManifest manifest : BufferManifest.findAll(localBufferDirectory())) {
+      TopicPartition tp = manifest.topicPartition();
+      if (!assigned.contains(tp) || liveBuffers.contains(manifest.dataFile())) {
+        continue;
+      }
+      try {
+        if (codec.name().equals(manifest.codec) && manifest.truncateData()) {
+          orphans.computeIfAbsent(tp, t -> new ArrayList<>()).add(manifest);
+          continue;
+        }
+      } catch (IOException e) {
+        log.warn("{} could not recover {}", name(), manifest.dataFile(), e);
+      }
+      log.info("{} deleting unusable orphaned buffer {}", name(), manifest.dataFile());
+      manifest.delete();
+    }
+    orphans.values().forEach(list -> list.sort(Comparator.comparingLong(m -> m.start_offset)));
+    if (!orphans.isEmpty()) {
+      log.info("{} found orphaned buffers for {}", name(), orphans.keySet());
+    }
+  }
+
+  private File localBufferDirectory() {
+    return new File(
+        configGet("local.buffer.dir")
+            .orElseThrow(() -> new ConnectException("No local buffer directory configured")));
   }
 
   private PartitionWriter initWriter(TopicPartition tp, SinkRecord firstRecord) {
@@ -212,9 +747,11 @@ public class S3SinkTask extends SinkTask {
     }
   }
 
-  private class PartitionWriter {
+  private class PartitionWriter implements RolloverPolicy.OpenFile {
     private final TopicPartition tp;
     private final BlockGZIPFileWriter writer;
+    // null unless streaming uploads are enabled
+    private final StreamingUpload streaming;
     private final S3RecordsWriter format;
     private final Map<String, String> tags;
     private boolean finished;
@@ -222,6 +759,7 @@ public class S3SinkTask extends SinkTask {
     private final SinkRecord firstRecord;
     private SinkRecord lastRecord;
     private long lastRecordReceiveTime;
+    private final long openedAtMs = System.currentTimeMillis();
 
     private PartitionWriter(TopicPartition tp, SinkRecord firstRecord) throws IOException {
       this.tp = tp;
@@ -246,114 +784,165 @@ public class S3SinkTask extends SinkTask {
       writerTags.put("kafka_partition", "" + tp.partition());
       this.tags = writerTags;
 
-      writer =
-          new BlockGZIPFileWriter(
-              directory,
-              firstRecord.kafkaOffset(),
-              GZIPChunkThreshold,
-              format.init(tp.topic(), tp.partition(), firstRecord.kafkaOffset()));
+      StreamingUpload.PartFactory dataBuffers =
+          () ->
+              bufferPool == null
+                  ? new FileBlockBuffer(directory, "data")
+                  : new MemoryBlockBuffer(bufferPool, directory, "data");
+      streaming =
+          streamingUpload
+              ? new StreamingUpload(
+                  s3,
+                  uploader,
+                  new BlockMetadata(tp, firstRecord.kafkaOffset(), firstRecord.timestamp()),
+                  streamingPartBytes,
+                  dataBuffers)
+              : null;
+
+      try {
+        writer =
+            new BlockGZIPFileWriter(
+                streaming != null ? streaming.getDataBuffer() : dataBuffers.newPart(),
+                bufferPool == null
+                    ? new FileBlockBuffer(directory, "index")
+                    : new HeapBlockBuffer(),
+                firstRecord.kafkaOffset(),
+                GZIPChunkThreshold,
+                format.init(tp.topic(), tp.partition(), firstRecord.kafkaOffset()),
+                codec,
+                compressionPool,
+                compressionParallelism);
+      } catch (IOException | RuntimeException e) {
+        if (streaming != null) {
+          streaming.abort();
+        }
+        throw e;
+      }
+      writer.setIndexFooter(indexFooter);
+      writer.setCheckpointInterval(checkpointRecords, checkpointBytes);
+      if (streaming != null) {
+        writer.setChunkListener(streaming::chunkFinished);
+      }
+      if (durableBuffers) {
+        liveBuffers.add(writer.getDataFile());
+        writer.setChunkListener(this::writeManifest);
+      }
     }
 
-    public BlockGZIPFileWriter getWriter() {
-      return writer;
+    private void writeManifest() throws IOException {
+      BufferManifest.of(
+              tp,
+              writer.getStartOffset(),
+              codec.name(),
+              writer.getDataFile(),
+              writer.getFinishedChunks())
+          .write();
     }
 
-    /**
-     * The method checks whether a periodic flushing should be done.
-     *
-     * <p>If the flushing interval and the file size thresholds are not set it always returns true
-     * letting Kafka Connect to control when to flush.
-     *
-     * <p>Otherwise, if the flushing interval is defined and there were no new records to cause file
-     * size or timestamps based flushing it permits flushing.
-     *
-     * <p>Specifically it permits flushing when the time since the first record produced exceeds
-     * flushIntervalMs + gracePeriodMs (this guarantees any record produced at this point in time
-     * also satisfies timestamps based flushing criteria) and the time since the last record
-     * received exceeds gracePeriodMs (this prioritizes files size and/or timestamps based flushing
-     * when processing lagging messages).
-     *
-     * @return boolean whether to flush the partition writer
-     */
-    public boolean shouldFlush() {
-      // by default, we skip smart checks and this way fallback to time based flushes
-      // with timeouts configured on Kafka Connect worker level
-      if (flushIntervalMs == -1 && GZIPFileThreshold == -1) {
-        return true;
+    private void deleteFiles() {
+      File dataFile = writer.getDataFile();
+      writer.delete();
+      if (durableBuffers) {
+        //noinspection ResultOfMethodCallIgnored
+        BufferManifest.manifestFile(dataFile).delete();
+        liveBuffers.remove(dataFile);
       }
+    }
 
-      long now = Instant.now().toEpochMilli();
-      long timeSinceFirstRecordProduced = now - firstRecord.timestamp();
-      long timeSinceLastRecordReceived = now - lastRecordReceiveTime;
+    public BlockGZIPFileWriter getWriter() {
+      return writer;
+    }
 
-      boolean doWallTimeFlush =
-          flushIntervalMs != -1
-              && timeSinceFirstRecordProduced >= (flushIntervalMs + gracePeriodMs)
-              && timeSinceLastRecordReceived > gracePeriodMs;
-      if (doWallTimeFlush) {
-        log.debug("{} performing a wall time flush on {}", name(), tp);
+    private boolean shouldRollOnCommit(long now) {
+      if (rolloverPolicy.shouldRollOnCommit(this, now)) {
+        log.debug("{} rolling {} on commit", name(), tp);
         return true;
       }
-
       return false;
     }
 
-    /**
-     * The method checks whether the record r exceeds flushIntervalMs and therefore the partition
-     * writer must be flushed before accepting this record.
-     *
-     * @param r SinkRecord the next record to be written to the partition writer.
-     * @return boolean whether to flush the partition writer
-     */
-    public boolean shouldFlushBefore(SinkRecord r) {
-      long timeSinceFirstRecord = r.timestamp() - firstRecord.timestamp();
-      boolean doPeriodicFlush = flushIntervalMs != -1 && timeSinceFirstRecord >= flushIntervalMs;
-      if (doPeriodicFlush) {
-        log.debug("{} performing a timestamp flush on {}", name(), tp);
-        return true;
-      }
+    @Override
+    public long compressedBytes() {
+      return writer.getTotalCompressedSize();
+    }
 
-      return false;
+    @Override
+    public long uncompressedBytes() {
+      return writer.getTotalUncompressedSize();
     }
 
-    /**
-     * The method checks whether the lastly written record caused the file size to exceed
-     * GZIPFileThreshold. If it exceeded then the partition writer must be flushed before accepting
-     * any new records.
-     *
-     * @return boolean whether to flush the partition writer
-     */
-    public boolean shouldFlushAfter() {
-      boolean doFileSizeFlush =
-          GZIPFileThreshold != -1 && writer.getTotalCompressedSize() > GZIPFileThreshold;
-      if (doFileSizeFlush) {
-        log.debug("{} performing a file size flush on {}", name(), tp);
-        return true;
-      }
+    @Override
+    public long records() {
+      return writer.getNumRecords();
+    }
 
-      return false;
+    @Override
+    public long firstRecordTimestamp() {
+      return firstRecord.timestamp() == null ? -1 : firstRecord.timestamp();
     }
 
-    private void writeRecord(SinkRecord r) {
-      try (Metrics.StopTimer ignored = metrics.time("writeRecord", tags)) {
-        ProducerRecord<byte[], byte[]> pr =
-            new ProducerRecord<>(
-                r.topic(),
-                r.kafkaPartition(),
-                keyConverter
-                    .map(c -> c.fromConnectData(r.topic(), r.keySchema(), r.key()))
-                    .orElse(null),
-                valueConverter.fromConnectData(r.topic(), r.valueSchema(), r.value()));
+    @Override
+    public long openedAtMs() {
+      return openedAtMs;
+    }
 
-        byte[] formatted = format.write(pr);
+    @Override
+    public long lastWriteMs() {
+      return lastRecordReceiveTime;
+    }
 
-        writer.write(formatted, 1);
+    /**
+     * Write records from the same partition until the end of the run, or until one of them causes
+     * this writer to be flushed.
+     *
+     * @return the index of the first record that wasn't written. If it is less than to, this writer
+     *     is done and the rest belongs in a new one.
+     */
+    private int writeRecords(List<SinkRecord> records, int from, int to) {
+      long start = System.nanoTime();
+      Converter keys = keyConverter.orElse(null);
+      int next = from;
+      try {
+        while (next < to) {
+          SinkRecord r = records.get(next);
+          if (lastRecord != null && rolloverPolicy.shouldRollBefore(this, r)) {
+            log.debug("{} rolling {} before offset {}", name(), tp, r.kafkaOffset());
+            done();
+            break;
+          }
+
+          recordBuffer.reset();
+          format.write(
+              r.topic(),
+              r.kafkaPartition(),
+              keys == null
+                  ? null
+                  : AlreadyBytesConverter.fromConnectData(
+                      keys, keyPassthrough, r.topic(), r.keySchema(), r.key()),
+              AlreadyBytesConverter.fromConnectData(
+                  valueConverter, valuePassthrough, r.topic(), r.valueSchema(), r.value()),
+              recordBuffer);
+          writer.write(recordBuffer.array(), 0, recordBuffer.size(), 1, r.timestamp());
+          lastRecord = r;
+          next++;
+
+          if (rolloverPolicy.shouldRollAfter(this)) {
+            log.debug("{} rolling {} after offset {}", name(), tp, r.kafkaOffset());
+            done();
+            break;
+          }
+        }
       } catch (IOException e) {
         throw new RetriableException("Failed to write to buffer", e);
+      } finally {
+        int written = next - from;
+        if (written > 0) {
+          lastRecordReceiveTime = System.currentTimeMillis();
+          metrics.hist(System.nanoTime() - start, "writeRecords.time", tags);
+          metrics.meter(written, "writeRecord.rate", tags);
+        }
       }
-
-      lastRecord = r;
-      lastRecordReceiveTime = Instant.now().toEpochMilli();
+      return next;
     }
 
     public File getDataFile() {
@@ -361,12 +950,18 @@ public class S3SinkTask extends SinkTask {
     }
 
     public void delete() {
-      writer.delete();
+      if (streaming != null) {
+        streaming.abort();
+      }
+      deleteFiles();
       partitions.remove(tp);
     }
 
+    /**
+     * Seals the file and hands it to the uploader. The partition gets a new writer on its next
+     * record, so consumption continues while the upload runs in the background.
+     */
     public void done() {
-      Metrics.StopTimer time = metrics.time("s3Put", tags);
       try {
         if (!finished) {
           writer.write(format.finish(tp.topic(), tp.partition()), 0);
@@ -375,23 +970,50 @@ public class S3SinkTask extends SinkTask {
         if (!closed) {
           writer.close();
           closed = true;
+          if (durableBuffers) {
+            // all of it can be recovered now
+            writeManifest();
+          }
         }
-        final BlockMetadata blockMetadata = new BlockMetadata(tp, writer.getStartOffset());
-        s3.putChunk(writer.getDataFile(), writer.getIndexFile(), blockMetadata);
       } catch (IOException e) {
         throw new RetriableException("Error flushing " + tp, e);
       }
 
+      final AsyncUploader.Upload upload;
+      if (streaming != null) {
+        try {
+          upload = streaming.complete(writer.getIndexBuffer());
+        } catch (IOException e) {
+          throw new RetriableException("Error uploading last part of " + tp, e);
+        }
+      } else {
+        final BlockMetadata blockMetadata =
+            new BlockMetadata(tp, writer.getStartOffset(), firstRecord.timestamp());
+        upload = () -> s3.putChunk(writer.getDataBuffer(), writer.getIndexBuffer(), blockMetadata);
+      }
       // here + 1 is required as the committed offset must point the first unprocessed message
-      offsetsToCommit.put(tp, new OffsetAndMetadata(lastRecord.kafkaOffset() + 1));
-      log.debug(
-          "{} updating safe to commit offsets with pair {}:{}",
-          name(),
-          tp,
-          offsetsToCommit.get(tp));
-
-      delete();
-      time.stop();
+      final long nextOffset = lastRecord.kafkaOffset() + 1;
+      final long bytes = writer.getTotalCompressedSize();
+      partitions.remove(tp);
+      addUploadingBytes(tp, bytes);
+      try {
+        uploader.submit(
+            tp,
+            nextOffset,
+            () -> {
+              try (Metrics.StopTimer ignored = metrics.time("s3Put", tags)) {
+                upload.run();
+              }
+            },
+            () -> {
+              deleteFiles();
+              addUploadingBytes(tp, -bytes);
+            });
+      } catch (RuntimeException e) {
+        addUploadingBytes(tp, -bytes);
+        throw e;
+      }
+      log.debug("{} queued upload of {} up to offset {}", name(), tp, nextOffset);
     }
   }
 }
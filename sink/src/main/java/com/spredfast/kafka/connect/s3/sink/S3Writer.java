@@ -1,25 +1,45 @@
 package com.spredfast.kafka.connect.s3.sink;
 
+import static java.util.stream.Collectors.groupingBy;
+
 import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.AbortMultipartUploadRequest;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.CompleteMultipartUploadRequest;
+import com.amazonaws.services.s3.model.InitiateMultipartUploadRequest;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.ObjectMetadata;
+import com.amazonaws.services.s3.model.PartETag;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.amazonaws.services.s3.model.UploadPartRequest;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.TransferManagerBuilder;
-import com.amazonaws.services.s3.transfer.Upload;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.spredfast.kafka.connect.s3.BlockCodec;
+import com.spredfast.kafka.connect.s3.BlockCodecs;
 import com.spredfast.kafka.connect.s3.BlockMetadata;
+import com.spredfast.kafka.connect.s3.IndexFooter;
 import com.spredfast.kafka.connect.s3.Layout;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
 import com.spredfast.kafka.connect.s3.json.ChunksIndex;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
 import org.apache.kafka.common.TopicPartition;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -34,12 +54,29 @@ import org.slf4j.LoggerFactory;
 public class S3Writer {
   private static final Logger log = LoggerFactory.getLogger(S3SinkTask.class);
   private static final TimeZone UTC = TimeZone.getTimeZone("UTC");
+  private static final String INDEX_SUFFIX = ".index.json";
+
+  /** When the last_chunk_index cursor of a partition is written. */
+  public enum CursorMode {
+    /** After every file, before the upload is considered done. */
+    FILE,
+    /** Once per commit, for each partition that finished a file since the last one. */
+    COMMIT,
+    /** Never. Offsets are recovered by listing the index files. */
+    NONE
+  }
+
   private final ObjectReader reader = new ObjectMapper().readerFor(ChunksIndex.class);
   private String keyPrefix;
   private String bucket;
   private final Layout.Builder layoutBuilder;
   private AmazonS3 s3Client;
   private TransferManager tm;
+  private final BlockCodec codec;
+  private CursorMode cursorMode = CursorMode.FILE;
+  private Layout.Parser layoutParser;
+  private final Map<TopicPartition, PendingCursor> pendingCursors = new ConcurrentHashMap<>();
+  private boolean indexFooter = false;
 
   public S3Writer(
       String bucket, String keyPrefix, Layout.Builder layoutBuilder, AmazonS3 s3Client) {
@@ -51,12 +88,37 @@ public class S3Writer {
         TransferManagerBuilder.standard().withS3Client(s3Client).build());
   }
 
+  public S3Writer(
+      String bucket,
+      String keyPrefix,
+      Layout.Builder layoutBuilder,
+      AmazonS3 s3Client,
+      BlockCodec codec) {
+    this(
+        bucket,
+        keyPrefix,
+        layoutBuilder,
+        s3Client,
+        TransferManagerBuilder.standard().withS3Client(s3Client).build(),
+        codec);
+  }
+
   public S3Writer(
       String bucket,
       String keyPrefix,
       Layout.Builder layoutBuilder,
       AmazonS3 s3Client,
       TransferManager tm) {
+    this(bucket, keyPrefix, layoutBuilder, s3Client, tm, BlockCodecs.GZIP);
+  }
+
+  public S3Writer(
+      String bucket,
+      String keyPrefix,
+      Layout.Builder layoutBuilder,
+      AmazonS3 s3Client,
+      TransferManager tm,
+      BlockCodec codec) {
     if (keyPrefix.length() > 0 && !keyPrefix.endsWith("/")) {
       keyPrefix += "/";
     }
@@ -65,34 +127,259 @@ public class S3Writer {
     this.layoutBuilder = layoutBuilder;
     this.s3Client = s3Client;
     this.tm = tm;
+    this.codec = codec;
+  }
+
+  /**
+   * Write cursors as the mode says, and find offsets of partitions that have no cursor by listing
+   * the index files the parser recognizes.
+   */
+  public S3Writer(
+      String bucket,
+      String keyPrefix,
+      Layout layout,
+      AmazonS3 s3Client,
+      BlockCodec codec,
+      CursorMode cursorMode) {
+    this(
+        bucket,
+        keyPrefix,
+        layout,
+        s3Client,
+        TransferManagerBuilder.standard().withS3Client(s3Client).build(),
+        codec,
+        cursorMode);
+  }
+
+  public S3Writer(
+      String bucket,
+      String keyPrefix,
+      Layout layout,
+      AmazonS3 s3Client,
+      TransferManager tm,
+      BlockCodec codec,
+      CursorMode cursorMode) {
+    this(bucket, keyPrefix, layout.getBuilder(), s3Client, tm, codec);
+    this.layoutParser = layout.getParser();
+    this.cursorMode = cursorMode;
+  }
+
+  /**
+   * Expect data written with an {@link IndexFooter} and upload it as a single object, recording the
+   * footer length in its metadata. Data without a footer still gets a separate index.
+   */
+  public void setIndexFooter(boolean indexFooter) {
+    this.indexFooter = indexFooter;
   }
 
   public void putChunk(File dataFile, File indexFile, BlockMetadata metadata) throws IOException {
+    putChunk(new FileBlockBuffer(dataFile), new FileBlockBuffer(indexFile), metadata);
+  }
+
+  public void putChunk(BlockBuffer data, BlockBuffer index, BlockMetadata metadata)
+      throws IOException {
 
     // Build the base key once to make sure that both the data and the index keys always fall under
     // the same date.
-    final String baseKey = keyPrefix + layoutBuilder.buildBlockPath(metadata);
+    final String baseKey = buildBaseKey(metadata);
 
     // Put data file then index, then finally update/create the last_index_file marker
-    final String dataObjectKey = baseKey + ".gz";
-    final String indexObjectKey = baseKey + ".index.json";
+    final String dataObjectKey = baseKey + codec.extension();
+
+    long footerLength = 0;
+    if (indexFooter) {
+      try (InputStream in = index.inputStream()) {
+        footerLength = data.size() - reader.<ChunksIndex>readValue(in).totalSize();
+      }
+    }
 
     try {
-      Upload upload = tm.upload(this.bucket, dataObjectKey, dataFile);
-      upload.waitForCompletion();
+      upload(dataObjectKey, data, footerLength);
       log.debug("uploaded {} object to s3", dataObjectKey);
-      upload = tm.upload(this.bucket, indexObjectKey, indexFile);
-      upload.waitForCompletion();
+    } catch (Exception e) {
+      throw new IOException("Failed to upload to S3", e);
+    }
+
+    if (footerLength > 0) {
+      // the index is part of the data
+      updateCursor(dataObjectKey, metadata);
+    } else {
+      putIndex(baseKey, index, metadata);
+    }
+  }
+
+  /**
+   * @return the key, without extension, that the data and index of the block will be stored under.
+   */
+  public String buildBaseKey(BlockMetadata metadata) {
+    return keyPrefix + layoutBuilder.buildBlockPath(metadata);
+  }
+
+  /**
+   * Start a multipart upload of the data for the block with the given base key.
+   *
+   * @return the upload id.
+   */
+  public String startMultipartUpload(String baseKey) throws IOException {
+    try {
+      return s3Client
+          .initiateMultipartUpload(
+              new InitiateMultipartUploadRequest(bucket, baseKey + codec.extension()))
+          .getUploadId();
+    } catch (Exception e) {
+      throw new IOException("Failed to start multipart upload of " + baseKey, e);
+    }
+  }
+
+  public PartETag uploadPart(
+      String baseKey, String uploadId, int partNumber, BlockBuffer part, boolean lastPart)
+      throws IOException {
+    UploadPartRequest request =
+        new UploadPartRequest()
+            .withBucketName(bucket)
+            .withKey(baseKey + codec.extension())
+            .withUploadId(uploadId)
+            .withPartNumber(partNumber)
+            .withPartSize(part.size())
+            .withLastPart(lastPart);
+    Optional<File> file = part.file();
+    try (InputStream content = file.isPresent() ? null : part.inputStream()) {
+      if (file.isPresent()) {
+        request.setFile(file.get());
+      } else {
+        request.setInputStream(content);
+      }
+      return s3Client.uploadPart(request).getPartETag();
+    } catch (Exception e) {
+      throw new IOException("Failed to upload part " + partNumber + " of " + baseKey, e);
+    }
+  }
+
+  /**
+   * Complete a multipart upload of block data, then put the index and update the cursor just like
+   * {@link #putChunk(BlockBuffer, BlockBuffer, BlockMetadata)} does.
+   */
+  public void completeMultipartChunk(
+      String baseKey,
+      String uploadId,
+      List<PartETag> parts,
+      BlockBuffer index,
+      BlockMetadata metadata)
+      throws IOException {
+    try {
+      s3Client.completeMultipartUpload(
+          new CompleteMultipartUploadRequest(bucket, baseKey + codec.extension(), uploadId, parts));
+      log.debug("completed multipart upload of {}{} to s3", baseKey, codec.extension());
+    } catch (Exception e) {
+      throw new IOException("Failed to complete multipart upload of " + baseKey, e);
+    }
+
+    putIndex(baseKey, index, metadata);
+  }
+
+  public void abortMultipartUpload(String baseKey, String uploadId) {
+    try {
+      s3Client.abortMultipartUpload(
+          new AbortMultipartUploadRequest(bucket, baseKey + codec.extension(), uploadId));
+    } catch (Exception e) {
+      // the bucket's lifecycle rules have to clean up after us
+      log.warn("Failed to abort multipart upload of {}", baseKey, e);
+    }
+  }
+
+  private void putIndex(String baseKey, BlockBuffer index, BlockMetadata metadata)
+      throws IOException {
+    final String indexObjectKey = baseKey + INDEX_SUFFIX;
+    try {
+      upload(indexObjectKey, index);
       log.debug("uploaded {} object to s3", indexObjectKey);
     } catch (Exception e) {
       throw new IOException("Failed to upload to S3", e);
     }
 
-    this.updateCursorFile(indexObjectKey, metadata.getTopicPartition());
+    updateCursor(indexObjectKey, metadata);
+  }
+
+  private void updateCursor(String indexObjectKey, BlockMetadata metadata) throws IOException {
+    switch (cursorMode) {
+      case FILE:
+        this.updateCursorFile(indexObjectKey, metadata.getTopicPartition());
+        break;
+      case COMMIT:
+        // the uploads of a partition finish in order, so the newest is the furthest along. Still
+        // keep whichever is, so that a cursor can never move back
+        pendingCursors.merge(
+            metadata.getTopicPartition(),
+            new PendingCursor(metadata.getStartOffset(), indexObjectKey),
+            (a, b) -> a.startOffset >= b.startOffset ? a : b);
+        break;
+      case NONE:
+        break;
+    }
+  }
+
+  /**
+   * Write the cursors that {@link CursorMode#COMMIT} has held back since the last call, one per
+   * partition no matter how many files it finished. A cursor that fails is kept for the next call,
+   * unless a newer one replaced it in the meantime.
+   */
+  public void flushCursors() {
+    for (TopicPartition tp : pendingCursors.keySet()) {
+      PendingCursor cursor = pendingCursors.remove(tp);
+      if (cursor == null) {
+        continue;
+      }
+      try {
+        updateCursorFile(cursor.key, tp);
+      } catch (IOException e) {
+        log.warn("Failed to update cursor of {}, will retry on the next commit", tp, e);
+        pendingCursors.putIfAbsent(tp, cursor);
+      }
+    }
+  }
+
+  private static final class PendingCursor {
+    final long startOffset;
+    final String key;
+
+    PendingCursor(long startOffset, String key) {
+      this.startOffset = startOffset;
+      this.key = key;
+    }
+  }
+
+  private void upload(String key, BlockBuffer buffer) throws Exception {
+    upload(key, buffer, 0);
+  }
+
+  private void upload(String key, BlockBuffer buffer, long footerLength) throws Exception {
+    Optional<File> file = buffer.file();
+    if (file.isPresent() && footerLength == 0) {
+      tm.upload(this.bucket, key, file.get()).waitForCompletion();
+      return;
+    }
+    ObjectMetadata md = new ObjectMetadata();
+    if (footerLength > 0) {
+      md.addUserMetadata(IndexFooter.METADATA_KEY, Long.toString(footerLength));
+    }
+    if (file.isPresent()) {
+      tm.upload(new PutObjectRequest(this.bucket, key, file.get()).withMetadata(md))
+          .waitForCompletion();
+      return;
+    }
+    // in memory, so stream it straight out
+    try (InputStream content = buffer.inputStream()) {
+      md.setContentLength(buffer.size());
+      tm.upload(new PutObjectRequest(this.bucket, key, content, md)).waitForCompletion();
+    }
   }
 
   public long fetchOffset(TopicPartition tp) throws IOException {
 
+    if (cursorMode == CursorMode.NONE) {
+      return fetchOffsetsByListing(Collections.singleton(tp)).get(tp);
+    }
+
     // See if cursor file exists
     String indexFileKey;
 
@@ -110,8 +397,12 @@ public class S3Writer {
       indexFileKey = sb.toString();
     } catch (AmazonS3Exception ase) {
       if (ase.getStatusCode() == 404) {
-        // Topic partition has no data in S3, start from beginning
-        return 0;
+        // Topic partition has no data in S3, or it was written without cursors. That is only worth
+        // a listing if the layout narrows it down to the partition's topic rather than everything
+        if (layoutBuilder.buildListingPrefix(tp).isEmpty()) {
+          return 0;
+        }
+        return fetchOffsetsByListing(Collections.singleton(tp)).get(tp);
       } else {
         throw new IOException("Failed to fetch cursor file", ase);
       }
@@ -119,7 +410,125 @@ public class S3Writer {
       throw new IOException("Failed to fetch or read cursor file", e);
     }
 
-    // Now fetch last written index file...
+    return readNextOffset(indexFileKey);
+  }
+
+  /**
+   * Find the index with the highest start offset of each partition among everything under the
+   * layout's listing prefix, looking at index footers of data objects too when they are written.
+   * Partitions that share a prefix are found with a single listing. Without a parser the partitions
+   * are assumed to have no data.
+   *
+   * @return the next offset of each partition.
+   */
+  public Map<TopicPartition, Long> fetchOffsetsByListing(Collection<TopicPartition> tps)
+      throws IOException {
+    Map<TopicPartition, Long> offsets = new HashMap<>();
+    if (layoutParser == null) {
+      tps.forEach(tp -> offsets.put(tp, 0L));
+      return offsets;
+    }
+    Map<TopicPartition, ListedIndexes> listed = new HashMap<>();
+    Map<String, List<TopicPartition>> byPrefix =
+        tps.stream().collect(groupingBy(tp -> keyPrefix + layoutBuilder.buildListingPrefix(tp)));
+    for (Map.Entry<String, List<TopicPartition>> entry : byPrefix.entrySet()) {
+      entry.getValue().forEach(tp -> listed.put(tp, new ListedIndexes()));
+      listIndexes(entry.getKey(), listed);
+    }
+    for (Map.Entry<TopicPartition, ListedIndexes> entry : listed.entrySet()) {
+      offsets.put(entry.getKey(), nextOffset(entry.getKey(), entry.getValue()));
+    }
+    return offsets;
+  }
+
+  // the newest index of a partition found by listing, and its newest data object, whose index may
+  // be in a footer
+  private static class ListedIndexes {
+    String indexKey;
+    long indexStart = -1;
+    S3ObjectSummary data;
+    long dataStart = -1;
+  }
+
+  private void listIndexes(String prefix, Map<TopicPartition, ListedIndexes> listed)
+      throws IOException {
+    try {
+      ObjectListing listing =
+          s3Client.listObjects(new ListObjectsRequest().withBucketName(bucket).withPrefix(prefix));
+      while (true) {
+        for (S3ObjectSummary summary : listing.getObjectSummaries()) {
+          String key = summary.getKey();
+          boolean isIndex = key.endsWith(INDEX_SUFFIX);
+          if (!isIndex && !(indexFooter && key.endsWith(codec.extension()))) {
+            continue;
+          }
+          BlockMetadata metadata;
+          try {
+            // the parser only knows data keys, which share the base key with the index
+            metadata =
+                layoutParser.parseBlockPath(
+                    isIndex
+                        ? key.substring(0, key.length() - INDEX_SUFFIX.length()) + codec.extension()
+                        : key);
+          } catch (IllegalArgumentException e) {
+            continue;
+          }
+          ListedIndexes last = listed.get(metadata.getTopicPartition());
+          if (last == null) {
+            continue;
+          }
+          if (isIndex && metadata.getStartOffset() > last.indexStart) {
+            last.indexStart = metadata.getStartOffset();
+            last.indexKey = key;
+          } else if (!isIndex && metadata.getStartOffset() > last.dataStart) {
+            last.dataStart = metadata.getStartOffset();
+            last.data = summary;
+          }
+        }
+        if (!listing.isTruncated()) {
+          break;
+        }
+        listing = s3Client.listNextBatchOfObjects(listing);
+      }
+    } catch (Exception e) {
+      throw new IOException("Failed to list index files under " + prefix, e);
+    }
+  }
+
+  private long nextOffset(TopicPartition tp, ListedIndexes listed) throws IOException {
+    // a newer data object than any index may have its index in a footer
+    if (listed.dataStart > listed.indexStart) {
+      String key = listed.data.getKey();
+      Optional<ChunksIndex> footer;
+      try {
+        footer = IndexFooter.read(s3Client, bucket, key, listed.data.getSize());
+      } catch (Exception e) {
+        throw new IOException("Failed to read the index footer of " + key, e);
+      }
+      if (footer.isPresent()) {
+        log.debug("Listing found last index of {} in {}", tp, key);
+        return footer.get().lastOffset() + 1;
+      }
+    }
+    log.debug("Listing found last index of {}: {}", tp, listed.indexKey);
+    return listed.indexKey == null ? 0 : readNextOffset(listed.indexKey);
+  }
+
+  private long readNextOffset(String indexFileKey) throws IOException {
+    if (!indexFileKey.endsWith(INDEX_SUFFIX)) {
+      // a data object with an index footer
+      try {
+        long size = s3Client.getObjectMetadata(bucket, indexFileKey).getContentLength();
+        ChunksIndex index =
+            IndexFooter.read(s3Client, bucket, indexFileKey, size)
+                .orElseThrow(() -> new IOException("No index footer in " + indexFileKey));
+        return index.lastOffset() + 1;
+      } catch (IOException e) {
+        throw e;
+      } catch (Exception e) {
+        throw new IOException("Failed to fetch or parse index footer of " + indexFileKey, e);
+      }
+    }
     try (S3Object indexObj = s3Client.getObject(this.bucket, indexFileKey);
         InputStreamReader isr = new InputStreamReader(indexObj.getObjectContent(), "UTF-8"); ) {
       return getNextOffsetFromIndexFileContents(isr);
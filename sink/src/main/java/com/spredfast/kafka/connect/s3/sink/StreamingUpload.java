@@ -0,0 +1,238 @@
+package com.spredfast.kafka.connect.s3.sink;
+
+import com.amazonaws.services.s3.model.PartETag;
+import com.spredfast.kafka.connect.s3.BlockMetadata;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Uploads the data of a block to S3 as a multipart upload while it is still being written.
+ *
+ * <p>Every chunk finished by {@link BlockGZIPFileWriter} is a complete gzip member, so the bytes up
+ * to a chunk boundary can be uploaded as a part right away. Chunks are accumulated until there are
+ * at least minPartBytes of them (S3 rejects parts under 5MB, other than the last one) and then cut
+ * off into a part, which is uploaded on the {@link AsyncUploader} threads and released afterwards.
+ * When the block is done only the final part and the index are left to upload.
+ *
+ * <p>Not thread safe: all methods must be called from the task thread.
+ */
+public class StreamingUpload {
+
+  private static final Logger log = LoggerFactory.getLogger(StreamingUpload.class);
+
+  /** Creates the buffers that hold each part until it is uploaded. */
+  public interface PartFactory {
+    BlockBuffer newPart() throws IOException;
+  }
+
+  private final S3Writer s3;
+  private final AsyncUploader uploader;
+  private final BlockMetadata metadata;
+  private final TopicPartition tp;
+  private final String baseKey;
+  private final long minPartBytes;
+  private final PartFactory partFactory;
+  private final PartsBuffer data = new PartsBuffer();
+  private final Future<String> uploadId;
+  private final List<Future<PartETag>> parts = new ArrayList<>();
+
+  public StreamingUpload(
+      S3Writer s3,
+      AsyncUploader uploader,
+      BlockMetadata metadata,
+      long minPartBytes,
+      PartFactory partFactory) {
+    this.s3 = s3;
+    this.uploader = uploader;
+    this.metadata = metadata;
+    this.tp = metadata.getTopicPartition();
+    this.baseKey = s3.buildBaseKey(metadata);
+    this.minPartBytes = minPartBytes;
+    this.partFactory = partFactory;
+    this.uploadId = uploader.execute(() -> s3.startMultipartUpload(baseKey));
+  }
+
+  /** The buffer to give the {@link BlockGZIPFileWriter} for its data. */
+  public BlockBuffer getDataBuffer() {
+    return data;
+  }
+
+  /** Cut a part if enough finished chunks have accumulated. Use as the writer's chunk listener. */
+  public void chunkFinished() throws IOException {
+    if (data.current != null && data.current.size() >= minPartBytes) {
+      uploadPart(false);
+    }
+  }
+
+  /**
+   * Queue the final part. The block writer must be closed.
+   *
+   * @return the upload that completes the block once all of its parts are in S3, and puts the
+   *     index.
+   */
+  public AsyncUploader.Upload complete(BlockBuffer index) throws IOException {
+    if (data.current != null || parts.isEmpty()) {
+      uploadPart(true);
+    }
+    return () -> {
+      String id = await(uploadId);
+      List<PartETag> etags = new ArrayList<>(parts.size());
+      try {
+        for (Future<PartETag> part : parts) {
+          etags.add(await(part));
+        }
+        s3.completeMultipartChunk(baseKey, id, etags, index, metadata);
+      } catch (IOException | RuntimeException e) {
+        s3.abortMultipartUpload(baseKey, id);
+        throw e;
+      }
+    };
+  }
+
+  /** Give up on the block. Buffered data is dropped and the upload is aborted in the background. */
+  public void abort() {
+    data.delete();
+    uploader.execute(
+        () -> {
+          String id;
+          try {
+            id = await(uploadId);
+          } catch (IOException e) {
+            // never started, so there is nothing to abort
+            return null;
+          }
+          for (Future<PartETag> part : parts) {
+            try {
+              await(part);
+            } catch (IOException e) {
+              log.debug("Part of aborted upload {} failed", baseKey, e);
+            }
+          }
+          s3.abortMultipartUpload(baseKey, id);
+          return null;
+        });
+  }
+
+  private void uploadPart(boolean lastPart) throws IOException {
+    BlockBuffer part = data.cut();
+    int partNumber = parts.size() + 1;
+    log.debug("{} uploading part {} of {} ({} bytes)", tp, partNumber, baseKey, part.size());
+    parts.add(
+        uploader.execute(
+            () -> {
+              try {
+                return s3.uploadPart(baseKey, await(uploadId), partNumber, part, lastPart);
+              } finally {
+                part.delete();
+              }
+            }));
+  }
+
+  private static <T> T await(Future<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      if (e.getCause() instanceof IOException) {
+        throw (IOException) e.getCause();
+      }
+      throw new IOException(e.getCause());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted waiting for upload", e);
+    }
+  }
+
+  /**
+   * Appends to the current part, creating it on the first write after a cut. Parts that have been
+   * cut belong to their upload, so the contents can't be read back from here.
+   */
+  private class PartsBuffer implements BlockBuffer {
+    private BlockBuffer current;
+    private long cutBytes = 0;
+
+    private final OutputStream outputStream =
+        new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            currentStream().write(b);
+          }
+
+          @Override
+          public void write(byte[] b, int off, int len) throws IOException {
+            currentStream().write(b, off, len);
+          }
+
+          @Override
+          public void flush() throws IOException {
+            if (current != null) {
+              current.outputStream().flush();
+            }
+          }
+
+          @Override
+          public void close() throws IOException {
+            if (current != null) {
+              current.outputStream().close();
+            }
+          }
+        };
+
+    private OutputStream currentStream() throws IOException {
+      if (current == null) {
+        current = partFactory.newPart();
+      }
+      return current.outputStream();
+    }
+
+    private BlockBuffer cut() throws IOException {
+      if (current == null) {
+        // nothing written since the last cut. Only happens for a block with no data at all
+        current = partFactory.newPart();
+      }
+      BlockBuffer part = current;
+      part.outputStream().close();
+      cutBytes += part.size();
+      current = null;
+      return part;
+    }
+
+    @Override
+    public OutputStream outputStream() {
+      return outputStream;
+    }
+
+    @Override
+    public long size() {
+      return cutBytes + (current == null ? 0 : current.size());
+    }
+
+    @Override
+    public InputStream inputStream() {
+      throw new UnsupportedOperationException(
+          "Parts of " + baseKey + " are uploaded as they are cut");
+    }
+
+    @Override
+    public Optional<File> file() {
+      return Optional.empty();
+    }
+
+    @Override
+    public void delete() {
+      if (current != null) {
+        current.delete();
+        current = null;
+      }
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.spredfast.kafka.connect.s3.sink.AsyncUploader;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.errors.RetriableException;
+import org.junit.After;
+import org.junit.Test;
+
+public class AsyncUploaderTest {
+
+  private final TopicPartition tp = new TopicPartition("topic", 0);
+
+  private final TopicPartition otherTp = new TopicPartition("topic", 1);
+
+  private final AsyncUploader uploader = new AsyncUploader("test", 2, 4);
+
+  @After
+  public void tearDown() {
+    uploader.close(1000);
+  }
+
+  @Test
+  public void offsetsAreOnlyCommittedInUploadOrder() throws Exception {
+    CountDownLatch firstMayFinish = new CountDownLatch(1);
+    CountDownLatch secondStarted = new CountDownLatch(1);
+    CountDownLatch otherPartitionDone = new CountDownLatch(1);
+
+    uploader.submit(tp, 10, () -> await(firstMayFinish));
+    uploader.submit(tp, 20, secondStarted::countDown);
+    uploader.submit(otherTp, 5, otherPartitionDone::countDown);
+
+    // another partition's upload doesn't wait, but the second file of this one does
+    assertTrue(otherPartitionDone.await(5, TimeUnit.SECONDS));
+    assertFalse(secondStarted.await(100, TimeUnit.MILLISECONDS));
+    assertEquals(Collections.singletonMap(otherTp, new OffsetAndMetadata(5)), awaitOffsets());
+
+    firstMayFinish.countDown();
+    assertTrue(secondStarted.await(5, TimeUnit.SECONDS));
+    // the second upload may still be wrapping up, in which case the first is committable alone
+    Map<TopicPartition, OffsetAndMetadata> offsets = awaitOffsets();
+    if (offsets.get(tp).offset() == 10) {
+      offsets = awaitOffsets();
+    }
+    assertEquals(Collections.singletonMap(tp, new OffsetAndMetadata(20)), offsets);
+    // nothing new since the last call
+    assertEquals(Collections.emptyMap(), uploader.completedOffsets());
+  }
+
+  @Test
+  public void uploadsAfterAFailedOneOfTheSamePartitionDontRun() throws Exception {
+    CountDownLatch firstMayFail = new CountDownLatch(1);
+    AtomicBoolean secondRan = new AtomicBoolean();
+    CountDownLatch secondCleanedUp = new CountDownLatch(1);
+
+    uploader.submit(
+        tp,
+        10,
+        () -> {
+          await(firstMayFail);
+          throw new IOException("boom");
+        });
+    uploader.submit(tp, 20, () -> secondRan.set(true), secondCleanedUp::countDown);
+
+    firstMayFail.countDown();
+    // its files are still cleaned up
+    assertTrue(secondCleanedUp.await(5, TimeUnit.SECONDS));
+    assertFalse(secondRan.get());
+
+    try {
+      awaitOffsets();
+      fail("Expected the upload failure to be reported");
+    } catch (RetriableException expected) {
+      assertEquals("boom", expected.getCause().getMessage());
+    }
+
+    // the data is consumed again from the last commit, and uploads of it run as usual
+    uploader.submit(tp, 10, () -> {});
+    assertEquals(Collections.singletonMap(tp, new OffsetAndMetadata(10)), awaitOffsets());
+  }
+
+  @Test
+  public void failedUploadsAreReportedAndForgotten() throws Exception {
+    CountDownLatch failed = new CountDownLatch(1);
+    uploader.submit(
+        tp,
+        10,
+        () -> {
+          failed.countDown();
+          throw new IOException("boom");
+        });
+    assertTrue(failed.await(5, TimeUnit.SECONDS));
+
+    try {
+      awaitOffsets();
+      fail("Expected the upload failure to be reported");
+    } catch (RetriableException expected) {
+      assertEquals("boom", expected.getCause().getMessage());
+    }
+    assertEquals(Collections.emptyMap(), uploader.completedOffsets());
+  }
+
+  @Test
+  public void workCancelledBeforeItRunsGivesBackItsSlot() throws Exception {
+    CountDownLatch mayFinish = new CountDownLatch(1);
+    // both threads busy, and the other two slots queued
+    for (int i = 0; i < 2; i++) {
+      uploader.execute(
+          () -> {
+            await(mayFinish);
+            return null;
+          });
+    }
+    Future<?> queued = uploader.execute(() -> null);
+    Future<?> alsoQueued = uploader.execute(() -> null);
+    try {
+      uploader.execute(() -> null, 10);
+      fail("Expected no room for more work");
+    } catch (TimeoutException expected) {
+    }
+
+    queued.cancel(true);
+    alsoQueued.cancel(true);
+    Future<?> first = uploader.execute(() -> null, 1000);
+    Future<?> second = uploader.execute(() -> null, 1000);
+
+    mayFinish.countDown();
+    first.get(5, TimeUnit.SECONDS);
+    second.get(5, TimeUnit.SECONDS);
+  }
+
+  private Map<TopicPartition, OffsetAndMetadata> awaitOffsets() throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    Map<TopicPartition, OffsetAndMetadata> offsets = uploader.completedOffsets();
+    while (offsets.isEmpty() && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      offsets = uploader.completedOffsets();
+    }
+    return offsets;
+  }
+
+  private static void await(CountDownLatch latch) throws IOException {
+    try {
+      latch.await();
+    } catch (InterruptedException e) {
+      throw new IOException(e);
+    }
+  }
+}
@@ -1,20 +1,32 @@
 package com.spredfast.kafka.connect.s3;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.ChunkCheckpoint;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
 import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import com.spredfast.kafka.connect.s3.sink.BlockBuffer;
 import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.BufferPool;
+import com.spredfast.kafka.connect.s3.sink.HeapBlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.MemoryBlockBuffer;
 import java.io.BufferedReader;
 import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileReader;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.zip.GZIPInputStream;
 import org.junit.Before;
 import org.junit.Test;
@@ -200,6 +212,172 @@ public class BlockGZIPFileWriterTest {
     }
   }
 
+  @Test
+  public void testMemoryBufferMatchesFileOutput() throws Exception {
+    // big enough to stay in memory
+    assertMemoryBufferMatchesFileOutput(new BufferPool(1 << 20, 1024), false);
+  }
+
+  @Test
+  public void testMemoryBufferSpillsToDisk() throws Exception {
+    // only 4 small segments, so the data has to spill
+    assertMemoryBufferMatchesFileOutput(new BufferPool(4 * 128, 128), true);
+  }
+
+  private void assertMemoryBufferMatchesFileOutput(BufferPool pool, boolean expectSpill)
+      throws Exception {
+    BlockGZIPFileWriter fileWriter = new BlockGZIPFileWriter(tmpDir, 42, 1000);
+    MemoryBlockBuffer memoryBuffer = new MemoryBlockBuffer(pool, tmpDir, "data");
+    BlockGZIPFileWriter memoryWriter =
+        new BlockGZIPFileWriter(memoryBuffer, new HeapBlockBuffer(), 42, 1000, new byte[0]);
+
+    for (int i = 0; i < 500; i++) {
+      byte[] record = toRecord(String.format("Record %d", i));
+      fileWriter.write(record, 1);
+      memoryWriter.write(record, 1);
+    }
+    fileWriter.close();
+    memoryWriter.close();
+
+    assertEquals(expectSpill, memoryBuffer.isSpilled());
+    assertEquals(fileWriter.getDataFile().length(), memoryBuffer.size());
+    assertArrayEquals(Files.readAllBytes(fileWriter.getDataFile().toPath()), readAll(memoryBuffer));
+    assertArrayEquals(
+        Files.readAllBytes(fileWriter.getIndexFile().toPath()),
+        readAll(memoryWriter.getIndexBuffer()));
+
+    memoryWriter.delete();
+    fileWriter.delete();
+    assertEquals(0, pool.getBytesInUse());
+  }
+
+  private static byte[] readAll(BlockBuffer buffer) throws Exception {
+    try (InputStream in = buffer.inputStream()) {
+      return in.readAllBytes();
+    }
+  }
+
+  @Test
+  public void testParallelCompressionMatchesSerialOutput() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(4);
+    try {
+      byte[] header = toRecord("header");
+      BlockGZIPFileWriter serial =
+          new BlockGZIPFileWriter(new HeapBlockBuffer(), new HeapBlockBuffer(), 42, 1000, header);
+      BlockGZIPFileWriter parallel =
+          new BlockGZIPFileWriter(
+              new HeapBlockBuffer(),
+              new HeapBlockBuffer(),
+              42,
+              1000,
+              header,
+              BlockCodecs.GZIP,
+              pool,
+              4);
+
+      for (int i = 0; i < 5000; i++) {
+        byte[] record = toRecord(String.format("Record %d", i));
+        serial.write(record, 1);
+        parallel.write(record, 1);
+      }
+      serial.close();
+      parallel.close();
+
+      assertTrue(parallel.getNumChunks() > 10);
+      assertEquals(serial.getTotalCompressedSize(), parallel.getTotalCompressedSize());
+      assertArrayEquals(readAll(serial.getDataBuffer()), readAll(parallel.getDataBuffer()));
+      assertArrayEquals(readAll(serial.getIndexBuffer()), readAll(parallel.getIndexBuffer()));
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCheckpointsStartReadingInsideAChunk() throws Exception {
+    ExecutorService pool = Executors.newFixedThreadPool(2);
+    try {
+      BlockGZIPFileWriter serial =
+          new BlockGZIPFileWriter(
+              new HeapBlockBuffer(), new HeapBlockBuffer(), 42, 20000, new byte[0]);
+      BlockGZIPFileWriter parallel =
+          new BlockGZIPFileWriter(
+              new HeapBlockBuffer(),
+              new HeapBlockBuffer(),
+              42,
+              20000,
+              new byte[0],
+              BlockCodecs.GZIP,
+              pool,
+              2);
+      serial.setCheckpointInterval(100, 1000);
+      parallel.setCheckpointInterval(100, 1000);
+
+      String[] expectedLines = new String[5000];
+      for (int i = 0; i < 5000; i++) {
+        expectedLines[i] = String.format("Record %d", i);
+        byte[] record = toRecord(expectedLines[i]);
+        serial.write(record, 1);
+        parallel.write(record, 1);
+      }
+      serial.close();
+      parallel.close();
+
+      byte[] data = readAll(serial.getDataBuffer());
+      assertArrayEquals(data, readAll(parallel.getDataBuffer()));
+      assertArrayEquals(readAll(serial.getIndexBuffer()), readAll(parallel.getIndexBuffer()));
+
+      // the flushes don't get in the way of reading the whole file
+      try (BufferedReader reader =
+          new BufferedReader(
+              new InputStreamReader(new GZIPInputStream(new ByteArrayInputStream(data))))) {
+        assertArrayEquals(expectedLines, reader.lines().toArray());
+      }
+
+      ChunksIndex index =
+          new ObjectMapper().readValue(readAll(serial.getIndexBuffer()), ChunksIndex.class);
+      ChunkDescriptor chunk = index.chunks.get(1);
+      assertTrue(chunk.checkpoints.size() > 10);
+      for (ChunkCheckpoint checkpoint : chunk.checkpoints) {
+        InputStream fromCheckpoint =
+            BlockCodecs.GZIP.decompressFromCheckpoint(
+                new ByteArrayInputStream(
+                    data,
+                    (int) checkpoint.byte_offset,
+                    data.length - (int) checkpoint.byte_offset));
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(fromCheckpoint))) {
+          int first = (int) checkpoint.record_offset - 42;
+          assertArrayEquals(
+              Arrays.copyOfRange(expectedLines, first, expectedLines.length),
+              reader.lines().toArray());
+        }
+      }
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  @Test
+  public void testCompressedSizeIsTrackedWhileWriting() throws Exception {
+    HeapBlockBuffer data = new HeapBlockBuffer();
+    // one big chunk, so only the open chunk's bytes can count
+    BlockGZIPFileWriter w =
+        new BlockGZIPFileWriter(data, new HeapBlockBuffer(), 0, 1 << 30, "header\n".getBytes());
+    Random random = new Random(7);
+    byte[] record = new byte[1000];
+    for (int i = 0; i < 1000; i++) {
+      random.nextBytes(record);
+      w.write(record, 1);
+    }
+    assertEquals(1, w.getNumChunks());
+    assertTrue(
+        "Open chunk should count, got " + w.getTotalCompressedSize(),
+        w.getTotalCompressedSize() > 900_000);
+
+    w.close();
+    assertEquals(data.size(), w.getTotalCompressedSize());
+    assertEquals(1000_000, w.getTotalUncompressedSize());
+  }
+
   @Test
   public void testDelete() throws Exception {
     // Make writer and write to it a bit.
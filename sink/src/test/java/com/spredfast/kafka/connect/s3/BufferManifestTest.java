@@ -0,0 +1,77 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.io.ByteStreams;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.BufferManifest;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.Test;
+
+public class BufferManifestTest {
+
+  private final TopicPartition tp = new TopicPartition("topic", 3);
+
+  @Test
+  public void testRecoversFinishedChunksOfAnAbandonedFile() throws Exception {
+    File dir = Files.createTempDirectory("BufferManifestTest").toFile();
+    BlockGZIPFileWriter writer = new BlockGZIPFileWriter(dir, 100, 50);
+    writer.setChunkListener(
+        () ->
+            BufferManifest.of(tp, 100, "gzip", writer.getDataFile(), writer.getFinishedChunks())
+                .write());
+
+    // 30 bytes per record, so each chunk has one record
+    for (int i = 0; i < 5; i++) {
+      writer.write(String.format("record %021d\n", i).getBytes(), 1);
+    }
+    // the task dies with the last chunk still open
+
+    List<BufferManifest> found = BufferManifest.findAll(dir);
+    assertEquals(1, found.size());
+    BufferManifest manifest = found.get(0);
+    assertEquals(tp, manifest.topicPartition());
+    assertEquals(writer.getDataFile(), manifest.dataFile());
+    assertEquals(104, manifest.nextOffset());
+
+    assertTrue(manifest.truncateData());
+    StringBuilder expected = new StringBuilder();
+    for (int i = 0; i < 4; i++) {
+      expected.append(String.format("record %021d\n", i));
+    }
+    try (InputStream in = new GZIPInputStream(new FileInputStream(manifest.dataFile()))) {
+      assertEquals(expected.toString(), new String(ByteStreams.toByteArray(in)));
+    }
+    try (InputStream in = manifest.index().inputStream()) {
+      ChunksIndex index = new ObjectMapper().readValue(in, ChunksIndex.class);
+      assertEquals(manifest.dataFile().length(), index.totalSize());
+      assertEquals(103, index.lastOffset());
+    }
+
+    manifest.delete();
+    assertFalse(manifest.dataFile().exists());
+    assertTrue(BufferManifest.findAll(dir).isEmpty());
+  }
+
+  @Test
+  public void testMissingDataCantBeRecovered() throws Exception {
+    File dir = Files.createTempDirectory("BufferManifestTest").toFile();
+    BlockGZIPFileWriter writer = new BlockGZIPFileWriter(dir, 0, 10);
+    writer.write("more than ten bytes\n".getBytes(), 1);
+    writer.write("and another chunk\n".getBytes(), 1);
+    BufferManifest.of(tp, 0, "gzip", writer.getDataFile(), writer.getFinishedChunks()).write();
+    writer.delete();
+
+    assertFalse(BufferManifest.findAll(dir).get(0).truncateData());
+  }
+}
@@ -0,0 +1,112 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableMap;
+import com.spredfast.kafka.connect.s3.sink.RolloverPolicies;
+import com.spredfast.kafka.connect.s3.sink.RolloverPolicy;
+import org.apache.kafka.common.record.TimestampType;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.junit.Test;
+
+public class RolloverPoliciesTest {
+
+  private final OpenFile file = new OpenFile();
+
+  @Test
+  public void testEveryCommitWhenNothingIsConfigured() {
+    RolloverPolicy policy = RolloverPolicies.fromConfig(ImmutableMap.of());
+    assertTrue(policy.shouldRollOnCommit(file, 0));
+    assertFalse(policy.shouldRollAfter(file));
+  }
+
+  @Test
+  public void testAnyConfiguredLimitRollsTheFile() {
+    RolloverPolicy policy =
+        RolloverPolicies.fromConfig(
+            ImmutableMap.of(
+                "compressed_file_size", "1000",
+                "rollover.records", "10",
+                "rollover.idle.ms", "5000"));
+    assertFalse(policy.shouldRollAfter(file));
+    assertFalse(policy.shouldRollOnCommit(file, 1000));
+
+    file.records = 10;
+    assertTrue(policy.shouldRollAfter(file));
+
+    file.records = 1;
+    file.compressedBytes = 3_000_000_000L;
+    assertTrue("Sizes past 2GB must not overflow", policy.shouldRollAfter(file));
+
+    file.compressedBytes = 0;
+    assertTrue(policy.shouldRollOnCommit(file, 6000));
+  }
+
+  @Test
+  public void testTimestampInterval() {
+    RolloverPolicy policy =
+        RolloverPolicies.fromConfig(
+            ImmutableMap.of("flush.interval.ms", "1000", "flush.grace.period.ms", "200"));
+    assertFalse(policy.shouldRollBefore(file, record(999)));
+    assertTrue(policy.shouldRollBefore(file, record(1000)));
+
+    // nothing received for longer than the grace period, and past interval + grace
+    assertTrue(policy.shouldRollOnCommit(file, 1200));
+    file.lastWriteMs = 1100;
+    assertFalse("Still receiving records", policy.shouldRollOnCommit(file, 1200));
+  }
+
+  @Test
+  public void testEventTimeBuckets() {
+    RolloverPolicy policy =
+        RolloverPolicies.fromConfig(
+            ImmutableMap.of("layout", "event_time", "layout.granularity", "hour"));
+    // the file's first record is at 0
+    assertFalse(policy.shouldRollBefore(file, record(3_599_999)));
+    assertTrue(policy.shouldRollBefore(file, record(3_600_000)));
+    assertTrue(
+        "Late records belong in their own bucket", policy.shouldRollBefore(file, record(-1)));
+  }
+
+  private static SinkRecord record(long timestamp) {
+    return new SinkRecord(
+        "topic", 0, null, null, null, new byte[0], 0, timestamp, TimestampType.CREATE_TIME);
+  }
+
+  private static class OpenFile implements RolloverPolicy.OpenFile {
+    long compressedBytes;
+    long records;
+    long lastWriteMs;
+
+    @Override
+    public long compressedBytes() {
+      return compressedBytes;
+    }
+
+    @Override
+    public long uncompressedBytes() {
+      return 0;
+    }
+
+    @Override
+    public long records() {
+      return records;
+    }
+
+    @Override
+    public long firstRecordTimestamp() {
+      return 0;
+    }
+
+    @Override
+    public long openedAtMs() {
+      return 0;
+    }
+
+    @Override
+    public long lastWriteMs() {
+      return lastWriteMs;
+    }
+  }
+}
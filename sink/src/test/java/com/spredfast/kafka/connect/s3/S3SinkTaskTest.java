@@ -0,0 +1,296 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.awaitility.Awaitility.await;
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.spredfast.kafka.connect.s3.sink.BlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.S3SinkTask;
+import com.spredfast.kafka.connect.s3.sink.S3Writer;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.connect.sink.SinkRecord;
+import org.apache.kafka.connect.sink.SinkTaskContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class S3SinkTaskTest {
+
+  private final TopicPartition tp0 = new TopicPartition("topic", 0);
+
+  private final TopicPartition tp1 = new TopicPartition("topic", 1);
+
+  private final TopicPartition tp2 = new TopicPartition("topic", 2);
+
+  private final S3Writer s3 = mock(S3Writer.class);
+
+  private final SinkTaskContext context = mock(SinkTaskContext.class);
+
+  private final Random random = new Random(42);
+
+  private final S3SinkTask task =
+      new S3SinkTask() {
+        @Override
+        protected S3Writer newS3Writer(
+            String bucket, String prefix, Layout layout, AmazonS3 s3Client) {
+          return s3;
+        }
+      };
+
+  @Before
+  public void setUp() {
+    when(context.assignment()).thenReturn(new HashSet<>(Arrays.asList(tp0, tp1, tp2)));
+    task.initialize(context);
+  }
+
+  @After
+  public void tearDown() {
+    task.stop();
+  }
+
+  @Test
+  public void theLargestOpenFilesAreRolledOverTheBudget() throws Exception {
+    givenATask("local.buffer.max.bytes", "10000");
+
+    List<SinkRecord> records = new ArrayList<>();
+    records.addAll(records(tp0, 0, 12));
+    records.addAll(records(tp1, 0, 3));
+    task.put(records);
+
+    // rolling tp0 leaves less than half the budget open, so tp1 keeps its file
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 0));
+    verify(s3, never()).putChunk(any(BlockBuffer.class), any(), startingAt(tp1, 0));
+    verify(context, never()).pause(any());
+  }
+
+  @Test
+  public void onlyThePartitionsHoldingTheMostBytesArePaused() throws Exception {
+    givenATask("local.buffer.max.bytes", "10000");
+    CountDownLatch uploadsMayFinish = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              uploadsMayFinish.await();
+              return null;
+            })
+        .when(s3)
+        .putChunk(any(BlockBuffer.class), any(), any());
+
+    // rolled, but stuck uploading
+    task.put(records(tp0, 0, 12));
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 0));
+
+    // still over the budget with little open: tp0 holds enough to get back under half of it
+    task.put(records(tp1, 0, 3));
+    ArgumentCaptor<TopicPartition> paused = ArgumentCaptor.forClass(TopicPartition.class);
+    verify(context).pause(paused.capture());
+    assertEquals(Collections.singletonList(tp0), paused.getAllValues());
+
+    // nothing more to pause while tp0's upload is pending
+    task.put(records(tp1, 3, 1));
+    verify(context).pause(any());
+
+    uploadsMayFinish.countDown();
+    await()
+        .atMost(5, TimeUnit.SECONDS)
+        .untilAsserted(
+            () -> {
+              task.put(Collections.emptyList());
+              verify(context).resume(tp0);
+            });
+  }
+
+  @Test
+  public void partitionsHoldingNothingAreNeverPaused() throws Exception {
+    givenATask("local.buffer.max.bytes", "10000");
+    CountDownLatch uploadsMayFinish = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              uploadsMayFinish.await();
+              return null;
+            })
+        .when(s3)
+        .putChunk(any(BlockBuffer.class), any(), any());
+
+    task.put(records(tp0, 0, 7));
+    task.put(records(tp1, 0, 7));
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp1, 0));
+
+    // neither upload alone gets the task back under half the budget
+    task.put(Collections.emptyList());
+    ArgumentCaptor<TopicPartition> paused = ArgumentCaptor.forClass(TopicPartition.class);
+    verify(context).pause(paused.capture());
+    assertEquals(new HashSet<>(Arrays.asList(tp0, tp1)), new HashSet<>(paused.getAllValues()));
+
+    uploadsMayFinish.countDown();
+  }
+
+  @Test
+  public void recordsBelowTheCursorAreSkipped() throws Exception {
+    when(s3.fetchOffset(tp0)).thenReturn(5L);
+    givenATask("s3.cursor.seek", "true");
+
+    task.put(records(tp0, 0, 10));
+    task.preCommit(Collections.emptyMap());
+
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 5));
+    verify(context, never()).offset(any(TopicPartition.class), anyLong());
+  }
+
+  @Test
+  public void aBatchBelowTheCursorSeeksToIt() throws Exception {
+    when(s3.fetchOffset(tp0)).thenReturn(20L);
+    givenATask("s3.cursor.seek", "true");
+
+    task.put(records(tp0, 0, 10));
+    verify(context).offset(tp0, 20L);
+
+    task.put(records(tp0, 20, 5));
+    task.preCommit(Collections.emptyMap());
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 20));
+    verify(s3, never()).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 0));
+  }
+
+  @Test
+  public void aCursorBehindTheRecordsSkipsNothing() throws Exception {
+    when(s3.fetchOffset(tp0)).thenReturn(3L);
+    givenATask("s3.cursor.seek", "true");
+
+    task.put(records(tp0, 10, 10));
+    task.preCommit(Collections.emptyMap());
+
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 10));
+    verify(context, never()).offset(any(TopicPartition.class), anyLong());
+  }
+
+  @Test
+  public void aCursorThatCantBeReadSkipsNothing() throws Exception {
+    when(s3.fetchOffset(tp0)).thenThrow(new IOException("boom"));
+    givenATask("s3.cursor.seek", "true");
+
+    task.put(records(tp0, 0, 10));
+    task.preCommit(Collections.emptyMap());
+
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 0));
+    verify(context, never()).offset(any(TopicPartition.class), anyLong());
+  }
+
+  @Test
+  public void aCursorFetchThatTimesOutSkipsNothing() throws Exception {
+    CountDownLatch never = new CountDownLatch(1);
+    when(s3.fetchOffset(tp0))
+        .thenAnswer(
+            invocation -> {
+              never.await();
+              return 5L;
+            });
+    givenATask("s3.cursor.seek", "true", "s3.cursor.fetch.timeout.ms", "100");
+
+    task.put(records(tp0, 0, 10));
+    task.preCommit(Collections.emptyMap());
+
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 0));
+  }
+
+  @Test(timeout = 30000)
+  public void cursorFetchesThatTimeOutLeaveRoomForUploads() throws Exception {
+    CountDownLatch s3Responds = new CountDownLatch(1);
+    when(s3.fetchOffset(any()))
+        .thenAnswer(
+            invocation -> {
+              // like an S3 call, not stopped by an interrupt
+              while (true) {
+                try {
+                  s3Responds.await();
+                  return 5L;
+                } catch (InterruptedException e) {
+                  // keep waiting
+                }
+              }
+            });
+    // two of the three fetches are stuck on the threads and the third is queued
+    givenATask(
+        "s3.cursor.seek",
+        "true",
+        "s3.cursor.fetch.timeout.ms",
+        "100",
+        "s3.upload.threads",
+        "2",
+        "s3.upload.max.in.flight",
+        "3");
+
+    task.put(records(tp0, 0, 10));
+    task.preCommit(Collections.emptyMap());
+
+    s3Responds.countDown();
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 0));
+  }
+
+  @Test
+  public void withoutCursorsOneListingFindsEveryPartition() throws Exception {
+    when(s3.fetchOffsetsByListing(any())).thenReturn(Collections.singletonMap(tp0, 5L));
+    givenATask("s3.cursor.seek", "true", "s3.cursor.mode", "none");
+
+    task.put(records(tp0, 0, 10));
+    task.preCommit(Collections.emptyMap());
+
+    verify(s3, timeout(5000)).putChunk(any(BlockBuffer.class), any(), startingAt(tp0, 5));
+    verify(s3).fetchOffsetsByListing(any());
+    verify(s3, never()).fetchOffset(any());
+  }
+
+  private void givenATask(String... settings) throws Exception {
+    Map<String, String> props = new HashMap<>();
+    props.put("name", "test");
+    props.put("s3.bucket", "bucket");
+    props.put("s3.region", "us-east-1");
+    props.put("s3.cursor.seek", "false");
+    props.put("local.buffer.dir", Files.createTempDirectory("S3SinkTaskTest").toString());
+    // one record to a chunk, so the compressed size of a file is known as soon as it is written
+    props.put("compressed_block_size", "1");
+    for (int i = 0; i < settings.length; i += 2) {
+      props.put(settings[i], settings[i + 1]);
+    }
+    task.start(props);
+  }
+
+  /** Records of about 1000 bytes that don't compress. */
+  private List<SinkRecord> records(TopicPartition tp, long offset, int count) {
+    List<SinkRecord> records = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      byte[] value = new byte[1000];
+      random.nextBytes(value);
+      records.add(new SinkRecord(tp.topic(), tp.partition(), null, null, null, value, offset + i));
+    }
+    return records;
+  }
+
+  private static BlockMetadata startingAt(TopicPartition tp, long offset) {
+    return argThat(
+        metadata ->
+            metadata != null
+                && metadata.getTopicPartition().equals(tp)
+                && metadata.getStartOffset() == offset);
+  }
+}
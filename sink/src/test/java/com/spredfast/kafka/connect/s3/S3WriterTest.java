@@ -3,20 +3,28 @@ package com.spredfast.kafka.connect.s3;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.argThat;
 import static org.mockito.Mockito.eq;
 import static org.mockito.Mockito.isA;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.model.AmazonS3Exception;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.PutObjectRequest;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.amazonaws.services.s3.transfer.TransferManager;
 import com.amazonaws.services.s3.transfer.Upload;
 import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.BufferPool;
+import com.spredfast.kafka.connect.s3.sink.HeapBlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.MemoryBlockBuffer;
 import com.spredfast.kafka.connect.s3.sink.S3Writer;
 import java.io.ByteArrayInputStream;
 import java.io.File;
@@ -24,7 +32,10 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.function.Supplier;
 import org.apache.kafka.common.TopicPartition;
 import org.junit.Before;
@@ -173,6 +184,39 @@ public class S3WriterTest {
     }
   }
 
+  @Test
+  public void testUploadFromMemory() throws Exception {
+    AmazonS3 s3Mock = mock(AmazonS3.class);
+    Layout.Builder layoutBuilder = new GroupedByDateLayout(DATE_SUPPLIER).getBuilder();
+    TransferManager tmMock = mock(TransferManager.class);
+    when(tmMock.upload(any(PutObjectRequest.class))).thenReturn(mock(Upload.class));
+
+    BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(
+            new MemoryBlockBuffer(new BufferPool(1 << 20, 1024), tmpDir, "data"),
+            new HeapBlockBuffer(),
+            0,
+            67108864,
+            new byte[0]);
+    writer.write("Record".getBytes(), 1);
+    writer.close();
+
+    S3Writer s3Writer = new S3Writer(testBucket, "pfx", layoutBuilder, s3Mock, tmMock);
+    s3Writer.putChunk(
+        writer.getDataBuffer(),
+        writer.getIndexBuffer(),
+        new BlockMetadata(new TopicPartition("bar", 0), 0));
+
+    ArgumentCaptor<PutObjectRequest> requests = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(tmMock, times(2)).upload(requests.capture());
+    PutObjectRequest data = requests.getAllValues().get(0);
+    assertEquals(getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 0, ".gz"), data.getKey());
+    assertEquals(writer.getDataBuffer().size(), data.getMetadata().getContentLength());
+    assertEquals(
+        getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 0, ".index.json"),
+        requests.getAllValues().get(1).getKey());
+  }
+
   private S3Object makeMockS3Object(String key, String contents) throws Exception {
     S3Object mock = new S3Object();
     mock.setBucketName(this.testBucket);
@@ -253,4 +297,169 @@ public class S3WriterTest {
     verify(s3Mock).getObject(eq(testBucket), eq(getKeyForIndex(layoutBuilder, "bar")));
     verify(s3Mock).getObject(eq(testBucket), eq(indexKey));
   }
+
+  @Test
+  public void testCommitCursorModeWritesOneCursorPerPartition() throws Exception {
+    AmazonS3 s3Mock = mock(AmazonS3.class);
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    TransferManager tmMock = mock(TransferManager.class);
+    when(tmMock.upload(any(PutObjectRequest.class))).thenReturn(mock(Upload.class));
+    S3Writer s3Writer =
+        new S3Writer(
+            testBucket,
+            "pfx",
+            layout,
+            s3Mock,
+            tmMock,
+            BlockCodecs.GZIP,
+            S3Writer.CursorMode.COMMIT);
+    TopicPartition tp = new TopicPartition("bar", 0);
+
+    // the second file finishes first
+    s3Writer.putChunk(new HeapBlockBuffer(), new HeapBlockBuffer(), new BlockMetadata(tp, 100));
+    s3Writer.putChunk(new HeapBlockBuffer(), new HeapBlockBuffer(), new BlockMetadata(tp, 0));
+    verify(s3Mock, never()).putObject(any(PutObjectRequest.class));
+
+    s3Writer.flushCursors();
+    verifyStringPut(
+        s3Mock,
+        getKeyForIndex(layout.getBuilder(), "bar"),
+        getKeyForFilename(layout.getBuilder(), "pfx", "bar", 0, 100, ".index.json"));
+
+    // nothing new since
+    s3Writer.flushCursors();
+    verify(s3Mock).putObject(any(PutObjectRequest.class));
+  }
+
+  @Test
+  public void testFetchOffsetByListingWithoutCursor() throws Exception {
+    AmazonS3 s3Mock = mock(AmazonS3.class);
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    Layout.Builder layoutBuilder = layout.getBuilder();
+    S3Writer s3Writer =
+        new S3Writer(testBucket, "pfx", layout, s3Mock, BlockCodecs.GZIP, S3Writer.CursorMode.NONE);
+    String lastIndexKey = getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 200, ".index.json");
+
+    ObjectListing first = new ObjectListing();
+    first.setTruncated(true);
+    addSummary(first, getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 0, ".gz"));
+    addSummary(first, getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 0, ".index.json"));
+    addSummary(first, getKeyForFilename(layoutBuilder, "pfx", "bar", 1, 500, ".index.json"));
+    addSummary(first, getKeyForIndex(layoutBuilder, "bar"));
+    ObjectListing second = new ObjectListing();
+    addSummary(second, lastIndexKey);
+    addSummary(second, getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 100, ".index.json"));
+
+    ArgumentCaptor<ListObjectsRequest> request = ArgumentCaptor.forClass(ListObjectsRequest.class);
+    when(s3Mock.listObjects(request.capture())).thenReturn(first);
+    when(s3Mock.listNextBatchOfObjects(first)).thenReturn(second);
+    when(s3Mock.getObject(eq(testBucket), eq(lastIndexKey)))
+        .thenReturn(
+            makeMockS3Object(
+                lastIndexKey,
+                "{\"chunks\":["
+                    + "{\"first_record_offset\":200,\"num_records\":50,\"byte_offset\":0,\"byte_length\":500}"
+                    + "]}"));
+
+    assertEquals(250, s3Writer.fetchOffset(new TopicPartition("bar", 0)));
+    assertEquals("pfx/bar/", request.getValue().getPrefix());
+    // no cursors in this mode, so it didn't look for one
+    verify(s3Mock, never()).getObject(eq(testBucket), eq(getKeyForIndex(layoutBuilder, "bar")));
+  }
+
+  @Test
+  public void testFetchOffsetsByListingListsEachPrefixOnce() throws Exception {
+    AmazonS3 s3Mock = mock(AmazonS3.class);
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    Layout.Builder layoutBuilder = layout.getBuilder();
+    S3Writer s3Writer =
+        new S3Writer(testBucket, "pfx", layout, s3Mock, BlockCodecs.GZIP, S3Writer.CursorMode.NONE);
+    String bar0Index = getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 200, ".index.json");
+    String bar1Index = getKeyForFilename(layoutBuilder, "pfx", "bar", 1, 500, ".index.json");
+
+    ObjectListing bar = new ObjectListing();
+    addSummary(bar, getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 100, ".index.json"));
+    addSummary(bar, bar0Index);
+    addSummary(bar, bar1Index);
+    when(s3Mock.listObjects(withPrefix("pfx/bar/"))).thenReturn(bar);
+    when(s3Mock.listObjects(withPrefix("pfx/baz/"))).thenReturn(new ObjectListing());
+    when(s3Mock.getObject(eq(testBucket), eq(bar0Index)))
+        .thenReturn(
+            makeMockS3Object(
+                bar0Index,
+                "{\"chunks\":[{\"first_record_offset\":200,\"num_records\":50,\"byte_offset\":0,\"byte_length\":500}]}"));
+    when(s3Mock.getObject(eq(testBucket), eq(bar1Index)))
+        .thenReturn(
+            makeMockS3Object(
+                bar1Index,
+                "{\"chunks\":[{\"first_record_offset\":500,\"num_records\":10,\"byte_offset\":0,\"byte_length\":100}]}"));
+
+    TopicPartition bar0 = new TopicPartition("bar", 0);
+    TopicPartition bar1 = new TopicPartition("bar", 1);
+    TopicPartition baz0 = new TopicPartition("baz", 0);
+    Map<TopicPartition, Long> expected = new HashMap<>();
+    expected.put(bar0, 250L);
+    expected.put(bar1, 510L);
+    expected.put(baz0, 0L);
+    assertEquals(expected, s3Writer.fetchOffsetsByListing(Arrays.asList(bar0, bar1, baz0)));
+    verify(s3Mock, times(2)).listObjects(any(ListObjectsRequest.class));
+  }
+
+  @Test
+  public void testFetchOffsetWithoutCursorDoesntListEverything() throws Exception {
+    AmazonS3 s3Mock = mock(AmazonS3.class);
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    S3Writer s3Writer =
+        new S3Writer(testBucket, "pfx", layout, s3Mock, BlockCodecs.GZIP, S3Writer.CursorMode.FILE);
+    AmazonS3Exception ase = new AmazonS3Exception("The specified key does not exist.");
+    ase.setStatusCode(404);
+    when(s3Mock.getObject(eq(testBucket), eq(getKeyForIndex(layout.getBuilder(), "bar"))))
+        .thenThrow(ase);
+
+    // the layout can't narrow a listing down to the partition, so it is assumed to be new
+    assertEquals(0, s3Writer.fetchOffset(new TopicPartition("bar", 0)));
+    verify(s3Mock, never()).listObjects(any(ListObjectsRequest.class));
+  }
+
+  @Test
+  public void testUploadWithIndexFooter() throws Exception {
+    AmazonS3 s3Mock = mock(AmazonS3.class);
+    Layout.Builder layoutBuilder = new GroupedByDateLayout(DATE_SUPPLIER).getBuilder();
+    TransferManager tmMock = mock(TransferManager.class);
+    when(tmMock.upload(any(PutObjectRequest.class))).thenReturn(mock(Upload.class));
+
+    BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(new HeapBlockBuffer(), new HeapBlockBuffer(), 0, 10, new byte[0]);
+    writer.setIndexFooter(true);
+    writer.write("Record 1".getBytes(), 1);
+    writer.write("Record 2".getBytes(), 1);
+    writer.close();
+
+    S3Writer s3Writer = new S3Writer(testBucket, "pfx", layoutBuilder, s3Mock, tmMock);
+    s3Writer.setIndexFooter(true);
+    s3Writer.putChunk(
+        writer.getDataBuffer(),
+        writer.getIndexBuffer(),
+        new BlockMetadata(new TopicPartition("bar", 0), 0));
+
+    // just the data, which the cursor points at
+    ArgumentCaptor<PutObjectRequest> requests = ArgumentCaptor.forClass(PutObjectRequest.class);
+    verify(tmMock).upload(requests.capture());
+    String dataKey = getKeyForFilename(layoutBuilder, "pfx", "bar", 0, 0, ".gz");
+    assertEquals(dataKey, requests.getValue().getKey());
+    assertEquals(
+        String.valueOf(IndexFooter.encode(writer.getFinishedChunks()).length),
+        requests.getValue().getMetadata().getUserMetaDataOf(IndexFooter.METADATA_KEY));
+    verifyStringPut(s3Mock, getKeyForIndex(layoutBuilder, "bar"), dataKey);
+  }
+
+  private static ListObjectsRequest withPrefix(String prefix) {
+    return argThat(request -> request != null && prefix.equals(request.getPrefix()));
+  }
+
+  private static void addSummary(ObjectListing listing, String key) {
+    S3ObjectSummary summary = new S3ObjectSummary();
+    summary.setKey(key);
+    listing.getObjectSummaries().add(summary);
+  }
 }
@@ -0,0 +1,145 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.amazonaws.services.s3.model.PartETag;
+import com.google.common.io.ByteStreams;
+import com.spredfast.kafka.connect.s3.sink.AsyncUploader;
+import com.spredfast.kafka.connect.s3.sink.BlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.HeapBlockBuffer;
+import com.spredfast.kafka.connect.s3.sink.S3Writer;
+import com.spredfast.kafka.connect.s3.sink.StreamingUpload;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.zip.GZIPInputStream;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.After;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+
+public class StreamingUploadTest {
+
+  private final TopicPartition tp = new TopicPartition("topic", 0);
+
+  private final AsyncUploader uploader = new AsyncUploader("test", 2, 4);
+
+  private final S3Writer s3 = mock(S3Writer.class);
+
+  // part number -> bytes
+  private final Map<Integer, byte[]> parts = new TreeMap<>();
+
+  @After
+  public void tearDown() {
+    uploader.close(1000);
+  }
+
+  @Test
+  public void testChunksAreUploadedAsPartsWhileWriting() throws Exception {
+    when(s3.buildBaseKey(any())).thenReturn("pfx/block");
+    when(s3.startMultipartUpload("pfx/block")).thenReturn("upload-1");
+    when(s3.uploadPart(eq("pfx/block"), eq("upload-1"), anyInt(), any(), anyBoolean()))
+        .thenAnswer(
+            invocation -> {
+              int partNumber = invocation.getArgument(2);
+              BlockBuffer part = invocation.getArgument(3);
+              try (InputStream in = part.inputStream()) {
+                synchronized (parts) {
+                  parts.put(partNumber, ByteStreams.toByteArray(in));
+                }
+              }
+              return new PartETag(partNumber, "etag" + partNumber);
+            });
+
+    BlockMetadata metadata = new BlockMetadata(tp, 0);
+    StreamingUpload upload = new StreamingUpload(s3, uploader, metadata, 100, HeapBlockBuffer::new);
+    // every record is a chunk of its own, and since random bytes don't compress, two chunks make
+    // a part
+    BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(upload.getDataBuffer(), new HeapBlockBuffer(), 0, 50, new byte[0]);
+    writer.setChunkListener(upload::chunkFinished);
+
+    Random random = new Random(42);
+    ByteArrayOutputStream expected = new ByteArrayOutputStream();
+    for (int i = 0; i < 9; i++) {
+      byte[] record = new byte[40];
+      random.nextBytes(record);
+      writer.write(record, 1);
+      expected.write(record);
+    }
+
+    // parts go out before the block is done
+    verify(s3, timeout(5000)).uploadPart(any(), any(), eq(4), any(), eq(false));
+
+    writer.close();
+    BlockBuffer index = writer.getIndexBuffer();
+    upload.complete(index).run();
+
+    @SuppressWarnings("unchecked")
+    ArgumentCaptor<List<PartETag>> etags = ArgumentCaptor.forClass(List.class);
+    verify(s3)
+        .completeMultipartChunk(
+            eq("pfx/block"), eq("upload-1"), etags.capture(), eq(index), eq(metadata));
+    assertEquals(
+        Arrays.asList("1:etag1", "2:etag2", "3:etag3", "4:etag4", "5:etag5"),
+        etags.getValue().stream()
+            .map(e -> e.getPartNumber() + ":" + e.getETag())
+            .collect(Collectors.toList()));
+
+    ByteArrayOutputStream object = new ByteArrayOutputStream();
+    for (Map.Entry<Integer, byte[]> part : parts.entrySet()) {
+      if (part.getKey() < parts.size()) {
+        assertTrue("Part " + part.getKey() + " is too small", part.getValue().length >= 100);
+      }
+      object.write(part.getValue());
+    }
+    assertEquals(writer.getTotalCompressedSize(), object.size());
+    assertArrayEquals(
+        expected.toByteArray(),
+        ByteStreams.toByteArray(
+            new GZIPInputStream(new ByteArrayInputStream(object.toByteArray()))));
+  }
+
+  @Test
+  public void testFailedPartAbortsTheUpload() throws Exception {
+    when(s3.buildBaseKey(any())).thenReturn("pfx/block");
+    when(s3.startMultipartUpload("pfx/block")).thenReturn("upload-1");
+    when(s3.uploadPart(any(), any(), anyInt(), any(), anyBoolean()))
+        .thenThrow(new IOException("boom"));
+
+    StreamingUpload upload =
+        new StreamingUpload(s3, uploader, new BlockMetadata(tp, 0), 100, HeapBlockBuffer::new);
+    BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(upload.getDataBuffer(), new HeapBlockBuffer(), 0, 50, new byte[0]);
+    writer.setChunkListener(upload::chunkFinished);
+    writer.write("record".getBytes(), 1);
+    writer.close();
+
+    try {
+      upload.complete(writer.getIndexBuffer()).run();
+      fail("Expected the part failure to fail the upload");
+    } catch (IOException expected) {
+      assertEquals("boom", expected.getMessage());
+    }
+    verify(s3).abortMultipartUpload("pfx/block", "upload-1");
+  }
+}
@@ -0,0 +1,204 @@
+package com.spredfast.kafka.connect.s3.source;
+
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.GetObjectRequest;
+import com.amazonaws.services.s3.model.S3Object;
+import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * The decompressed records of a run of chunks of one object, fetched with a ranged GET per group of
+ * chunks and decompressed on a pool, a few groups ahead of the reader. Every chunk is a gzip member
+ * or a frame of another codec of its own, so a group decompresses without the ones before it, and
+ * the groups are read back in order.
+ */
+class ChunkFetchStream extends InputStream {
+
+  private final AmazonS3 s3Client;
+
+  private final String bucket;
+
+  private final String key;
+
+  private final S3FilesReader.InputFilter inputFilter;
+
+  private final ExecutorService pool;
+
+  private final int maxGroups;
+
+  private final long maxBytes;
+
+  private final List<Group> groups = new ArrayList<>();
+
+  private final Deque<Fetch> fetches = new ArrayDeque<>();
+
+  private int nextGroup = 0;
+
+  private long fetchingBytes = 0;
+
+  private InputStream current = new ByteArrayInputStream(new byte[0]);
+
+  /**
+   * @param chunks consecutive chunks of the object, to read from the first.
+   * @param maxGroups how many groups to fetch at once.
+   * @param maxBytes how many decompressed bytes the groups being fetched may hold, though one is
+   *     always fetched. Chunks are grouped until they hold maxBytes / maxGroups, so that small
+   *     chunks share a GET.
+   */
+  ChunkFetchStream(
+      AmazonS3 s3Client,
+      String bucket,
+      String key,
+      List<ChunkDescriptor> chunks,
+      S3FilesReader.InputFilter inputFilter,
+      ExecutorService pool,
+      int maxGroups,
+      long maxBytes) {
+    this.s3Client = s3Client;
+    this.bucket = bucket;
+    this.key = key;
+    this.inputFilter = inputFilter;
+    this.pool = pool;
+    this.maxGroups = maxGroups;
+    this.maxBytes = maxBytes;
+
+    long groupBytes = maxBytes / maxGroups;
+    Group group = null;
+    for (ChunkDescriptor chunk : chunks) {
+      if (group == null || group.uncompressed >= groupBytes) {
+        group = new Group(chunk.byte_offset);
+        groups.add(group);
+      }
+      group.end = chunk.byte_offset + chunk.byte_length;
+      group.uncompressed += chunk.byte_length_uncompressed;
+    }
+    fetchMore();
+  }
+
+  private void fetchMore() {
+    while (nextGroup < groups.size() && fetches.size() < maxGroups) {
+      Group group = groups.get(nextGroup);
+      if (!fetches.isEmpty() && fetchingBytes + group.uncompressed > maxBytes) {
+        return;
+      }
+      fetches.add(new Fetch(group, pool.submit(() -> fetch(group))));
+      fetchingBytes += group.uncompressed;
+      nextGroup++;
+    }
+  }
+
+  private byte[] fetch(Group group) throws IOException {
+    GetObjectRequest request =
+        new GetObjectRequest(bucket, key).withRange(group.start, group.end - 1);
+    byte[] compressed = new byte[(int) (group.end - group.start)];
+    try (S3Object object = s3Client.getObject(request);
+        InputStream content = object.getObjectContent()) {
+      int length = 0;
+      for (int read = 0; read != -1 && length < compressed.length; ) {
+        read = content.read(compressed, length, compressed.length - length);
+        length += Math.max(read, 0);
+      }
+      if (length < compressed.length) {
+        throw new IOException(
+            "Expected " + compressed.length + " bytes of " + key + ", got " + length);
+      }
+    }
+    ByteArrayOutputStream decompressed =
+        new ByteArrayOutputStream((int) Math.min(group.uncompressed, Integer.MAX_VALUE - 8));
+    try (InputStream in = inputFilter.filter(key, new ByteArrayInputStream(compressed))) {
+      byte[] buffer = new byte[65536];
+      for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+        decompressed.write(buffer, 0, read);
+      }
+    }
+    return decompressed.toByteArray();
+  }
+
+  /** Move on to the next group, once the current one has been read. */
+  private boolean nextGroup() throws IOException {
+    Fetch fetch = fetches.poll();
+    if (fetch == null) {
+      return false;
+    }
+    try {
+      current = new ByteArrayInputStream(fetch.bytes.get());
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted fetching chunks of " + key, e);
+    } catch (ExecutionException e) {
+      throw new IOException("Failed to fetch chunks of " + key, e.getCause());
+    }
+    fetchingBytes -= fetch.group.uncompressed;
+    fetchMore();
+    return true;
+  }
+
+  @Override
+  public int read() throws IOException {
+    int b;
+    while ((b = current.read()) == -1) {
+      if (!nextGroup()) {
+        return -1;
+      }
+    }
+    return b;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    int read;
+    while ((read = current.read(b, off, len)) == -1) {
+      if (!nextGroup()) {
+        return -1;
+      }
+    }
+    return read;
+  }
+
+  @Override
+  public int available() throws IOException {
+    return current.available();
+  }
+
+  @Override
+  public void close() {
+    for (Fetch fetch : fetches) {
+      fetch.bytes.cancel(true);
+    }
+    fetches.clear();
+    nextGroup = groups.size();
+  }
+
+  private static final class Group {
+    final long start;
+    long end;
+    long uncompressed;
+
+    Group(long start) {
+      this.start = start;
+    }
+  }
+
+  private static final class Fetch {
+    final Group group;
+    final Future<byte[]> bytes;
+
+    Fetch(Group group, Future<byte[]> bytes) {
+      this.group = group;
+      this.bytes = bytes;
+    }
+  }
+}
@@ -0,0 +1,44 @@
+package com.spredfast.kafka.connect.s3.source;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The decompressed headers of objects, by key, for formats whose reader requires init(). A task
+ * keeps one across the {@link S3FilesReader}s it makes, so resuming in the middle of an object
+ * again after an error doesn't fetch its header again. Holds the most recently used maxEntries.
+ */
+public class HeaderCache {
+
+  private final Map<String, Header> headers;
+
+  public HeaderCache(int maxEntries) {
+    this.headers =
+        new LinkedHashMap<String, Header>(16, 0.75f, true) {
+          @Override
+          protected boolean removeEldestEntry(Map.Entry<String, Header> eldest) {
+            return size() > maxEntries;
+          }
+        };
+  }
+
+  synchronized Header get(String key) {
+    return headers.get(key);
+  }
+
+  synchronized void put(String key, Header header) {
+    headers.put(key, header);
+  }
+
+  /** A decompressed header, and the length of the object's bytes it was decompressed from. */
+  static final class Header {
+    final byte[] bytes;
+
+    final long length;
+
+    Header(byte[] bytes, long length) {
+      this.bytes = bytes;
+      this.length = length;
+    }
+  }
+}
@@ -0,0 +1,171 @@
+package com.spredfast.kafka.connect.s3.source;
+
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Records of many partitions, taking turns a batch at a time, rather than all of a partition's
+ * objects in a prefix before the next partition's. Every partition's objects are still read in
+ * order by a reader of its own, so its records and offsets are the same.
+ *
+ * <p>A partition in the middle of an object holds a GET open, so only so many partitions read at
+ * once. Another partition waiting for a turn takes over when one runs out of records or finishes an
+ * object, so none of them waits for another to read everything it has.
+ *
+ * <p>Objects are taken from the listing ahead of reading them until as many partitions are waiting
+ * for a turn as read at once, so that the partitions after the first in a prefix are found and none
+ * of them is left without a partition to take over. A partition may have many objects listed before
+ * the next one's, so no more than maxObjects are held. Like the records of {@link
+ * S3FilesReader#read(Iterator)}, hasNext() becomes true again when more objects turn up.
+ */
+class InterleavedRecords implements Iterator<S3SourceRecord> {
+
+  private final Iterator<S3ObjectSummary> objects;
+
+  private final Function<String, TopicPartition> partitionOf;
+
+  private final Function<Iterator<S3ObjectSummary>, Iterator<S3SourceRecord>> reader;
+
+  private final int maxReading;
+
+  private final int batch;
+
+  private final int maxObjects;
+
+  private final Map<TopicPartition, Cursor> cursors = new HashMap<>();
+
+  // the partitions reading, whose turn it is first
+  private final Deque<Cursor> reading = new ArrayDeque<>();
+
+  // partitions with objects to read, waiting for a turn
+  private final Deque<Cursor> waiting = new ArrayDeque<>();
+
+  private int taken = 0;
+
+  private int batchCount = 0;
+
+  /**
+   * @param reader reads the records of the objects of a partition, see {@link
+   *     S3FilesReader#read(Iterator)}.
+   * @param maxReading how many partitions read at once.
+   * @param batch how many records a partition returns in a turn.
+   * @param maxObjects the most objects to hold taken from the listing before they are read.
+   */
+  InterleavedRecords(
+      Iterator<S3ObjectSummary> objects,
+      Function<String, TopicPartition> partitionOf,
+      Function<Iterator<S3ObjectSummary>, Iterator<S3SourceRecord>> reader,
+      int maxReading,
+      int batch,
+      int maxObjects) {
+    this.objects = objects;
+    this.partitionOf = partitionOf;
+    this.reader = reader;
+    this.maxReading = maxReading;
+    this.batch = batch;
+    this.maxObjects = maxObjects;
+  }
+
+  @Override
+  public boolean hasNext() {
+    while (true) {
+      takeObjects();
+      while (reading.size() < maxReading && !waiting.isEmpty()) {
+        Cursor cursor = waiting.remove();
+        cursor.state = State.READING;
+        cursor.started = 0;
+        reading.add(cursor);
+        // so that the partition finds one waiting to take over before it looks for its next object
+        takeObjects();
+      }
+      Cursor cursor = reading.peek();
+      if (cursor == null) {
+        return false;
+      }
+      if (cursor.records.hasNext()) {
+        return true;
+      }
+      // out of records, or let someone else take a turn before its next object
+      reading.remove();
+      batchCount = 0;
+      if (cursor.objects.isEmpty()) {
+        cursor.state = State.IDLE;
+      } else {
+        cursor.state = State.WAITING;
+        waiting.add(cursor);
+      }
+    }
+  }
+
+  private void takeObjects() {
+    while (waiting.size() < maxReading && taken < maxObjects && objects.hasNext()) {
+      S3ObjectSummary object = objects.next();
+      Cursor cursor =
+          cursors.computeIfAbsent(partitionOf.apply(object.getKey()), tp -> new Cursor());
+      cursor.objects.add(object);
+      taken++;
+      if (cursor.state == State.IDLE) {
+        cursor.state = State.WAITING;
+        waiting.add(cursor);
+      }
+    }
+  }
+
+  @Override
+  public S3SourceRecord next() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Cursor cursor = reading.peek();
+    S3SourceRecord record = cursor.records.next();
+    if (++batchCount >= batch) {
+      batchCount = 0;
+      reading.add(reading.remove());
+    }
+    return record;
+  }
+
+  private enum State {
+    IDLE,
+    WAITING,
+    READING
+  }
+
+  private final class Cursor {
+    final Deque<S3ObjectSummary> objects = new ArrayDeque<>();
+
+    final Iterator<S3SourceRecord> records;
+
+    State state = State.IDLE;
+
+    // objects started in this turn
+    int started = 0;
+
+    Cursor() {
+      records =
+          reader.apply(
+              new Iterator<S3ObjectSummary>() {
+                @Override
+                public boolean hasNext() {
+                  return state == State.READING
+                      && !objects.isEmpty()
+                      && (started == 0 || waiting.isEmpty());
+                }
+
+                @Override
+                public S3ObjectSummary next() {
+                  started++;
+                  taken--;
+                  return objects.remove();
+                }
+              });
+    }
+  }
+}
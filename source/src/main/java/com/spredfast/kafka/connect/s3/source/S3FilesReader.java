@@ -11,22 +11,41 @@ import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.ObjectReader;
+import com.spredfast.kafka.connect.s3.BlockCodec;
+import com.spredfast.kafka.connect.s3.BlockCodecs;
 import com.spredfast.kafka.connect.s3.BlockMetadata;
+import com.spredfast.kafka.connect.s3.IndexFooter;
 import com.spredfast.kafka.connect.s3.Layout;
 import com.spredfast.kafka.connect.s3.LazyString;
 import com.spredfast.kafka.connect.s3.S3RecordsReader;
+import com.spredfast.kafka.connect.s3.json.ChunkCheckpoint;
 import com.spredfast.kafka.connect.s3.json.ChunkDescriptor;
 import com.spredfast.kafka.connect.s3.json.ChunksIndex;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.function.BiPredicate;
 import java.util.function.Supplier;
 import java.util.regex.Pattern;
@@ -47,10 +66,15 @@ import org.slf4j.LoggerFactory;
  *
  * <p>Any other exception should be considered a permanent failure.
  */
-public class S3FilesReader implements Iterable<S3SourceRecord> {
+public class S3FilesReader implements Iterable<S3SourceRecord>, Closeable {
 
   private static final Logger log = LoggerFactory.getLogger(S3FilesReader.class);
 
+  // ID1, ID2 and CM of a gzip member, and the length of the header they start
+  private static final byte[] GZIP_MEMBER_START = {0x1f, (byte) 0x8b, 8};
+
+  private static final int GZIP_HEADER_SIZE = 10;
+
   private final AmazonS3 s3Client;
 
   private final Supplier<S3RecordsReader> makeReader;
@@ -63,17 +87,46 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 
   private final S3SourceConfig config;
 
+  private final HeaderCache headers;
+
+  // created when first needed, only used by the reading thread
+  private ExecutorService prefetchExecutor;
+
+  private ExecutorService chunkFetchExecutor;
+
+  // of all the prefetchers, which take turns when partitions are interleaved
+  private long prefetchedBytes = 0;
+
+  // of all the prefetchers, for close() to cancel from any thread
+  private final Set<Future<ByteBuffer>> downloads = ConcurrentHashMap.newKeySet();
+
+  private volatile boolean closed;
+
   public S3FilesReader(
       S3SourceConfig config,
       AmazonS3 s3Client,
       Map<S3Partition, S3Offset> offsets,
       Layout.Parser layoutParser,
       Supplier<S3RecordsReader> recordReader) {
+    this(config, s3Client, offsets, layoutParser, recordReader, new HeaderCache(1000));
+  }
+
+  /**
+   * @param headers shared with earlier readers, so their headers aren't fetched again.
+   */
+  public S3FilesReader(
+      S3SourceConfig config,
+      AmazonS3 s3Client,
+      Map<S3Partition, S3Offset> offsets,
+      Layout.Parser layoutParser,
+      Supplier<S3RecordsReader> recordReader,
+      HeaderCache headers) {
     this.config = config;
     this.offsets = Optional.ofNullable(offsets).orElseGet(HashMap::new);
     this.s3Client = s3Client;
     this.layoutParser = layoutParser;
     this.makeReader = recordReader;
+    this.headers = headers;
   }
 
   public Iterator<S3SourceRecord> iterator() {
@@ -105,140 +158,240 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
     PartitionFilter MATCH_ALL = p -> true;
   }
 
-  private static final Pattern DATA_SUFFIX = Pattern.compile("\\.gz$");
+  private static final Pattern DATA_SUFFIX = Pattern.compile(BlockCodec.EXTENSION_PATTERN + "$");
 
+  /** Read everything listed after config.startMarker, listing a page at a time as needed. */
   public Iterator<S3SourceRecord> readAll() {
+    return read(listAll());
+  }
+
+  /**
+   * Whether an object with the given key should be read: it holds data for a partition that passes
+   * the filter, and isn't before the stored offset for its partition.
+   */
+  public boolean shouldRead(String key) {
+    if (!DATA_SUFFIX.matcher(key).find()
+        || !parseKeyUnchecked(key, (t, p, o) -> config.partitionFilter.matches(t, p))) {
+      return false;
+    }
+    S3Offset offset = offset(key);
+    // if our offset for this partition is beyond this chunk, ignore it
+    // this relies on filename lexicographic order being correct
+    if (offset != null && offset.getS3key().compareTo(key) > 0) {
+      log.debug("Skipping {} because < current offset of {}", key, offset);
+      return false;
+    }
+    return true;
+  }
+
+  private S3Offset offset(String key) {
+    final TopicPartition topicPartition = layoutParser.parseBlockPath(key).getTopicPartition();
+    return offsets.get(
+        S3Partition.from(
+            config.bucket, config.keyPrefix, topicPartition.topic(), topicPartition.partition()));
+  }
+
+  private Iterator<S3ObjectSummary> listAll() {
+    return new Iterator<S3ObjectSummary>() {
+      ObjectListing objectListing;
+      Iterator<S3ObjectSummary> nextFile = Collections.emptyIterator();
+
+      @Override
+      public boolean hasNext() {
+        while (!nextFile.hasNext() && (objectListing == null || objectListing.isTruncated())) {
+          // the partitions of each prefix (e.g., a day) are listed one after another: all of
+          // partition 0 before partition 1. read() takes turns between them unless
+          // config.interleavePartitions is 0, in which case have as many tasks as partitions.
+          if (objectListing == null) {
+            objectListing =
+                s3Client.listObjects(
+                    new ListObjectsRequest(
+                        config.bucket,
+                        config.keyPrefix,
+                        config.startMarker,
+                        null,
+                        // we have to filter out chunk indexes on this end, so
+                        // whatever the requested page size is, we'll need twice that
+                        config.pageSize * 2));
+            log.debug(
+                "aws ls {}/{} after:{} = {}",
+                config.bucket,
+                config.keyPrefix,
+                config.startMarker,
+                LazyString.of(
+                    () ->
+                        objectListing.getObjectSummaries().stream()
+                            .map(S3ObjectSummary::getKey)
+                            .collect(toList())));
+          } else {
+            String marker = objectListing.getNextMarker();
+            objectListing = s3Client.listNextBatchOfObjects(objectListing);
+            log.debug(
+                "aws ls {}/{} after:{} = {}",
+                config.bucket,
+                config.keyPrefix,
+                marker,
+                LazyString.of(
+                    () ->
+                        objectListing.getObjectSummaries().stream()
+                            .map(S3ObjectSummary::getKey)
+                            .collect(toList())));
+          }
+
+          List<S3ObjectSummary> chunks =
+              new ArrayList<>(objectListing.getObjectSummaries().size() / 2);
+          for (S3ObjectSummary chunk : objectListing.getObjectSummaries()) {
+            if (shouldRead(chunk.getKey())) {
+              chunks.add(chunk);
+            }
+          }
+          log.debug(
+              "Next Chunks: {}",
+              LazyString.of(() -> chunks.stream().map(S3ObjectSummary::getKey).collect(toList())));
+          nextFile = chunks.iterator();
+        }
+        return nextFile.hasNext();
+      }
+
+      @Override
+      public S3ObjectSummary next() {
+        hasNext();
+        return nextFile.next();
+      }
+    };
+  }
+
+  /**
+   * Read the given objects. When the objects run out, hasNext() of the records is false, but if
+   * more objects turn up later, e.g. because they are fed by an {@link S3ObjectDiscovery}, it
+   * becomes true again and reading carries on with them.
+   *
+   * <p>The objects of every partition are read in order. With config.interleavePartitions above 0,
+   * up to that many partitions take turns, config.interleaveRecords at a time, see {@link
+   * InterleavedRecords}. Otherwise the objects are read one after another as given.
+   */
+  public Iterator<S3SourceRecord> read(Iterator<S3ObjectSummary> objects) {
+    if (config.interleavePartitions <= 0) {
+      return readInOrder(objects);
+    }
+    return new InterleavedRecords(
+        objects,
+        key -> layoutParser.parseBlockPath(key).getTopicPartition(),
+        this::readInOrder,
+        config.interleavePartitions,
+        Math.max(1, config.interleaveRecords),
+        Math.max(1, config.interleaveMaxObjects));
+  }
+
+  private Iterator<S3SourceRecord> readInOrder(Iterator<S3ObjectSummary> objects) {
+    Prefetcher prefetcher = new Prefetcher(objects);
     Iterator<S3SourceRecord> iterator =
         new Iterator<S3SourceRecord>() {
           String currentKey;
 
-          ObjectListing objectListing;
-          Iterator<S3ObjectSummary> nextFile = Collections.emptyIterator();
           Iterator<ConsumerRecord<byte[], byte[]>> iterator = Collections.emptyIterator();
 
-          private void nextObject() {
-            while (!nextFile.hasNext() && hasMoreObjects()) {
-
-              // partitions will be read completely for each prefix (e.g., a day) in order.
-              // i.e., all of partition 0 will be read before partition 1. Seems like that will make
-              // perf wonky if
-              // there is an active, multi-partition consumer on the other end.
-              // to mitigate that, have as many tasks as partitions.
-              if (objectListing == null) {
-                objectListing =
-                    s3Client.listObjects(
-                        new ListObjectsRequest(
-                            config.bucket,
-                            config.keyPrefix,
-                            config.startMarker,
-                            null,
-                            // we have to filter out chunk indexes on this end, so
-                            // whatever the requested page size is, we'll need twice that
-                            config.pageSize * 2));
-                log.debug(
-                    "aws ls {}/{} after:{} = {}",
-                    config.bucket,
-                    config.keyPrefix,
-                    config.startMarker,
-                    LazyString.of(
-                        () ->
-                            objectListing.getObjectSummaries().stream()
-                                .map(S3ObjectSummary::getKey)
-                                .collect(toList())));
-              } else {
-                String marker = objectListing.getNextMarker();
-                objectListing = s3Client.listNextBatchOfObjects(objectListing);
-                log.debug(
-                    "aws ls {}/{} after:{} = {}",
-                    config.bucket,
-                    config.keyPrefix,
-                    marker,
-                    LazyString.of(
-                        () ->
-                            objectListing.getObjectSummaries().stream()
-                                .map(S3ObjectSummary::getKey)
-                                .collect(toList())));
-              }
+          // partitions that have found where to start from config.startTimestamp
+          final Set<TopicPartition> seeked = new HashSet<>();
 
-              List<S3ObjectSummary> chunks =
-                  new ArrayList<>(objectListing.getObjectSummaries().size() / 2);
-              for (S3ObjectSummary chunk : objectListing.getObjectSummaries()) {
-                if (DATA_SUFFIX.matcher(chunk.getKey()).find()
-                    && parseKeyUnchecked(
-                        chunk.getKey(), (t, p, o) -> config.partitionFilter.matches(t, p))) {
-                  S3Offset offset = offset(chunk);
-                  if (offset != null) {
-                    // if our offset for this partition is beyond this chunk, ignore it
-                    // this relies on filename lexicographic order being correct
-                    if (offset.getS3key().compareTo(chunk.getKey()) > 0) {
-                      log.debug(
-                          "Skipping {} because < current offset of {}", chunk.getKey(), offset);
-                      continue;
-                    }
-                  }
-                  chunks.add(chunk);
-                }
-              }
-              log.debug(
-                  "Next Chunks: {}",
-                  LazyString.of(
-                      () -> chunks.stream().map(S3ObjectSummary::getKey).collect(toList())));
-              nextFile = chunks.iterator();
-            }
-            if (!nextFile.hasNext()) {
+          private void nextObject() {
+            if (!prefetcher.hasNext()) {
               iterator = Collections.emptyIterator();
               return;
             }
             try {
-              S3ObjectSummary file = nextFile.next();
+              S3ObjectSummary file = prefetcher.next();
 
               currentKey = file.getKey();
-              S3Offset offset = offset(file);
+              S3Offset offset = offset(currentKey);
               if (offset != null && offset.getS3key().equals(currentKey)) {
-                resumeFromOffset(offset);
+                resumeFromOffset(offset, file.getSize());
+              } else if (offset == null
+                  && config.startTimestamp != null
+                  && !seeked.contains(
+                      layoutParser.parseBlockPath(currentKey).getTopicPartition())) {
+                seekToTimestamp(file);
               } else {
-                log.debug("Now reading from {}", currentKey);
-                S3RecordsReader reader = makeReader.get();
-                InputStream content = getContent(s3Client.getObject(config.bucket, currentKey));
-                iterator =
-                    parseKey(
-                        currentKey,
-                        (topic, partition, startOffset) -> {
-                          reader.init(topic, partition, content, startOffset);
-                          return reader.readAll(topic, partition, content, startOffset);
-                        });
+                readWholeObject(file);
               }
             } catch (IOException e) {
               throw new AmazonClientException(e);
             }
           }
 
-          private InputStream getContent(S3Object object) throws IOException {
-            return config.inputFilter.filter(object.getObjectContent());
+          private void readWholeObject(S3ObjectSummary file) throws IOException {
+            log.debug("Now reading from {}", currentKey);
+            S3RecordsReader reader = makeReader.get();
+            ByteBuffer prefetched = prefetcher.take(currentKey);
+            InputStream content;
+            // where init() reads the header from, if not the start of the content
+            InputStream header = null;
+            if (prefetched != null) {
+              content =
+                  config.inputFilter.filter(
+                      currentKey,
+                      new ByteArrayInputStream(prefetched.array(), 0, prefetched.limit()));
+            } else if (fetchesChunks(file.getSize())) {
+              ChunksIndex index = getChunksIndex(currentKey, file.getSize());
+              // the chunks start after the header
+              if (reader.isInitRequired()) {
+                header = new ByteArrayInputStream(getHeader(currentKey, index));
+              }
+              content =
+                  index.chunks.isEmpty()
+                      ? new ByteArrayInputStream(new byte[0])
+                      : fetchChunks(currentKey, index, index.chunks.get(0));
+            } else {
+              content = getContent(s3Client.getObject(config.bucket, currentKey));
+            }
+            InputStream initFrom = header != null ? header : content;
+            iterator =
+                parseKey(
+                    currentKey,
+                    (topic, partition, startOffset) -> {
+                      reader.init(topic, partition, initFrom, startOffset);
+                      return reader.readAll(topic, partition, content, startOffset);
+                    });
           }
 
-          private S3Offset offset(S3ObjectSummary chunk) {
-            final TopicPartition topicPartition =
-                layoutParser.parseBlockPath(chunk.getKey()).getTopicPartition();
-            final S3Partition s3Partition =
-                S3Partition.from(
-                    config.bucket,
-                    config.keyPrefix,
-                    topicPartition.topic(),
-                    topicPartition.partition());
+          /**
+           * Without an offset for the partition, skip objects and chunks whose records are all
+           * older than config.startTimestamp, going by their index. Reading starts at the first
+           * chunk that may have newer ones, and everything after it is read as usual.
+           */
+          private void seekToTimestamp(S3ObjectSummary file) throws IOException {
+            ChunksIndex index = getChunksIndex(currentKey, file.getSize());
+            ChunkDescriptor chunk = index.firstChunkSince(config.startTimestamp).orElse(null);
+            if (chunk == null) {
+              log.debug(
+                  "Skipping {}, which has no records since {}", currentKey, config.startTimestamp);
+              // hasNext() moves on to the next object
+              iterator = Collections.emptyIterator();
+              return;
+            }
+            seeked.add(layoutParser.parseBlockPath(currentKey).getTopicPartition());
+            log.debug(
+                "Records since {} start in {} at {}", config.startTimestamp, currentKey, chunk);
+            if (chunk == index.chunks.get(0)) {
+              readWholeObject(file);
+            } else {
+              readFrom(currentKey, index, chunk, chunk.first_record_offset);
+            }
+          }
 
-            return offsets.get(s3Partition);
+          /** The records of a whole object. */
+          private InputStream getContent(S3Object object) throws IOException {
+            return config.inputFilter.filter(object.getKey(), IndexFooter.dataOf(object));
           }
 
           /**
            * If we have a non-null offset to resume from, then our marker is the current file, not
            * the next file, so we need to load the marker and find the offset to start from.
            */
-          private void resumeFromOffset(S3Offset offset) throws IOException {
+          private void resumeFromOffset(S3Offset offset, long size) throws IOException {
             log.debug("resumeFromOffset {}", offset);
-            S3RecordsReader reader = makeReader.get();
 
-            ChunksIndex index = getChunksIndex(offset.getS3key());
+            ChunksIndex index = getChunksIndex(offset.getS3key(), size);
             ChunkDescriptor chunkDescriptor =
                 index.chunkContaining(offset.getOffset() + 1).orElse(null);
 
@@ -256,45 +409,74 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 
             // if we got here, it is a real object and contains
             // the offset we want to start at
+            readFrom(offset.getS3key(), index, chunkDescriptor, offset.getOffset() + 1);
+          }
+
+          /** Read the object from the record at nextOffset, which is in the given chunk. */
+          private void readFrom(
+              String key, ChunksIndex index, ChunkDescriptor chunkDescriptor, long nextOffset)
+              throws IOException {
+            S3RecordsReader reader = makeReader.get();
 
-            // if need the start of the file for the read, let it read it
+            // if need the start of the file for the read, let it read the header
             if (reader.isInitRequired() && chunkDescriptor.byte_offset > 0) {
-              try (S3Object object =
-                  s3Client.getObject(new GetObjectRequest(config.bucket, offset.getS3key()))) {
-                parseKey(
-                    object.getKey(),
-                    (topic, partition, startOffset) -> {
-                      reader.init(topic, partition, getContent(object), startOffset);
-                      return null;
-                    });
-              }
+              byte[] header = getHeader(key, index);
+              parseKey(
+                  key,
+                  (topic, partition, startOffset) -> {
+                    reader.init(topic, partition, new ByteArrayInputStream(header), startOffset);
+                    return null;
+                  });
             }
 
-            GetObjectRequest request = new GetObjectRequest(config.bucket, offset.getS3key());
-            request.setRange(chunkDescriptor.byte_offset, index.totalSize());
-
-            S3Object object = s3Client.getObject(request);
-
-            currentKey = object.getKey();
-            log.debug(
-                "Resume {}: Now reading from {}, reading {}-{}",
-                offset,
-                currentKey,
-                chunkDescriptor.byte_offset,
-                index.totalSize());
-
+            // start at the last checkpoint in the chunk before the offset, if there is one
+            ChunkCheckpoint checkpoint =
+                config.inputFilter.resumesAtCheckpoints(key)
+                    ? chunkDescriptor.checkpointBefore(nextOffset)
+                    : null;
+            long firstByte =
+                checkpoint == null ? chunkDescriptor.byte_offset : checkpoint.byte_offset;
+            long firstRecord =
+                checkpoint == null ? chunkDescriptor.first_record_offset : checkpoint.record_offset;
+
+            InputStream content;
+            if (checkpoint == null && fetchesChunks(index.totalSize())) {
+              currentKey = key;
+              log.debug(
+                  "Resume at {}: Now reading from {}, fetching chunks from {}",
+                  nextOffset,
+                  currentKey,
+                  firstByte);
+              content = fetchChunks(key, index, chunkDescriptor);
+            } else {
+              GetObjectRequest request = new GetObjectRequest(config.bucket, key);
+              // the range end is inclusive, and anything after the last chunk is the footer
+              request.setRange(firstByte, index.totalSize() - 1);
+
+              S3Object object = s3Client.getObject(request);
+
+              currentKey = object.getKey();
+              log.debug(
+                  "Resume at {}: Now reading from {}, reading {}-{}",
+                  nextOffset,
+                  currentKey,
+                  firstByte,
+                  index.totalSize());
+
+              content =
+                  checkpoint == null
+                      ? config.inputFilter.filter(object.getKey(), object.getObjectContent())
+                      : config.inputFilter.filterFromCheckpoint(
+                          object.getKey(), object.getObjectContent());
+            }
             iterator =
                 parseKey(
-                    object.getKey(),
+                    currentKey,
                     (topic, partition, startOffset) ->
-                        reader.readAll(
-                            topic,
-                            partition,
-                            getContent(object),
-                            chunkDescriptor.first_record_offset));
+                        reader.readAll(topic, partition, content, firstRecord));
 
             // skip records before the given offset
-            long recordSkipCount = offset.getOffset() - chunkDescriptor.first_record_offset + 1;
+            long recordSkipCount = nextOffset - firstRecord;
             for (int i = 0; i < recordSkipCount; i++) {
               iterator.next();
             }
@@ -309,7 +491,7 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
           }
 
           boolean hasMoreObjects() {
-            return objectListing == null || objectListing.isTruncated() || nextFile.hasNext();
+            return prefetcher.hasNext();
           }
 
           @Override
@@ -339,17 +521,15 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 
             private Iterator<S3SourceRecord> init(Iterator<S3SourceRecord> parentIterator) {
               this.parentIterator = parentIterator;
-              prepareNext();
               return this;
             }
 
+            // lazily, since the parent may have more records later even if it has none now
             private void prepareNext() {
-              next = null;
-              while (parentIterator.hasNext()) {
+              while (next == null && parentIterator.hasNext()) {
                 S3SourceRecord candidate = parentIterator.next();
                 if (recordShouldBeProduced(candidate)) {
                   next = candidate;
-                  break;
                 }
               }
             }
@@ -361,13 +541,15 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
 
             @Override
             public boolean hasNext() {
+              prepareNext();
               return next != null;
             }
 
             @Override
             public S3SourceRecord next() {
-              S3SourceRecord result = next;
               prepareNext();
+              S3SourceRecord result = next;
+              next = null;
               return result;
             }
           }.init(iterator);
@@ -376,6 +558,179 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
     return iterator;
   }
 
+  /**
+   * Takes up to config.prefetchDepth objects ahead of the one being read and downloads them whole
+   * in the background, in key order, while they fit in config.prefetchMaxBytes together with the
+   * downloads of the other partitions. Only objects that end up being read whole use their
+   * download, the rest are read as usual.
+   */
+  private final class Prefetcher {
+    private final Iterator<S3ObjectSummary> objects;
+
+    private final Deque<Prefetch> ahead = new ArrayDeque<>();
+
+    private Prefetch current;
+
+    Prefetcher(Iterator<S3ObjectSummary> objects) {
+      this.objects = objects;
+    }
+
+    /** Only asked once the current object has been read, so its download is let go of. */
+    boolean hasNext() {
+      if (current != null) {
+        release(current);
+      }
+      return !ahead.isEmpty() || objects.hasNext();
+    }
+
+    S3ObjectSummary next() {
+      if (current != null) {
+        release(current);
+      }
+      if (config.prefetchDepth <= 0) {
+        current = null;
+        return objects.next();
+      }
+      current = ahead.isEmpty() ? new Prefetch(objects.next()) : ahead.remove();
+      while (ahead.size() < config.prefetchDepth && objects.hasNext()) {
+        ahead.add(new Prefetch(objects.next()));
+      }
+      for (Prefetch next : ahead) {
+        if (closed) {
+          break;
+        }
+        if (next.download == null) {
+          long size = next.object.getSize();
+          if (prefetchedBytes + size > config.prefetchMaxBytes || size >= Integer.MAX_VALUE) {
+            // the rest wait, so that what is buffered is always next
+            break;
+          }
+          prefetchedBytes += size;
+          next.download = prefetchExecutor().submit(() -> download(next.object));
+          downloads.add(next.download);
+          if (closed) {
+            // in case close() missed it
+            next.download.cancel(true);
+          }
+        }
+      }
+      return current.object;
+    }
+
+    /** The data of the current object, if it was downloaded in time. */
+    ByteBuffer take(String key) {
+      if (current == null || current.download == null || !current.object.getKey().equals(key)) {
+        return null;
+      }
+      try {
+        return current.download.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException e) {
+        log.debug("Prefetching {} failed, will read it again", key, e.getCause());
+        return null;
+      } catch (CancellationException e) {
+        // closed
+        return null;
+      }
+    }
+
+    private void release(Prefetch prefetch) {
+      if (prefetch.download != null) {
+        prefetch.download.cancel(true);
+        downloads.remove(prefetch.download);
+        prefetch.download = null;
+        prefetchedBytes -= prefetch.object.getSize();
+      }
+    }
+  }
+
+  private static final class Prefetch {
+    final S3ObjectSummary object;
+    Future<ByteBuffer> download;
+
+    Prefetch(S3ObjectSummary object) {
+      this.object = object;
+    }
+  }
+
+  private ByteBuffer download(S3ObjectSummary summary) throws IOException {
+    try (S3Object object = s3Client.getObject(config.bucket, summary.getKey());
+        InputStream data = IndexFooter.dataOf(object)) {
+      byte[] bytes = new byte[(int) summary.getSize()];
+      int length = 0;
+      for (int read = 0; read != -1 && length < bytes.length; ) {
+        read = data.read(bytes, length, bytes.length - length);
+        length += Math.max(read, 0);
+      }
+      if (length == bytes.length && data.read() != -1) {
+        throw new IOException(summary.getKey() + " is larger than listed");
+      }
+      return ByteBuffer.wrap(bytes, 0, length);
+    }
+  }
+
+  private boolean fetchesChunks(long size) {
+    return config.chunkFetchThreads > 0 && size >= config.chunkFetchMinBytes;
+  }
+
+  /** The records of the object from the given chunk on, with its chunks fetched in parallel. */
+  private InputStream fetchChunks(String key, ChunksIndex index, ChunkDescriptor from) {
+    List<ChunkDescriptor> chunks =
+        index.chunks.subList(index.chunks.indexOf(from), index.chunks.size());
+    if (chunkFetchExecutor == null) {
+      chunkFetchExecutor = daemonPool("s3-chunk-fetch", config.chunkFetchThreads);
+    }
+    return new ChunkFetchStream(
+        s3Client,
+        config.bucket,
+        key,
+        chunks,
+        config.inputFilter,
+        chunkFetchExecutor,
+        config.chunkFetchThreads + 1,
+        config.chunkFetchMaxBytes);
+  }
+
+  /**
+   * Cancel the downloads of objects ahead of the ones being read, so that a reader that is dropped
+   * doesn't keep downloading. Can be called from any thread.
+   */
+  @Override
+  public void close() {
+    closed = true;
+    for (Future<ByteBuffer> download : downloads) {
+      download.cancel(true);
+    }
+    downloads.clear();
+  }
+
+  private ExecutorService prefetchExecutor() {
+    if (prefetchExecutor == null) {
+      prefetchExecutor = daemonPool("s3-prefetch", config.prefetchDepth);
+    }
+    return prefetchExecutor;
+  }
+
+  private static ExecutorService daemonPool(String name, int threads) {
+    ThreadPoolExecutor executor =
+        new ThreadPoolExecutor(
+            threads,
+            threads,
+            30,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<>(),
+            runnable -> {
+              Thread thread = new Thread(runnable, name);
+              thread.setDaemon(true);
+              return thread;
+            });
+    // so that readers that are dropped don't keep threads around
+    executor.allowCoreThreadTimeOut(true);
+    return executor;
+  }
+
   private <T> T parseKeyUnchecked(String key, QuietKeyConsumer<T> consumer) {
     try {
       return parseKey(key, consumer::consume);
@@ -400,7 +755,74 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
     T consume(String topic, int partition, long startOffset) throws IOException;
   }
 
-  private ChunksIndex getChunksIndex(String key) throws IOException {
+  /**
+   * The decompressed header at the start of the object. The sink writes it as a chunk of its own,
+   * before the first chunk in the index, so only its bytes are fetched, once per key.
+   *
+   * <p>Sinks before chunks were compressed in parallel took the offset of the first chunk after
+   * they had written its gzip header. The index of such an object is corrected to where the first
+   * chunk really starts, so that it can be fetched on its own.
+   */
+  private byte[] getHeader(String key, ChunksIndex index) throws IOException {
+    HeaderCache.Header header = headers.get(key);
+    if (header == null) {
+      header = fetchHeader(key, index);
+      headers.put(key, header);
+    }
+    if (!index.chunks.isEmpty() && index.chunks.get(0).byte_offset != header.length) {
+      ChunkDescriptor first = index.chunks.get(0);
+      first.byte_length += first.byte_offset - header.length;
+      first.byte_offset = header.length;
+    }
+    return header.bytes;
+  }
+
+  private HeaderCache.Header fetchHeader(String key, ChunksIndex index) throws IOException {
+    long length = index.chunks.isEmpty() ? 0 : index.chunks.get(0).byte_offset;
+    if (length == 0) {
+      return new HeaderCache.Header(new byte[0], 0);
+    }
+    // and the start of the first chunk, to check that it is where the index says
+    long last = Math.min(length + GZIP_MEMBER_START.length - 1, index.totalSize() - 1);
+    log.debug("Reading the header of {}, bytes 0-{}", key, last);
+    byte[] bytes;
+    try (S3Object object =
+        s3Client.getObject(new GetObjectRequest(config.bucket, key).withRange(0, last))) {
+      bytes = object.getObjectContent().readAllBytes();
+    }
+    if (!startsGzipMember(bytes, length) && startsGzipMember(bytes, length - GZIP_HEADER_SIZE)) {
+      log.debug("The first chunk of {} starts at its gzip header, before its indexed offset", key);
+      length -= GZIP_HEADER_SIZE;
+    }
+    try (InputStream content =
+        config.inputFilter.filter(key, new ByteArrayInputStream(bytes, 0, (int) length))) {
+      return new HeaderCache.Header(content.readAllBytes(), length);
+    }
+  }
+
+  private static boolean startsGzipMember(byte[] bytes, long at) {
+    if (at < 0 || at + GZIP_MEMBER_START.length > bytes.length) {
+      return false;
+    }
+    for (int i = 0; i < GZIP_MEMBER_START.length; i++) {
+      if (bytes[(int) at + i] != GZIP_MEMBER_START[i]) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * The index in the footer of the object if the sink writes them, or else the index object next to
+   * it.
+   */
+  private ChunksIndex getChunksIndex(String key, long size) throws IOException {
+    if (config.indexFooter) {
+      Optional<ChunksIndex> footer = IndexFooter.read(s3Client, config.bucket, key, size);
+      if (footer.isPresent()) {
+        return footer.get();
+      }
+    }
     return indexParser.readValue(
         new InputStreamReader(
             s3Client
@@ -409,12 +831,77 @@ public class S3FilesReader implements Iterable<S3SourceRecord> {
   }
 
   /**
-   * Filtering applied to the S3InputStream. Will almost always start with GUNZIP, but could also
-   * include things like decryption.
+   * Filtering applied to the S3InputStream. Will almost always end with decompression, but could
+   * also include things like decryption.
    */
   public interface InputFilter {
     InputStream filter(InputStream inputStream) throws IOException;
 
-    InputFilter GUNZIP = GZIPInputStream::new;
+    /** Filter the contents of the object with the given key. */
+    default InputStream filter(String key, InputStream inputStream) throws IOException {
+      return filter(inputStream);
+    }
+
+    /**
+     * Whether {@link #filterFromCheckpoint(String, InputStream)} can read the object with the given
+     * key from a checkpoint in its index.
+     */
+    default boolean resumesAtCheckpoints(String key) {
+      return false;
+    }
+
+    /** Filter the contents of the object with the given key, from a checkpoint on. */
+    default InputStream filterFromCheckpoint(String key, InputStream inputStream)
+        throws IOException {
+      throw new UnsupportedOperationException("Can't read from a checkpoint");
+    }
+
+    InputFilter GUNZIP =
+        new InputFilter() {
+          @Override
+          public InputStream filter(InputStream inputStream) throws IOException {
+            return new GZIPInputStream(inputStream);
+          }
+
+          @Override
+          public boolean resumesAtCheckpoints(String key) {
+            return true;
+          }
+
+          @Override
+          public InputStream filterFromCheckpoint(String key, InputStream inputStream)
+              throws IOException {
+            return BlockCodecs.GZIP.decompressFromCheckpoint(inputStream);
+          }
+        };
+
+    /** Decompress with the {@link BlockCodec} that matches the key's suffix. */
+    InputFilter DECOMPRESS =
+        new InputFilter() {
+          @Override
+          public InputStream filter(InputStream inputStream) {
+            throw new UnsupportedOperationException("The codec depends on the key");
+          }
+
+          @Override
+          public InputStream filter(String key, InputStream inputStream) throws IOException {
+            return codec(key).decompress(inputStream);
+          }
+
+          @Override
+          public boolean resumesAtCheckpoints(String key) {
+            return BlockCodec.forKey(key).map(BlockCodec::supportsCheckpoints).orElse(false);
+          }
+
+          @Override
+          public InputStream filterFromCheckpoint(String key, InputStream inputStream)
+              throws IOException {
+            return codec(key).decompressFromCheckpoint(inputStream);
+          }
+
+          private BlockCodec codec(String key) throws IOException {
+            return BlockCodec.forKey(key).orElseThrow(() -> new IOException("No codec for " + key));
+          }
+        };
   }
 }
@@ -0,0 +1,298 @@
+package com.spredfast.kafka.connect.s3.source;
+
+import static java.util.stream.Collectors.toList;
+
+import com.amazonaws.AmazonClientException;
+import com.amazonaws.services.s3.AmazonS3;
+import com.amazonaws.services.s3.model.ListObjectsRequest;
+import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.spredfast.kafka.connect.s3.Layout;
+import com.spredfast.kafka.connect.s3.LazyString;
+import java.io.Closeable;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.function.Predicate;
+import org.apache.kafka.common.TopicPartition;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Lists new objects, on a background thread if started, and queues them for {@link
+ * S3FilesReader#read(Iterator)}, so that reading never waits for a listing and listing doesn't
+ * start over from config.startMarker every time the reader runs dry.
+ *
+ * <p>The keys of a partition only grow, but the keys of different partitions interleave: a new file
+ * for partition 0 sorts before today's file for partition 1 in the date layouts. So after the first
+ * listing from config.startMarker, a listing starts after the earliest of the last keys of the
+ * partitions seen so far, and skips keys at or before the last one of their partition. A partition
+ * first seen later is only found if its keys sort after that.
+ *
+ * <p>To find those too, a fullListingInterval above 0 lists from config.startMarker again that
+ * often, without queueing anything twice. In between, only the partitions that had new objects
+ * within the interval hold the listing back, and the idle ones are left to the next full listing.
+ *
+ * <p>Only a few pages of objects are queued at once. When the reader falls behind, listing waits
+ * for it. The reader may hold more objects it has taken from the queue, see {@link
+ * S3SourceConfig#interleaveMaxObjects}.
+ */
+public class S3ObjectDiscovery implements Closeable {
+
+  private static final Logger log = LoggerFactory.getLogger(S3ObjectDiscovery.class);
+
+  private static final int QUEUED_PAGES = 4;
+
+  private final S3SourceConfig config;
+
+  private final AmazonS3 s3Client;
+
+  private final Layout.Parser layoutParser;
+
+  private final Predicate<String> shouldRead;
+
+  private final long fullListingInterval;
+
+  private final LongSupplier clock;
+
+  private final BlockingQueue<S3ObjectSummary> queue;
+
+  // only touched by discover()
+  private final Map<TopicPartition, String> lastKeys = new HashMap<>();
+  private final Map<TopicPartition, Long> lastDiscovered = new HashMap<>();
+  private Long lastFullListing;
+
+  private final AtomicLong listCalls = new AtomicLong();
+  private final AtomicLong discovered = new AtomicLong();
+
+  private volatile RuntimeException failure;
+  private volatile boolean closed;
+
+  private ScheduledExecutorService executor;
+
+  /**
+   * @param shouldRead whether an object with the given key should be queued at all, see {@link
+   *     S3FilesReader#shouldRead(String)}.
+   * @param fullListingInterval how often, in millis, to list from config.startMarker again. 0 only
+   *     lists from it the first time.
+   */
+  public S3ObjectDiscovery(
+      S3SourceConfig config,
+      AmazonS3 s3Client,
+      Layout.Parser layoutParser,
+      Predicate<String> shouldRead,
+      long fullListingInterval) {
+    this(
+        config, s3Client, layoutParser, shouldRead, fullListingInterval, System::currentTimeMillis);
+  }
+
+  S3ObjectDiscovery(
+      S3SourceConfig config,
+      AmazonS3 s3Client,
+      Layout.Parser layoutParser,
+      Predicate<String> shouldRead,
+      long fullListingInterval,
+      LongSupplier clock) {
+    this.config = config;
+    this.s3Client = s3Client;
+    this.layoutParser = layoutParser;
+    this.shouldRead = shouldRead;
+    this.fullListingInterval = fullListingInterval;
+    this.clock = clock;
+    this.queue = new LinkedBlockingQueue<>(Math.max(1, config.pageSize * 2 * QUEUED_PAGES));
+  }
+
+  /** List now, and then every interval millis after the previous listing finished. */
+  public void start(String name, long interval) {
+    executor =
+        Executors.newSingleThreadScheduledExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, name + "-discovery");
+              thread.setDaemon(true);
+              return thread;
+            });
+    executor.scheduleWithFixedDelay(this::discoverOrFail, 0, interval, TimeUnit.MILLISECONDS);
+  }
+
+  private void discoverOrFail() {
+    try {
+      discover();
+    } catch (AmazonClientException e) {
+      if (!e.isRetryable()) {
+        fail(e);
+      } else {
+        log.warn("Retryable error while listing. Will try again next time.", e);
+      }
+    } catch (RuntimeException e) {
+      fail(e);
+    }
+  }
+
+  private void fail(RuntimeException e) {
+    failure = e;
+    executor.shutdown();
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+
+  /**
+   * List the objects added since the last listing and queue the ones to read. Blocks while the
+   * queue is full, until the reader takes some or discovery is closed.
+   */
+  public void discover() {
+    long now = clock.getAsLong();
+    boolean full =
+        lastFullListing == null
+            || (fullListingInterval > 0 && now - lastFullListing >= fullListingInterval);
+    String marker = full ? config.startMarker : resumeMarker(now);
+    if (full) {
+      lastFullListing = now;
+    }
+
+    ObjectListing listing = null;
+    while (!closed && (listing == null || listing.isTruncated())) {
+      if (listing == null) {
+        listing =
+            s3Client.listObjects(
+                new ListObjectsRequest(
+                    config.bucket, config.keyPrefix, marker, null, config.pageSize * 2));
+      } else {
+        listing = s3Client.listNextBatchOfObjects(listing);
+      }
+      listCalls.incrementAndGet();
+      ObjectListing page = listing;
+      log.debug(
+          "aws ls {}/{} after:{} = {}",
+          config.bucket,
+          config.keyPrefix,
+          marker,
+          LazyString.of(
+              () ->
+                  page.getObjectSummaries().stream()
+                      .map(S3ObjectSummary::getKey)
+                      .collect(toList())));
+      int found = 0;
+      boolean interrupted = false;
+      for (S3ObjectSummary object : listing.getObjectSummaries()) {
+        String key = object.getKey();
+        if (!shouldRead.test(key)) {
+          continue;
+        }
+        TopicPartition tp = layoutParser.parseBlockPath(key).getTopicPartition();
+        String last = lastKeys.get(tp);
+        if (last != null && key.compareTo(last) <= 0) {
+          continue;
+        }
+        try {
+          queue.put(object);
+        } catch (InterruptedException e) {
+          // closed while waiting for the reader
+          Thread.currentThread().interrupt();
+          interrupted = true;
+          break;
+        }
+        lastKeys.put(tp, key);
+        lastDiscovered.put(tp, now);
+        found++;
+      }
+
+      if (found > 0) {
+        discovered.addAndGet(found);
+        synchronized (this) {
+          notifyAll();
+        }
+      }
+      if (interrupted) {
+        return;
+      }
+    }
+  }
+
+  /**
+   * After the earliest last key of the partitions seen, or only those that had new objects within
+   * fullListingInterval if there is one. Others are left to the next full listing.
+   */
+  private String resumeMarker(long now) {
+    String marker = null;
+    String latest = config.startMarker;
+    for (Map.Entry<TopicPartition, String> last : lastKeys.entrySet()) {
+      String key = last.getValue();
+      boolean active =
+          fullListingInterval <= 0
+              || lastDiscovered.get(last.getKey()) >= now - fullListingInterval;
+      if (active && (marker == null || key.compareTo(marker) < 0)) {
+        marker = key;
+      }
+      if (latest == null || key.compareTo(latest) > 0) {
+        latest = key;
+      }
+    }
+    return marker != null ? marker : latest;
+  }
+
+  /**
+   * The queued objects, in the order they were discovered. hasNext() is false while nothing is
+   * queued, but becomes true again when something is.
+   */
+  public Iterator<S3ObjectSummary> objects() {
+    return new Iterator<S3ObjectSummary>() {
+      @Override
+      public boolean hasNext() {
+        return !queue.isEmpty();
+      }
+
+      @Override
+      public S3ObjectSummary next() {
+        return queue.remove();
+      }
+    };
+  }
+
+  /**
+   * Wait for objects to be queued, at most the given millis.
+   *
+   * @throws RuntimeException the error that stopped listing, if any.
+   */
+  public synchronized void await(long millis) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + millis;
+    for (long wait = millis; queue.isEmpty() && failure == null && !closed && wait > 0; ) {
+      wait(wait);
+      wait = deadline - System.currentTimeMillis();
+    }
+    if (failure != null) {
+      throw failure;
+    }
+  }
+
+  public long listCalls() {
+    return listCalls.get();
+  }
+
+  public long discoveredObjects() {
+    return discovered.get();
+  }
+
+  /** LIST calls per object queued so far. */
+  public double listCallsPerObject() {
+    return (double) listCalls.get() / Math.max(1, discovered.get());
+  }
+
+  @Override
+  public void close() {
+    closed = true;
+    if (executor != null) {
+      executor.shutdownNow();
+    }
+    synchronized (this) {
+      notifyAll();
+    }
+  }
+}
@@ -7,7 +7,17 @@ public class S3SourceConfig {
   public String keyPrefix = "";
   public int pageSize = 500;
   public String startMarker = null; // for partial replay
-  public S3FilesReader.InputFilter inputFilter = S3FilesReader.InputFilter.GUNZIP;
+  public Long startTimestamp = null; // for replay from a point in time, in epoch millis
+  public int prefetchDepth = 0; // objects downloaded ahead of the one being read
+  public long prefetchMaxBytes = 32 << 20; // of objects downloaded ahead, at once
+  public int chunkFetchThreads = 0; // to fetch and decompress chunks of large objects in parallel
+  public long chunkFetchMinBytes = 64 << 20; // objects this large have their chunks fetched
+  public long chunkFetchMaxBytes = 128 << 20; // of decompressed chunks fetched ahead, at once
+  public boolean indexFooter = false; // look for the index at the end of objects first
+  public int interleavePartitions = 0; // that take turns reading, 0 reads objects as listed
+  public int interleaveRecords = 100; // read from a partition in a turn
+  public int interleaveMaxObjects = 10000; // listed ahead, to find partitions to interleave
+  public S3FilesReader.InputFilter inputFilter = S3FilesReader.InputFilter.DECOMPRESS;
   public S3FilesReader.PartitionFilter partitionFilter = S3FilesReader.PartitionFilter.MATCH_ALL;
   public List<String> messageKeyExcludeList;
 
@@ -10,9 +10,12 @@ import com.spredfast.kafka.connect.s3.AlreadyBytesConverter;
 import com.spredfast.kafka.connect.s3.Configure;
 import com.spredfast.kafka.connect.s3.Constants;
 import com.spredfast.kafka.connect.s3.Layout;
+import com.spredfast.kafka.connect.s3.Metrics;
 import com.spredfast.kafka.connect.s3.S3;
 import com.spredfast.kafka.connect.s3.S3RecordFormat;
 import java.io.UnsupportedEncodingException;
+import java.time.Instant;
+import java.time.format.DateTimeParseException;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -22,8 +25,10 @@ import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicBoolean;
 import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.connect.data.Schema;
 import org.apache.kafka.connect.data.SchemaAndValue;
 import org.apache.kafka.connect.errors.ConnectException;
 import org.apache.kafka.connect.source.SourceRecord;
@@ -44,14 +49,24 @@ public class S3SourceTask extends SourceTask {
 
   private Map<String, String> taskConfig;
   private Iterator<S3SourceRecord> reader;
+  private volatile S3FilesReader files;
+  private volatile S3ObjectDiscovery discovery;
   private int maxPoll;
   private final Map<String, String> topicMapping = new HashMap<>();
   private S3RecordFormat format;
   private Optional<Converter> keyConverter;
   private Converter valueConverter;
+  // set when the converter just passes bytes through, so records are built without calling it
+  private Schema keyPassthroughSchema;
+  private Schema valuePassthroughSchema;
   private long s3PollInterval = 10_000L;
   private long errorBackoff = 1000L;
+  // read by the discovery thread too
   private Map<S3Partition, S3Offset> offsets;
+  // kept across the readers made after errors, so resuming doesn't fetch headers again
+  private final HeaderCache headers = new HeaderCache(1000);
+  private Metrics metrics;
+  private Map<String, String> tags;
 
   @Override
   public String version() {
@@ -61,12 +76,26 @@ public class S3SourceTask extends SourceTask {
   @Override
   public void start(Map<String, String> taskConfig) {
     this.taskConfig = taskConfig;
+    if ("event_time".equals(taskConfig.get("layout"))) {
+      // a partition's keys must sort in offset order, to be listed, read and resumed in order
+      throw new ConnectException(
+          "The event_time layout can't be read by the source: late files sort before earlier ones");
+    }
     format = Configure.createFormat(taskConfig);
 
     keyConverter =
         Optional.ofNullable(Configure.buildConverter(taskConfig, "key.converter", true, null));
     valueConverter =
         Configure.buildConverter(taskConfig, "value.converter", false, AlreadyBytesConverter.class);
+    keyPassthroughSchema = keyConverter.map(AlreadyBytesConverter::passthroughSchema).orElse(null);
+    valuePassthroughSchema = AlreadyBytesConverter.passthroughSchema(valueConverter);
+
+    metrics = Configure.metrics(taskConfig);
+    tags = Configure.parseTags(taskConfig.get("metrics.tags"));
+    configGet("name").ifPresent(name -> tags.put("connector_name", name));
+    metrics.gauge("discovery.listCalls", tags, () -> discovery.listCalls());
+    metrics.gauge("discovery.objects", tags, () -> discovery.discoveredObjects());
+    metrics.gauge("discovery.listCallsPerObject", tags, () -> discovery.listCallsPerObject());
 
     readFromStoredOffsets();
   }
@@ -107,21 +136,24 @@ public class S3SourceTask extends SourceTask {
     // our partitions change, so internal state should always be the most accurate
     if (offsets == null) {
       offsets =
-          context
-              .offsetStorageReader()
-              .offsets(partitions.stream().map(S3Partition::asMap).collect(toList()))
-              .entrySet()
-              .stream()
-              .filter(e -> e.getValue() != null)
-              .collect(
-                  toMap(
-                      entry -> S3Partition.from(entry.getKey()),
-                      entry -> S3Offset.from(entry.getValue())));
+          new ConcurrentHashMap<>(
+              context
+                  .offsetStorageReader()
+                  .offsets(partitions.stream().map(S3Partition::asMap).collect(toList()))
+                  .entrySet()
+                  .stream()
+                  .filter(e -> e.getValue() != null)
+                  .collect(
+                      toMap(
+                          entry -> S3Partition.from(entry.getKey()),
+                          entry -> S3Offset.from(entry.getValue()))));
     }
 
     maxPoll = configGet("max.poll.records").map(Integer::parseInt).orElse(1000);
     s3PollInterval = configGet("s3.new.record.poll.interval").map(Long::parseLong).orElse(10_000L);
     errorBackoff = configGet("s3.error.backoff").map(Long::parseLong).orElse(1000L);
+    long fullListingInterval =
+        configGet("s3.full.listing.interval").map(Long::parseLong).orElse(0L);
 
     AmazonS3 client = S3.s3client(taskConfig);
 
@@ -133,7 +165,7 @@ public class S3SourceTask extends SourceTask {
             prefix,
             configGet("s3.page.size").map(Integer::parseInt).orElse(100),
             configGet("s3.start.marker").orElse(null),
-            S3FilesReader.InputFilter.GUNZIP,
+            S3FilesReader.InputFilter.DECOMPRESS,
             S3FilesReader.PartitionFilter.from(
                 (topic, partition) ->
                     (topics.isEmpty() || topics.contains(topic))
@@ -141,11 +173,55 @@ public class S3SourceTask extends SourceTask {
             configGet("message.key.exclude.list")
                 .map(s -> Arrays.stream(s.split(",")).map(String::trim).collect(toList()))
                 .orElse(null));
+    config.startTimestamp = configGet("s3.start.timestamp").map(this::parseTimestamp).orElse(null);
+    config.prefetchDepth = configGet("s3.prefetch.objects").map(Integer::parseInt).orElse(2);
+    configGet("s3.prefetch.max.bytes")
+        .map(Long::parseLong)
+        .ifPresent(max -> config.prefetchMaxBytes = max);
+    config.chunkFetchThreads = configGet("s3.chunk.fetch.threads").map(Integer::parseInt).orElse(4);
+    configGet("s3.chunk.fetch.min.object.bytes")
+        .map(Long::parseLong)
+        .ifPresent(min -> config.chunkFetchMinBytes = min);
+    configGet("s3.chunk.fetch.max.bytes")
+        .map(Long::parseLong)
+        .ifPresent(max -> config.chunkFetchMaxBytes = max);
+    config.indexFooter = configGet("s3.index.footer").map(Boolean::parseBoolean).orElse(false);
+    config.interleavePartitions =
+        configGet("s3.interleave.partitions").map(Integer::parseInt).orElse(8);
+    configGet("s3.interleave.records")
+        .map(Integer::parseInt)
+        .ifPresent(records -> config.interleaveRecords = records);
+    configGet("s3.interleave.max.objects")
+        .map(Integer::parseInt)
+        .ifPresent(max -> config.interleaveMaxObjects = max);
 
     log.debug("Reading from S3 with offsets {}", offsets);
 
-    reader =
-        new S3FilesReader(config, client, offsets, layout.getParser(), format::newReader).readAll();
+    if (files != null) {
+      // don't leave the downloads of the one being replaced running
+      files.close();
+    }
+    files =
+        new S3FilesReader(config, client, offsets, layout.getParser(), format::newReader, headers);
+    if (discovery != null) {
+      discovery.close();
+    }
+    discovery =
+        new S3ObjectDiscovery(
+            config, client, layout.getParser(), files::shouldRead, fullListingInterval);
+    reader = files.read(discovery.objects());
+    discovery.start(configGet("name").orElse("s3-source"), s3PollInterval);
+  }
+
+  /** Epoch millis, or an ISO-8601 instant such as 2016-01-01T14:05:00Z. */
+  private long parseTimestamp(String timestamp) {
+    try {
+      return timestamp.chars().allMatch(Character::isDigit)
+          ? Long.parseLong(timestamp)
+          : Instant.parse(timestamp).toEpochMilli();
+    } catch (DateTimeParseException | NumberFormatException e) {
+      throw new ConnectException("Invalid s3.start.timestamp: " + timestamp, e);
+    }
   }
 
   private Optional<String> configGet(String key) {
@@ -181,11 +257,10 @@ public class S3SourceTask extends SourceTask {
 
   private List<SourceRecord> getSourceRecords(List<SourceRecord> results)
       throws InterruptedException {
-    while (!reader.hasNext() && !stopped.get()) {
-      log.debug("Blocking until new S3 files are available.");
-      // sleep and block here until new files are available
-      Thread.sleep(s3PollInterval);
-      readFromStoredOffsets();
+    if (!reader.hasNext() && !stopped.get()) {
+      log.debug("Waiting for new S3 files.");
+      // files are listed in the background, so this returns as soon as new ones are found
+      discovery.await(s3PollInterval);
     }
 
     if (stopped.get()) {
@@ -198,18 +273,33 @@ public class S3SourceTask extends SourceTask {
       String topic = topicMapping.computeIfAbsent(record.topic(), this::remapTopic);
       // we know the reader returned bytes so, we can cast the key+value and use a converter to
       // generate the "real" source record
-      Optional<SchemaAndValue> key = keyConverter.map(c -> c.toConnectData(topic, record.key()));
-      SchemaAndValue value = valueConverter.toConnectData(topic, record.value());
+      Schema keySchema = null;
+      Object key = null;
+      if (keyPassthroughSchema != null) {
+        keySchema = keyPassthroughSchema;
+        key = record.key();
+      } else if (keyConverter.isPresent()) {
+        SchemaAndValue converted = keyConverter.get().toConnectData(topic, record.key());
+        keySchema = converted.schema();
+        key = converted.value();
+      }
+      Schema valueSchema = valuePassthroughSchema;
+      Object value = record.value();
+      if (valueSchema == null) {
+        SchemaAndValue converted = valueConverter.toConnectData(topic, record.value());
+        valueSchema = converted.schema();
+        value = converted.value();
+      }
       results.add(
           new SourceRecord(
               record.file().asMap(),
               record.offset().asMap(),
               topic,
               record.partition(),
-              key.map(SchemaAndValue::schema).orElse(null),
-              key.map(SchemaAndValue::value).orElse(null),
-              value.schema(),
-              value.value()));
+              keySchema,
+              key,
+              valueSchema,
+              value));
     }
 
     log.debug("Returning {} records", results.size());
@@ -245,5 +335,11 @@ public class S3SourceTask extends SourceTask {
   @Override
   public void stop() {
     this.stopped.set(true);
+    if (discovery != null) {
+      discovery.close();
+    }
+    if (files != null) {
+      files.close();
+    }
   }
 }
@@ -1,10 +1,17 @@
 package com.spredfast.kafka.connect.s3;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.Mockito.atLeast;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import com.amazonaws.AmazonServiceException;
@@ -14,32 +21,44 @@ import com.amazonaws.services.s3.model.GetObjectRequest;
 import com.amazonaws.services.s3.model.ListNextBatchOfObjectsRequest;
 import com.amazonaws.services.s3.model.ListObjectsRequest;
 import com.amazonaws.services.s3.model.ObjectListing;
+import com.amazonaws.services.s3.model.ObjectMetadata;
 import com.amazonaws.services.s3.model.S3Object;
 import com.amazonaws.services.s3.model.S3ObjectInputStream;
 import com.amazonaws.services.s3.model.S3ObjectSummary;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.spredfast.kafka.connect.s3.json.ChunksIndex;
 import com.spredfast.kafka.connect.s3.sink.BlockGZIPFileWriter;
+import com.spredfast.kafka.connect.s3.sink.FileBlockBuffer;
+import com.spredfast.kafka.connect.s3.source.HeaderCache;
 import com.spredfast.kafka.connect.s3.source.S3FilesReader;
+import com.spredfast.kafka.connect.s3.source.S3ObjectDiscovery;
 import com.spredfast.kafka.connect.s3.source.S3Offset;
 import com.spredfast.kafka.connect.s3.source.S3Partition;
 import com.spredfast.kafka.connect.s3.source.S3SourceConfig;
 import com.spredfast.kafka.connect.s3.source.S3SourceRecord;
+import java.io.ByteArrayInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.SimpleFileVisitor;
 import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
+import java.util.Deque;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 import org.apache.kafka.clients.producer.ProducerRecord;
 import org.apache.kafka.common.TopicPartition;
@@ -208,6 +227,29 @@ public class S3FilesReaderTest {
       String marker,
       long nextOffset,
       final String partition) {
+    return givenAReaderWithOffsets(
+        client, layoutParser, marker, nextOffset, partition, S3FilesReader.InputFilter.GUNZIP);
+  }
+
+  private S3FilesReader givenAReaderWithOffsets(
+      AmazonS3 client,
+      Layout.Parser layoutParser,
+      String marker,
+      long nextOffset,
+      final String partition,
+      S3FilesReader.InputFilter inputFilter) {
+    return givenAReaderWithOffsets(
+        client, layoutParser, marker, nextOffset, partition, inputFilter, false);
+  }
+
+  private S3FilesReader givenAReaderWithOffsets(
+      AmazonS3 client,
+      Layout.Parser layoutParser,
+      String marker,
+      long nextOffset,
+      final String partition,
+      S3FilesReader.InputFilter inputFilter,
+      boolean indexFooter) {
     Map<S3Partition, S3Offset> offsets = new HashMap<>();
     int partInt = Integer.valueOf(partition, 10);
     offsets.put(
@@ -216,13 +258,805 @@ public class S3FilesReaderTest {
             marker,
             nextOffset
                 - 1 /* an S3 offset is the last record processed, so go back 1 to consume next */));
+    S3SourceConfig config =
+        new S3SourceConfig("bucket", "prefix", 1, null, inputFilter, p -> partInt == p, null);
+    config.indexFooter = indexFooter;
     return new S3FilesReader(
+        config, client, offsets, layoutParser, () -> new BytesRecordReader(true));
+  }
+
+  @Test
+  public void testReadingEveryCodecFromTheMiddleOfAFile() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    for (BlockCodecs codec : BlockCodecs.values()) {
+      final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+      try (BlockGZIPFileWriter writer =
+          new BlockGZIPFileWriter(
+              new FileBlockBuffer(dir.toFile(), "data"),
+              new FileBlockBuffer(dir.toFile(), "index"),
+              0,
+              20,
+              new byte[0],
+              codec,
+              null,
+              0)) {
+        for (int i = 0; i < 10; i++) {
+          write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+        }
+        upload(writer, dir, layout.getBuilder(), "2016-01-01", 0, codec.extension());
+        assertTrue(writer.getNumChunks() > 5);
+      }
+      AmazonS3 client = givenAMockS3Client(dir);
+
+      List<String> results =
+          whenTheRecordsAreRead(
+              givenAReaderWithOffsets(
+                  client,
+                  layout.getParser(),
+                  getKeyForFilename(
+                      layout.getBuilder(),
+                      "2016-01-01",
+                      "prefix",
+                      "topic",
+                      0,
+                      0,
+                      codec.extension()),
+                  7L,
+                  "00000",
+                  S3FilesReader.InputFilter.DECOMPRESS));
+
+      assertEquals(codec.name(), Arrays.asList("key=value7", "key=value8", "key=value9"), results);
+      // without footers, the index is read from its own object rather than the data's tail first
+      verify(client, times(1)).getObject(any(GetObjectRequest.class));
+    }
+  }
+
+  @Test
+  public void testReadingEveryCodecWithAnIndexFooter() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    for (BlockCodecs codec : BlockCodecs.values()) {
+      final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+      try (BlockGZIPFileWriter writer =
+          new BlockGZIPFileWriter(
+              new FileBlockBuffer(dir.toFile(), "data"),
+              new FileBlockBuffer(dir.toFile(), "index"),
+              0,
+              20,
+              new byte[0],
+              codec,
+              null,
+              0)) {
+        writer.setIndexFooter(true);
+        for (int i = 0; i < 10; i++) {
+          write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+        }
+        writer.close();
+        // a single object, no index next to it
+        rename(
+            writer.getDataFile(), dir, layout.getBuilder(), "2016-01-01", 0, 0, codec.extension());
+        writer.getIndexBuffer().delete();
+      }
+      AmazonS3 client = givenAMockS3Client(dir);
+      String key =
+          getKeyForFilename(
+              layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, codec.extension());
+
+      List<String> resumed =
+          whenTheRecordsAreRead(
+              givenAReaderWithOffsets(
+                  client,
+                  layout.getParser(),
+                  key,
+                  7L,
+                  "00000",
+                  S3FilesReader.InputFilter.DECOMPRESS,
+                  true));
+      assertEquals(codec.name(), Arrays.asList("key=value7", "key=value8", "key=value9"), resumed);
+
+      List<String> whole =
+          whenTheRecordsAreRead(
+              new S3FilesReader(
+                  new S3SourceConfig(
+                      "bucket",
+                      "prefix",
+                      1,
+                      null,
+                      S3FilesReader.InputFilter.DECOMPRESS,
+                      S3FilesReader.PartitionFilter.MATCH_ALL,
+                      null),
+                  client,
+                  null,
+                  layout.getParser(),
+                  () -> new BytesRecordReader(true)));
+      assertEquals(codec.name(), 10, whole.size());
+      assertEquals(codec.name(), "key=value9", whole.get(9));
+    }
+  }
+
+  @Test
+  public void testResumingFromACheckpointInsideAChunk() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    try (BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(
+            new FileBlockBuffer(dir.toFile(), "data"),
+            new FileBlockBuffer(dir.toFile(), "index"),
+            0,
+            1 << 20,
+            new byte[0])) {
+      writer.setCheckpointInterval(10, 0);
+      for (int i = 0; i < 100; i++) {
+        write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+      }
+      writer.close();
+      assertEquals(1, writer.getNumChunks());
+      upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    AmazonS3 client = givenAMockS3Client(dir);
+    String key =
+        getKeyForFilename(layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, ".gz");
+
+    List<String> resumed =
+        whenTheRecordsAreRead(
+            givenAReaderWithOffsets(client, layout.getParser(), key, 57L, "00000"));
+
+    assertEquals(43, resumed.size());
+    assertEquals("key=value57", resumed.get(0));
+    assertEquals("key=value99", resumed.get(42));
+    // the single chunk was read from the checkpoint at record 50, not from its start
+    verify(client).getObject(argThat((GetObjectRequest request) -> request.getRange()[0] > 0));
+  }
+
+  @Test
+  public void testResumingFetchesOnlyTheHeaderOnce() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    try (BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(dir.toFile(), 0, 40, "HEADER".getBytes())) {
+      for (int i = 0; i < 20; i++) {
+        write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+      }
+      upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    AmazonS3 client = givenAMockS3Client(dir);
+    String key =
+        getKeyForFilename(layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, ".gz");
+    Map<S3Partition, S3Offset> offsets =
+        Collections.singletonMap(
+            S3Partition.from("bucket", "prefix", "topic", 0), S3Offset.from(key, 14));
+    List<String> headers = new ArrayList<>();
+    HeaderCache cache = new HeaderCache(10);
+
+    // e.g. the task starting over after an error
+    for (int i = 0; i < 2; i++) {
+      List<String> results =
+          whenTheRecordsAreRead(
+              new S3FilesReader(
+                  new S3SourceConfig(
+                      "bucket", "prefix", 10, null, S3FilesReader.InputFilter.GUNZIP, null, null),
+                  client,
+                  offsets,
+                  layout.getParser(),
+                  () ->
+                      new BytesRecordReader(true) {
+                        @Override
+                        public boolean isInitRequired() {
+                          return true;
+                        }
+
+                        @Override
+                        public void init(
+                            String topic, int partition, InputStream inputStream, long start) {
+                          try {
+                            headers.add(new String(inputStream.readNBytes(6)));
+                          } catch (IOException e) {
+                            throw new RuntimeException(e);
+                          }
+                        }
+                      },
+                  cache));
+
+      assertEquals(5, results.size());
+      assertEquals("key=value15", results.get(0));
+    }
+    assertEquals(Arrays.asList("HEADER", "HEADER"), headers);
+    verify(client, never()).getObject(argThat((GetObjectRequest r) -> r.getRange() == null));
+    // the header is fetched once, for both readers
+    long size = Files.size(dir.resolve(key));
+    verify(client, times(1))
+        .getObject(
+            argThat(
+                (GetObjectRequest r) ->
+                    r.getRange() != null && r.getRange()[0] == 0 && r.getRange()[1] < size - 1));
+  }
+
+  @Test
+  public void testFetchingTheChunksOfAnObjectWithAHeader()
+      throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    try (BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(dir.toFile(), 0, 40, "HEADER".getBytes())) {
+      for (int i = 0; i < 20; i++) {
+        write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+      }
+      upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    AmazonS3 client = givenAMockS3Client(dir);
+    S3SourceConfig config =
         new S3SourceConfig(
-            "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, p -> partInt == p, null),
-        client,
-        offsets,
-        layoutParser,
-        () -> new BytesRecordReader(true));
+            "bucket", "prefix", 10, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+    config.chunkFetchThreads = 2;
+    config.chunkFetchMinBytes = 0;
+    List<String> headers = new ArrayList<>();
+
+    List<String> results =
+        whenTheRecordsAreRead(
+            new S3FilesReader(
+                config,
+                client,
+                null,
+                layout.getParser(),
+                () ->
+                    new BytesRecordReader(true) {
+                      @Override
+                      public boolean isInitRequired() {
+                        return true;
+                      }
+
+                      @Override
+                      public void init(
+                          String topic, int partition, InputStream inputStream, long start) {
+                        try {
+                          headers.add(new String(inputStream.readNBytes(6)));
+                        } catch (IOException e) {
+                          throw new RuntimeException(e);
+                        }
+                      }
+                    }));
+
+    assertEquals(Collections.singletonList("HEADER"), headers);
+    assertEquals(20, results.size());
+    assertEquals("key=value0", results.get(0));
+    assertEquals("key=value19", results.get(19));
+  }
+
+  @Test
+  public void testReadingAnObjectWithAHeaderFromAnOlderSink()
+      throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    try (BlockGZIPFileWriter writer =
+        new BlockGZIPFileWriter(dir.toFile(), 0, 40, "HEADER".getBytes())) {
+      for (int i = 0; i < 20; i++) {
+        write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+      }
+      upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    // older sinks indexed the first chunk after its gzip header
+    Path indexFile =
+        dir.resolve(
+            getKeyForFilename(
+                layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, ".index.json"));
+    ObjectMapper mapper = new ObjectMapper();
+    ChunksIndex index = mapper.readValue(indexFile.toFile(), ChunksIndex.class);
+    index.chunks.get(0).byte_offset += 10;
+    index.chunks.get(0).byte_length -= 10;
+    mapper.writeValue(indexFile.toFile(), index);
+    AmazonS3 client = givenAMockS3Client(dir);
+    String key =
+        getKeyForFilename(layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, ".gz");
+
+    for (int chunkFetchThreads : new int[] {0, 2}) {
+      for (boolean resuming : new boolean[] {false, true}) {
+        S3SourceConfig config =
+            new S3SourceConfig(
+                "bucket", "prefix", 10, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+        config.chunkFetchThreads = chunkFetchThreads;
+        config.chunkFetchMinBytes = 0;
+        List<String> headers = new ArrayList<>();
+        Map<S3Partition, S3Offset> offsets =
+            resuming
+                ? Collections.singletonMap(
+                    S3Partition.from("bucket", "prefix", "topic", 0), S3Offset.from(key, 0))
+                : null;
+
+        List<String> results =
+            whenTheRecordsAreRead(
+                new S3FilesReader(
+                    config,
+                    client,
+                    offsets,
+                    layout.getParser(),
+                    () ->
+                        new BytesRecordReader(true) {
+                          @Override
+                          public boolean isInitRequired() {
+                            return true;
+                          }
+
+                          @Override
+                          public void init(
+                              String topic, int partition, InputStream inputStream, long start) {
+                            try {
+                              headers.add(new String(inputStream.readNBytes(6)));
+                            } catch (IOException e) {
+                              throw new RuntimeException(e);
+                            }
+                          }
+                        }));
+
+        assertEquals(Collections.singletonList("HEADER"), headers);
+        assertEquals(resuming ? 19 : 20, results.size());
+        assertEquals(resuming ? "key=value1" : "key=value0", results.get(0));
+        assertEquals("key=value19", results.get(results.size() - 1));
+      }
+    }
+  }
+
+  @Test
+  public void testSeekingToATimestamp() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    // two files of 10 records, a second apart, in chunks of 2 or 3
+    for (int file = 0; file < 2; file++) {
+      BlockGZIPFileWriter writer =
+          new BlockGZIPFileWriter(
+              new FileBlockBuffer(dir.toFile(), "data"),
+              new FileBlockBuffer(dir.toFile(), "index"),
+              file * 10,
+              20,
+              new byte[0]);
+      for (int i = file * 10; i < file * 10 + 10; i++) {
+        byte[] record =
+            new ByteLengthFormat(true)
+                .newWriter()
+                .write(new ProducerRecord<>("", "key".getBytes(), ("value" + i).getBytes()));
+        writer.write(record, 0, record.length, 1, 1_000_000L + i * 1000);
+      }
+      upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    AmazonS3 client = givenAMockS3Client(dir);
+    S3SourceConfig config =
+        new S3SourceConfig("bucket", "prefix", 1, null, null, p -> p == 0, null);
+    config.startTimestamp = 1_000_000L + 14_500;
+
+    List<String> results =
+        whenTheRecordsAreRead(
+            new S3FilesReader(
+                config,
+                client,
+                new HashMap<>(),
+                layout.getParser(),
+                () -> new BytesRecordReader(true)));
+
+    // from the start of the chunk holding record 15, the first one since then
+    assertTrue(results.toString(), results.get(0).compareTo("key=value15") <= 0);
+    assertTrue(results.toString(), results.size() < 10);
+    assertEquals("key=value19", results.get(results.size() - 1));
+  }
+
+  @Test
+  public void testPrefetchingObjects() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    givenSomeData(dir, layout.getBuilder());
+    final AmazonS3 client = givenAMockS3Client(dir);
+    String resumeFrom =
+        getKeyForFilename(layout.getBuilder(), "2015-12-31", "prefix", "topic", 3, 1, ".gz");
+
+    // everything fits, and nothing does
+    for (long maxBytes : new long[] {1 << 20, 1}) {
+      Map<S3Partition, S3Offset> offsets = new HashMap<>();
+      offsets.put(S3Partition.from("bucket", "prefix", "topic", 3), S3Offset.from(resumeFrom, 4));
+      S3SourceConfig config =
+          new S3SourceConfig(
+              "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+      config.prefetchDepth = 2;
+      config.prefetchMaxBytes = maxBytes;
+
+      List<String> results =
+          whenTheRecordsAreRead(
+              new S3FilesReader(
+                  config, client, offsets, layout.getParser(), () -> new BytesRecordReader(true)));
+
+      assertEquals(
+          Arrays.asList(
+              "willbe=skipped5",
+              "willbe=skipped6",
+              "willbe=skipped7",
+              "willbe=skipped8",
+              "willbe=skipped9",
+              "key0-0=value0-0",
+              "key1-0=value1-0",
+              "key1-1=value1-1"),
+          results);
+    }
+  }
+
+  @Test
+  public void testFetchingChunksInParallel() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByTopicLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    List<String> expected = new ArrayList<>();
+    try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter(dir.toFile(), 0, 40)) {
+      for (int i = 0; i < 50; i++) {
+        write(writer, ("key" + i).getBytes(), ("value" + i).getBytes(), true);
+        expected.add("key" + i + "=value" + i);
+      }
+      upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    final AmazonS3 client = givenAMockS3Client(dir);
+    String key =
+        getKeyForFilename(layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, ".gz");
+
+    // a chunk per GET, and all of them in one
+    for (long maxBytes : new long[] {1, 1 << 20}) {
+      for (Map<S3Partition, S3Offset> offsets :
+          Arrays.asList(
+              new HashMap<S3Partition, S3Offset>(),
+              Collections.singletonMap(
+                  S3Partition.from("bucket", "prefix", "topic", 0), S3Offset.from(key, 24)))) {
+        S3SourceConfig config =
+            new S3SourceConfig(
+                "bucket", "prefix", 10, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+        config.chunkFetchThreads = 2;
+        config.chunkFetchMinBytes = 0;
+        config.chunkFetchMaxBytes = maxBytes;
+
+        List<String> results =
+            whenTheRecordsAreRead(
+                new S3FilesReader(
+                    config,
+                    client,
+                    offsets,
+                    layout.getParser(),
+                    () -> new BytesRecordReader(true)));
+
+        assertEquals(expected.subList(offsets.isEmpty() ? 0 : 25, 50), results);
+      }
+    }
+    verify(client, atLeast(10)).getObject(any(GetObjectRequest.class));
+  }
+
+  @Test
+  public void testInterleavingPartitions() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    for (int partition = 0; partition < 3; partition++) {
+      for (int start = 0; start < 6; start += 3) {
+        try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter(dir.toFile(), start, 512)) {
+          for (int i = start; i < start + 3; i++) {
+            write(writer, ("key" + partition).getBytes(), ("value" + i).getBytes(), true);
+          }
+          upload(writer, dir, layout.getBuilder(), "2016-01-01", partition);
+        }
+      }
+    }
+    final AmazonS3 client = givenAMockS3Client(dir);
+
+    for (int prefetchDepth : new int[] {0, 2}) {
+      S3SourceConfig config =
+          new S3SourceConfig(
+              "bucket", "prefix", 2, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+      config.prefetchDepth = prefetchDepth;
+      config.interleavePartitions = 2;
+      config.interleaveRecords = 2;
+
+      List<String> results =
+          whenTheRecordsAreRead(
+              new S3FilesReader(
+                  config, client, null, layout.getParser(), () -> new BytesRecordReader(true)));
+
+      // 2 at a time, and partition 2 takes over when one of them finishes an object
+      assertEquals(
+          Arrays.asList(
+              "key0=value0",
+              "key0=value1",
+              "key1=value0",
+              "key1=value1",
+              "key0=value2",
+              "key1=value2",
+              "key2=value0",
+              "key2=value1",
+              "key0=value3",
+              "key0=value4",
+              "key2=value2",
+              "key0=value5",
+              "key1=value3",
+              "key1=value4",
+              "key2=value3",
+              "key2=value4",
+              "key1=value5",
+              "key2=value5"),
+          results);
+    }
+  }
+
+  @Test
+  public void testInterleavingListsAheadUntilAPartitionIsWaiting()
+      throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    List<S3ObjectSummary> listing = new ArrayList<>();
+    listing.addAll(givenOneRecordObjects(dir, layout.getBuilder(), 0, 3));
+    listing.addAll(givenOneRecordObjects(dir, layout.getBuilder(), 1, 1));
+    listing.addAll(givenOneRecordObjects(dir, layout.getBuilder(), 2, 1));
+    final AmazonS3 client = givenAMockS3Client(dir);
+
+    for (int maxObjects : new int[] {10000, 2}) {
+      S3SourceConfig config =
+          new S3SourceConfig(
+              "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+      config.prefetchDepth = 0;
+      config.interleavePartitions = 1;
+      config.interleaveRecords = 1;
+      config.interleaveMaxObjects = maxObjects;
+      Iterator<S3ObjectSummary> listed = listing.iterator();
+      AtomicInteger taken = new AtomicInteger();
+      Iterator<S3ObjectSummary> objects =
+          new Iterator<S3ObjectSummary>() {
+            @Override
+            public boolean hasNext() {
+              return listed.hasNext();
+            }
+
+            @Override
+            public S3ObjectSummary next() {
+              taken.incrementAndGet();
+              return listed.next();
+            }
+          };
+      Iterator<S3SourceRecord> records =
+          new S3FilesReader(
+                  config, client, null, layout.getParser(), () -> new BytesRecordReader(true))
+              .read(objects);
+
+      // up to partition 1, to take over from partition 0, unless partition 0 holds too many
+      assertTrue(records.hasNext());
+      assertEquals(maxObjects > 2 ? 4 : 2, taken.get());
+
+      List<String> results = new ArrayList<>();
+      while (records.hasNext()) {
+        S3SourceRecord record = records.next();
+        results.add(record.partition() + "=" + new String(record.value()));
+      }
+      assertEquals(
+          maxObjects > 2
+              ? Arrays.asList("0=value0", "1=value0", "0=value1", "2=value0", "0=value2")
+              // partition 1 isn't found until partition 0 has read some of what it holds
+              : Arrays.asList("0=value0", "0=value1", "1=value0", "0=value2", "2=value0"),
+          results);
+    }
+  }
+
+  @Test
+  public void testDiscoveringOnlyNewObjects() throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    givenASingleDayWithManyPartitions(dir, layout.getBuilder());
+    final AmazonS3 client = givenAMockS3Client(dir);
+    S3SourceConfig config =
+        new S3SourceConfig(
+            "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+    S3FilesReader reader =
+        new S3FilesReader(
+            config, client, null, layout.getParser(), () -> new BytesRecordReader(true));
+    S3ObjectDiscovery discovery =
+        new S3ObjectDiscovery(config, client, layout.getParser(), reader::shouldRead, 60_000);
+    Iterator<S3SourceRecord> records = reader.read(discovery.objects());
+    assertFalse(records.hasNext());
+
+    discovery.discover();
+    thenTheyAreFilteredAndInOrder(drain(records));
+
+    // sorts before the last file of partition 1
+    try (BlockGZIPFileWriter p0 = new BlockGZIPFileWriter(dir.toFile(), 1, 512)) {
+      write(p0, "key0-1".getBytes(), "value0-1".getBytes(), true);
+      upload(p0, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    discovery.discover();
+
+    assertEquals(Collections.singletonList("key0-1=value0-1"), drain(records));
+    String partition0 =
+        getKeyForFilename(layout.getBuilder(), "2016-01-01", "prefix", "topic", 0, 0, ".gz");
+    verify(client).listObjects(argThat((ListObjectsRequest r) -> partition0.equals(r.getMarker())));
+
+    discovery.discover();
+    assertFalse(records.hasNext());
+  }
+
+  @Test
+  public void testWithoutFullListingsDiscoveryNeverListsFromTheStartAgain()
+      throws IOException, NoSuchFieldException {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    givenASingleDayWithManyPartitions(dir, layout.getBuilder());
+    final AmazonS3 client = givenAMockS3Client(dir);
+    S3SourceConfig config =
+        new S3SourceConfig(
+            "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+    S3FilesReader reader =
+        new S3FilesReader(
+            config, client, null, layout.getParser(), () -> new BytesRecordReader(true));
+    S3ObjectDiscovery discovery =
+        new S3ObjectDiscovery(config, client, layout.getParser(), reader::shouldRead, 0);
+    Iterator<S3SourceRecord> records = reader.read(discovery.objects());
+
+    discovery.discover();
+    thenTheyAreFilteredAndInOrder(drain(records));
+    try (BlockGZIPFileWriter p0 = new BlockGZIPFileWriter(dir.toFile(), 1, 512)) {
+      write(p0, "key0-1".getBytes(), "value0-1".getBytes(), true);
+      upload(p0, dir, layout.getBuilder(), "2016-01-01", 0);
+    }
+    discovery.discover();
+    discovery.discover();
+
+    assertEquals(Collections.singletonList("key0-1=value0-1"), drain(records));
+    verify(client, times(1)).listObjects(argThat((ListObjectsRequest r) -> r.getMarker() == null));
+  }
+
+  @Test
+  public void testDiscoveryWaitsForTheReader() throws Exception {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    for (int i = 0; i < 12; i++) {
+      try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter(dir.toFile(), i, 512)) {
+        write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+        upload(writer, dir, layout.getBuilder(), "2016-01-01", 0);
+      }
+    }
+    final AmazonS3 client = givenAMockS3Client(dir);
+    // pages of a data object and its index
+    S3SourceConfig config =
+        new S3SourceConfig(
+            "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+    S3FilesReader reader =
+        new S3FilesReader(
+            config, client, null, layout.getParser(), () -> new BytesRecordReader(true));
+    S3ObjectDiscovery discovery =
+        new S3ObjectDiscovery(config, client, layout.getParser(), reader::shouldRead, 60_000);
+
+    Thread listing = new Thread(discovery::discover);
+    listing.start();
+    long deadline = System.currentTimeMillis() + 5000;
+    while (listing.getState() != Thread.State.WAITING && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    // stopped paging with a few pages queued
+    assertEquals(Thread.State.WAITING, listing.getState());
+    assertTrue(discovery.listCalls() < 12);
+
+    Iterator<S3SourceRecord> records = reader.read(discovery.objects());
+    List<String> results = new ArrayList<>();
+    while (listing.isAlive() || records.hasNext()) {
+      results.addAll(drain(records));
+    }
+    assertEquals(12, results.size());
+    assertEquals("key=value11", results.get(11));
+  }
+
+  @Test
+  public void testPrefetchedObjectsAreLetGoOfOnceRead() throws Exception {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    List<S3ObjectSummary> p0 = givenOneRecordObjects(dir, layout.getBuilder(), 0, 2);
+    List<S3ObjectSummary> p1 = givenOneRecordObjects(dir, layout.getBuilder(), 1, 2);
+    final AmazonS3 client = givenAMockS3Client(dir);
+    List<String> prefetched = Collections.synchronizedList(new ArrayList<>());
+    doAnswer(
+            invocation -> {
+              String key = invocation.getArgument(1);
+              if (Thread.currentThread().getName().equals("s3-prefetch")) {
+                prefetched.add(key);
+              }
+              return getFile(key, dir);
+            })
+        .when(client)
+        .getObject(anyString(), anyString());
+
+    S3SourceConfig config =
+        new S3SourceConfig(
+            "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+    config.prefetchDepth = 1;
+    // room for one object at a time
+    config.prefetchMaxBytes = p0.get(1).getSize() + 1;
+    config.interleavePartitions = 2;
+    Deque<S3ObjectSummary> listed = new ArrayDeque<>(p0);
+    Iterator<S3ObjectSummary> objects =
+        new Iterator<S3ObjectSummary>() {
+          @Override
+          public boolean hasNext() {
+            return !listed.isEmpty();
+          }
+
+          @Override
+          public S3ObjectSummary next() {
+            return listed.remove();
+          }
+        };
+    S3FilesReader reader =
+        new S3FilesReader(
+            config, client, null, layout.getParser(), () -> new BytesRecordReader(true));
+    Iterator<S3SourceRecord> records = reader.read(objects);
+
+    assertEquals(2, drain(records).size());
+    assertEquals(Collections.singletonList(p0.get(1).getKey()), prefetched);
+
+    // partition 0 is done with its object, so partition 1 has room to prefetch
+    listed.addAll(p1);
+    assertEquals(2, drain(records).size());
+    assertEquals(Arrays.asList(p0.get(1).getKey(), p1.get(1).getKey()), prefetched);
+  }
+
+  @Test
+  public void testClosingAReaderCancelsItsPrefetches() throws Exception {
+    Layout layout = new GroupedByDateLayout(DATE_SUPPLIER);
+    final Path dir = Files.createTempDirectory("s3FilesReaderTest");
+    List<S3ObjectSummary> objects = givenOneRecordObjects(dir, layout.getBuilder(), 0, 2);
+    final AmazonS3 client = givenAMockS3Client(dir);
+    CountDownLatch downloading = new CountDownLatch(1);
+    CountDownLatch interrupted = new CountDownLatch(1);
+    doAnswer(
+            invocation -> {
+              String key = invocation.getArgument(1);
+              if (Thread.currentThread().getName().equals("s3-prefetch")) {
+                downloading.countDown();
+                try {
+                  new CountDownLatch(1).await();
+                } catch (InterruptedException e) {
+                  interrupted.countDown();
+                  throw e;
+                }
+              }
+              return getFile(key, dir);
+            })
+        .when(client)
+        .getObject(anyString(), anyString());
+
+    S3SourceConfig config =
+        new S3SourceConfig(
+            "bucket", "prefix", 1, null, S3FilesReader.InputFilter.GUNZIP, null, null);
+    config.prefetchDepth = 1;
+    S3FilesReader reader =
+        new S3FilesReader(
+            config, client, null, layout.getParser(), () -> new BytesRecordReader(true));
+    Iterator<S3SourceRecord> records = reader.read(objects.iterator());
+    assertTrue(records.hasNext());
+    assertTrue(downloading.await(5, TimeUnit.SECONDS));
+
+    reader.close();
+    assertTrue(interrupted.await(5, TimeUnit.SECONDS));
+    // whatever was in progress is read without its prefetch
+    records.next();
+    assertEquals(1, drain(records).size());
+  }
+
+  /** Objects of one record each, at consecutive offsets from 0. */
+  private List<S3ObjectSummary> givenOneRecordObjects(
+      Path dir, Layout.Builder layoutBuilder, int partition, int count) throws IOException {
+    List<S3ObjectSummary> objects = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      try (BlockGZIPFileWriter writer = new BlockGZIPFileWriter(dir.toFile(), i, 512)) {
+        write(writer, "key".getBytes(), ("value" + i).getBytes(), true);
+        upload(writer, dir, layoutBuilder, "2016-01-01", partition);
+      }
+      S3ObjectSummary object = new S3ObjectSummary();
+      object.setKey(
+          getKeyForFilename(layoutBuilder, "2016-01-01", "prefix", "topic", partition, i, ".gz"));
+      object.setSize(Files.size(dir.resolve(object.getKey())));
+      objects.add(object);
+    }
+    return objects;
+  }
+
+  private List<String> drain(Iterator<S3SourceRecord> records) {
+    List<String> results = new ArrayList<>();
+    while (records.hasNext()) {
+      S3SourceRecord record = records.next();
+      results.add(new String(record.key()) + "=" + new String(record.value()));
+    }
+    return results;
   }
 
   @Test
@@ -371,6 +1205,7 @@ public class S3FilesReaderTest {
                     S3ObjectSummary summary = new S3ObjectSummary();
                     String key = key(file);
                     summary.setKey(key);
+                    summary.setSize(file.length());
                     listing.setNextMarker(key);
                     summaries.add(summary);
                   } else {
@@ -409,8 +1244,8 @@ public class S3FilesReaderTest {
             new Answer<S3Object>() {
               @Override
               public S3Object answer(InvocationOnMock invocationOnMock) throws Throwable {
-                String key = ((GetObjectRequest) invocationOnMock.getArguments()[0]).getKey();
-                return getFile(key, dir);
+                GetObjectRequest request = (GetObjectRequest) invocationOnMock.getArguments()[0];
+                return getFile(request.getKey(), dir, request.getRange());
               }
             });
     when(client.getObjectMetadata(anyString(), anyString()))
@@ -430,11 +1265,31 @@ public class S3FilesReaderTest {
     return client;
   }
 
-  S3Object getFile(String key, Path dir) throws FileNotFoundException {
+  S3Object getFile(String key, Path dir) throws IOException {
+    return getFile(key, dir, null);
+  }
+
+  S3Object getFile(String key, Path dir, long[] range) throws IOException {
     S3Object obj = mock(S3Object.class);
     File file = new File(dir.toString(), key);
     when(obj.getKey()).thenReturn(key);
-    S3ObjectInputStream stream = new S3ObjectInputStream(new FileInputStream(file), null);
+    byte[] bytes = Files.readAllBytes(file.toPath());
+    InputStream content;
+    if (range != null) {
+      int end = (int) Math.min(bytes.length, range[1] + 1);
+      content = new ByteArrayInputStream(bytes, (int) range[0], end - (int) range[0]);
+    } else {
+      content = new ByteArrayInputStream(bytes);
+      // what the sink records for an object with an index footer
+      ObjectMetadata metadata = new ObjectMetadata();
+      metadata.setContentLength(bytes.length);
+      if (IndexFooter.length(bytes) > 0) {
+        metadata.addUserMetadata(
+            IndexFooter.METADATA_KEY, Integer.toString(IndexFooter.length(bytes)));
+      }
+      when(obj.getObjectMetadata()).thenReturn(metadata);
+    }
+    S3ObjectInputStream stream = new S3ObjectInputStream(content, null);
     when(obj.getObjectContent()).thenReturn(stream);
     return obj;
   }
@@ -512,9 +1367,26 @@ public class S3FilesReaderTest {
       String date,
       int partition)
       throws IOException {
+    upload(writer, dir, layoutBuilder, date, partition, ".gz");
+  }
+
+  private void upload(
+      BlockGZIPFileWriter writer,
+      Path dir,
+      Layout.Builder layoutBuilder,
+      String date,
+      int partition,
+      String extension)
+      throws IOException {
     writer.close();
     rename(
-        writer.getDataFile(), dir, layoutBuilder, date, partition, writer.getStartOffset(), ".gz");
+        writer.getDataFile(),
+        dir,
+        layoutBuilder,
+        date,
+        partition,
+        writer.getStartOffset(),
+        extension);
     rename(
         writer.getIndexFile(),
         dir,
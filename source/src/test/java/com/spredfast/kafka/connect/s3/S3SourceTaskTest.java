@@ -0,0 +1,31 @@
+package com.spredfast.kafka.connect.s3;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.spredfast.kafka.connect.s3.source.S3SourceTask;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.kafka.connect.errors.ConnectException;
+import org.junit.Test;
+
+public class S3SourceTaskTest {
+
+  @Test
+  public void theEventTimeLayoutIsRejected() {
+    // a late file, uploaded after a later day's first file, sorts before it:
+    // topic/2016-01-01/00000-000000000100 after topic/2016-01-02/00000-000000000000
+    Map<String, String> config = new HashMap<>();
+    config.put("s3.bucket", "bucket");
+    config.put("partitions", "0");
+    config.put("topics", "topic");
+    config.put("layout", "event_time");
+
+    try {
+      new S3SourceTask().start(config);
+      fail("Expected the event_time layout to be rejected");
+    } catch (ConnectException expected) {
+      assertTrue(expected.getMessage().contains("event_time"));
+    }
+  }
+}